@@ -5,21 +5,42 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ConfigurableApplicationContext;
 
 import com.ejaque.openingexplorer.service.OpeningExplorerService;
+import com.ejaque.openingexplorer.service.SearchPlannerService;
 
 @SpringBootApplication
 public class MainApplication {
 
     public static void main(String[] args) {
-        // Start the Spring application and obtain the context
-        ConfigurableApplicationContext context = SpringApplication.run(MainApplication.class, args);
+        // Start the Spring application and obtain the context (closed by our own shutdown hook, see below)
+        SpringApplication application = new SpringApplication(MainApplication.class);
+        application.setRegisterShutdownHook(false);
+        ConfigurableApplicationContext context = application.run(args);
 
         // Get the OpeningExplorerService bean from the application context
         OpeningExplorerService openingExplorer = context.getBean(OpeningExplorerService.class);
 
-        // call main methods
+        // Ctrl-C stops the search, the good moves found so far are exported before closing the context
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (mainThread.isAlive()) {
+                System.out.println("Stopping the search, exporting the good moves found so far (kill the process to exit now)");
+                openingExplorer.stopSearch();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            context.close();
+        }, "search-shutdown"));
+
+        // call main methods (start with "--resume" to continue the last search or "--incremental"
+        // to reuse its tree, see SearchCheckpointService, or "--plan" to only estimate it, see SearchPlannerService)
         try {
             openingExplorer.startSearch();
-            openingExplorer.exportGoodMoves();
+            if (!context.getBean(SearchPlannerService.class).isDryRun()) {
+                openingExplorer.exportGoodMoves();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
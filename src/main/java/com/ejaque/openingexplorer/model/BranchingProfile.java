@@ -0,0 +1,35 @@
+package com.ejaque.openingexplorer.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Branching of the explorer tree observed in a shallow probe of the search,
+ * used to estimate the cost of the full search (see
+ * {@link com.ejaque.openingexplorer.service.SearchPlannerService}).
+ *
+ * <p>
+ * Attributes:
+ * </p>
+ * <ul>
+ * <li>{@code rootGames} - Games played in the starting position.</li>
+ * <li>{@code playerPopularity}, {@code opponentPopularity} - Avg popularity
+ * (share of the games) of the most played move, the second one, etc. in the
+ * positions where our player / the opponent is to play.</li>
+ * <li>{@code goodMovesPerPlayerNode} - Avg good moves found in the positions
+ * where our player is to play.</li>
+ * <li>{@code secondsPerCall} - Avg time to fetch a position.</li>
+ * </ul>
+ */
+@Builder
+@Getter
+@ToString
+public class BranchingProfile {
+
+	private long rootGames;
+	private double[] playerPopularity;
+	private double[] opponentPopularity;
+	private double goodMovesPerPlayerNode;
+	private double secondsPerCall;
+}
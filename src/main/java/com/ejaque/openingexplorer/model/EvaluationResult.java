@@ -1,5 +1,7 @@
 package com.ejaque.openingexplorer.model;
 
+import java.util.List;
+
 import lombok.Builder;
 import lombok.Getter;
 
@@ -15,4 +17,10 @@ public class EvaluationResult {
     
     /** Best move in the position. */
     private String bestMove;
+
+    /** Depth of the search (in half moves). */
+    private int depth;
+
+    /** Principal variation (best line) in UCI format, starting with the best move. */
+    private List<String> pv;
 }
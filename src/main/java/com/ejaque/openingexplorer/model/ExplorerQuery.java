@@ -0,0 +1,49 @@
+package com.ejaque.openingexplorer.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Query parameters sent to the Lichess opening explorer for a position (the FEN
+ * is not part of this class, it changes on every call).
+ *
+ * <p>
+ * Attributes:
+ * </p>
+ * <ul>
+ * <li>{@code ratingRange} - Comma separated rating buckets, like "2200,2500".
+ * Ignored when {@code masters} is TRUE.</li>
+ * <li>{@code speeds} - Comma separated game speeds, like
+ * "blitz,rapid,classical". Ignored when {@code masters} is TRUE.</li>
+ * <li>{@code masters} - TRUE to query the masters database (official OTB
+ * games) instead of the lichess games.</li>
+ * <li>{@code since} - Only games played since this date, like "2023-10" (or a
+ * year like "2023" for masters). NULL for all the games.</li>
+ * </ul>
+ */
+@Builder
+@Getter
+@ToString
+public class ExplorerQuery {
+
+	private String ratingRange;
+	private String speeds;
+	private boolean masters;
+	private String since;
+
+	/**
+	 * Gets a key that identifies this query, used (together with the position) as
+	 * key for caching explorer responses.
+	 *
+	 * @return Key like "masters" or "lichess|blitz,rapid,classical|2500" (with
+	 *         "|since=2023-10" at the end if {@code since} is set)
+	 */
+	public String getKey() {
+		String sinceKey = since == null ? "" : "|since=" + since;
+		if (masters) {
+			return "masters" + sinceKey;
+		}
+		return "lichess|" + speeds + "|" + ratingRange + sinceKey;
+	}
+}
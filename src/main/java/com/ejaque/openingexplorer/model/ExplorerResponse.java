@@ -0,0 +1,27 @@
+package com.ejaque.openingexplorer.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Response of an HTTP call to the Lichess explorer (body already decompressed).
+ */
+@Builder
+@Getter
+@ToString(exclude = "body")
+public class ExplorerResponse {
+
+	/** HTTP status code, like 200 or 429. */
+	private int statusCode;
+
+	/** Response body (JSON). */
+	private String body;
+
+	/** Time spent waiting for the server (millis). */
+	private long latencyMillis;
+
+	public boolean isOk() {
+		return statusCode == 200;
+	}
+}
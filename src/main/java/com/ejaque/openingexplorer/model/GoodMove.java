@@ -36,6 +36,23 @@ import lombok.ToString;
  * this move.</li>
  * <li>{@code averageRatingForAllMoves} - The average rating for all moves in
  * the given board position.</li>
+ * <li>{@code topTier*} - Same stats in the "top tier" explorer variant (like
+ * masters, see "searchParams.topTier"), 0 if disabled or the move was not
+ * played there.</li>
+ * <li>{@code opponentsCovered*} - Weighted (by games played) avg rating,
+ * white points and eval of the opponent replies to this move, taking replies
+ * (most played first) until they cover "searchParams.opponentCoverage" of the
+ * games. {@code opponentsCoveredMoves} is the number of replies, few replies
+ * means a "forcing" move.</li>
+ * <li>{@code lastYear*} - Stats of the move in the games of the last year,
+ * see {@link com.ejaque.openingexplorer.service.GoodMoveEnrichmentService}.</li>
+ * <li>{@code cloudEval}, {@code cloudEvalDepth} - Lichess cloud eval after
+ * the move (white's point of view), depth 0 if there's no cloud eval.</li>
+ * <li>{@code engineTopMoves}, {@code engineBestEval}, {@code engineRank} -
+ * Best moves of the engine in the position with their evals (like "e2e4
+ * 0.35, d2d4 0.30"), eval of the best one and rank of this move among them (0
+ * if it's not one of them, a move with decent eval that is not among the top
+ * moves is not attractive but may work), see "engine.topMoves".</li>
  * </ul>
  *
  * <p>
@@ -69,5 +86,18 @@ public class GoodMove {
 	private double topTierAverageRatingOpponents;
 	private double topTierTotalGames;
 	private double topTierWhitePointsPctg;
+	private int opponentsCoveredMoves;
+	private double opponentsCoveredAverageRating;
+	private double opponentsCoveredWhitePointsPctg;
+	private double opponentsCoveredEval;
+	private double lastYearTotalGamesMove;
+	private double lastYearPopularity;
+	private double lastYearAverageRating;
+	private double lastYearWhitePointsPctg;
+	private double cloudEval;
+	private int cloudEvalDepth;
+	private String engineTopMoves;
+	private double engineBestEval;
+	private int engineRank;
 
 }
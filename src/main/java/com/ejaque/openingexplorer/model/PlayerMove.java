@@ -0,0 +1,45 @@
+package com.ejaque.openingexplorer.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Move played by a player (opponent we prepare against) in a position of the
+ * search tree, from the player explorer. One row of the "Players" sheet.
+ *
+ * <p>
+ * Attributes:
+ * </p>
+ * <ul>
+ * <li>{@code player} - Lichess username.</li>
+ * <li>{@code fen} - Position where the player is to move.</li>
+ * <li>{@code move} - The move in UCI format.</li>
+ * <li>{@code probabilityOcurring} - Reach probability of the position in the
+ * search.</li>
+ * <li>{@code totalGames} - Games of the player in the position.</li>
+ * <li>{@code totalGamesMove} - Games of the player with this move.</li>
+ * <li>{@code frequency} - Share of the games of the player in the position
+ * with this move.</li>
+ * <li>{@code popularity} - Share of all the games (explorer stats used by the
+ * search) with this move, 0 if not played there. Compare it with
+ * {@code frequency} to spot the preferences of the player.</li>
+ * <li>{@code pointsPctg} - Points of the player with this move (the player's color
+ * point of view).</li>
+ * </ul>
+ */
+@Builder
+@Getter
+@ToString
+public class PlayerMove {
+
+	private String player;
+	private String fen;
+	private String move;
+	private double probabilityOcurring;
+	private int totalGames;
+	private int totalGamesMove;
+	private double frequency;
+	private double popularity;
+	private double pointsPctg;
+}
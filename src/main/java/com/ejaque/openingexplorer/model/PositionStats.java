@@ -0,0 +1,194 @@
+package com.ejaque.openingexplorer.model;
+
+import java.util.Arrays;
+
+import lombok.Getter;
+
+/**
+ * Compact stats of a position in the opening explorer (decoded with
+ * {@link com.ejaque.openingexplorer.util.ExplorerJsonDecoder}). Moves are kept
+ * in parallel primitive arrays, in the same order returned by the explorer
+ * (descending on total games played).
+ *
+ * <p>
+ * Attributes:
+ * </p>
+ * <ul>
+ * <li>{@code white}, {@code draws}, {@code black} - Results of all the games
+ * in this position.</li>
+ * <li>{@code moveCount} - Number of moves played in this position.</li>
+ * <li>{@code moveUci} - Move in UCI format (castling as "e1h1", like the
+ * explorer returns it).</li>
+ * <li>{@code moveWhite}, {@code moveDraws}, {@code moveBlack} - Results of the
+ * games for each move.</li>
+ * <li>{@code moveAverageRating} - Average rating of the players who played each
+ * move.</li>
+ * <li>{@code avgRatingForAllMoves} - Weighted (by games played) avg of the
+ * average rating of all moves.</li>
+ * </ul>
+ */
+@Getter
+public class PositionStats {
+
+	private final int white;
+	private final int draws;
+	private final int black;
+	private final int moveCount;
+	private final String[] moveUci;
+	private final int[] moveWhite;
+	private final int[] moveDraws;
+	private final int[] moveBlack;
+	private final int[] moveAverageRating;
+	private final double avgRatingForAllMoves;
+
+	public PositionStats(int white, int draws, int black, int moveCount, String[] moveUci, int[] moveWhite,
+			int[] moveDraws, int[] moveBlack, int[] moveAverageRating, double avgRatingForAllMoves) {
+		this.white = white;
+		this.draws = draws;
+		this.black = black;
+		this.moveCount = moveCount;
+		this.moveUci = moveUci;
+		this.moveWhite = moveWhite;
+		this.moveDraws = moveDraws;
+		this.moveBlack = moveBlack;
+		this.moveAverageRating = moveAverageRating;
+		this.avgRatingForAllMoves = avgRatingForAllMoves;
+	}
+
+	/** Stats of a position never played (no games, no moves). */
+	public static PositionStats empty() {
+		return new PositionStats(0, 0, 0, 0, new String[0], new int[0], new int[0], new int[0], new int[0], Double.NaN);
+	}
+
+	public int getTotalGames() {
+		return white + draws + black;
+	}
+
+	public String getUci(int i) {
+		return moveUci[i];
+	}
+
+	public int getAverageRating(int i) {
+		return moveAverageRating[i];
+	}
+
+	public int getTotalGamesMove(int i) {
+		return moveWhite[i] + moveDraws[i] + moveBlack[i];
+	}
+
+	/** Points for white (win = 1, draw = 0.5) divided by games played with the move. */
+	public double getWhitePointsPctg(int i) {
+		return (moveWhite[i] * 1 + moveDraws[i] * 0.5) / getTotalGamesMove(i);
+	}
+
+	/**
+	 * Gets the average rating of the moves with a minimum of games played (the
+	 * "candidate" moves), in explorer order.
+	 *
+	 * @param minGamesMove Minimum games played with the move.
+	 * @return Ratings, one for each candidate move.
+	 */
+	public int[] getCandidateRatings(int minGamesMove) {
+		int[] ratings = new int[moveCount];
+		int count = 0;
+		for (int i = 0; i < moveCount; i++) {
+			if (getTotalGamesMove(i) >= minGamesMove) {
+				ratings[count++] = moveAverageRating[i];
+			}
+		}
+		return count == moveCount ? ratings : Arrays.copyOf(ratings, count);
+	}
+
+	/**
+	 * Gets the number of moves (most played first) needed to cover a share of
+	 * the games played in this position.
+	 *
+	 * @param coverage Share of the games, like 0.9 for 90% (1.0 for all the
+	 *                 moves).
+	 * @return Number of moves, the first ones in explorer order.
+	 */
+	public int getCoveredMoveCount(double coverage) {
+		if (coverage >= 1.0) {
+			return moveCount;
+		}
+		double minGames = coverage * getTotalGames();
+		long coveredGames = 0;
+		for (int i = 0; i < moveCount; i++) {
+			if (coveredGames >= minGames) {
+				return i;
+			}
+			coveredGames += getTotalGamesMove(i);
+		}
+		return moveCount;
+	}
+
+	/**
+	 * Weighted (by games played) avg of the average rating of the first moves,
+	 * moves with no rating are skipped.
+	 *
+	 * @param moves Number of moves, the first ones in explorer order.
+	 * @return Avg rating, 0 if no move has rating.
+	 */
+	public double getWeightedAverageRating(int moves) {
+		double ratingSum = 0.0;
+		long games = 0;
+		for (int i = 0; i < moves; i++) {
+			if (moveAverageRating[i] > 0) {
+				ratingSum += (double) moveAverageRating[i] * getTotalGamesMove(i);
+				games += getTotalGamesMove(i);
+			}
+		}
+		return games == 0 ? 0.0 : ratingSum / games;
+	}
+
+	/**
+	 * Points for white (win = 1, draw = 0.5) divided by games played with the
+	 * first moves.
+	 *
+	 * @param moves Number of moves, the first ones in explorer order.
+	 */
+	public double getWeightedWhitePointsPctg(int moves) {
+		double points = 0.0;
+		long games = 0;
+		for (int i = 0; i < moves; i++) {
+			points += moveWhite[i] + moveDraws[i] * 0.5;
+			games += getTotalGamesMove(i);
+		}
+		return games == 0 ? 0.0 : points / games;
+	}
+
+	/**
+	 * Ranks the ratings in descending order (1 is the highest rating), equal
+	 * ratings share the same rank (the next rank is skipped, like "1, 2, 2, 4").
+	 *
+	 * @param ratings Ratings to rank.
+	 * @return Rank of each rating.
+	 */
+	public static int[] rankRatings(int[] ratings) {
+		int[] sortedRatings = ratings.clone();
+		Arrays.sort(sortedRatings);
+
+		int[] ranks = new int[ratings.length];
+		for (int i = 0; i < ratings.length; i++) {
+			// rank = 1 + number of ratings higher than this one
+			int higherRatings = ratings.length - upperBound(sortedRatings, ratings[i]);
+			ranks[i] = higherRatings + 1;
+		}
+		return ranks;
+	}
+
+	/** Index of the first value greater than the key (the array is sorted in ascending order). */
+	private static int upperBound(int[] sortedValues, int key) {
+		int low = 0;
+		int high = sortedValues.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sortedValues[mid] <= key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,258 @@
+package com.ejaque.openingexplorer.model;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Node of the transposition table used when searching for good moves. There is
+ * only one node per position (no matter the move order used to reach it), so the
+ * explorer stats and the results of the search are reused when the same
+ * position is reached again by a different path.
+ * <br>
+ * Nodes are linked by the moves explored (edges), so the search tree is a DAG:
+ * the reach probability of a node combines all the paths reaching it, and when
+ * it changes (a new edge reaching it or one of its ancestors) the change is
+ * propagated to all the descendants. A move back to a position of its own path
+ * (a cycle) adds no probability.
+ *
+ * <p>
+ * Attributes:
+ * </p>
+ * <ul>
+ * <li>{@code positionKey} - Zobrist key of the position (see
+ * {@link com.ejaque.openingexplorer.util.ZobristUtil}).</li>
+ * <li>{@code stats} - Explorer stats for the position, NULL until they are
+ * fetched.</li>
+ * <li>{@code topTierStats} - Explorer stats of the "top tier" variant (like
+ * masters), NULL if disabled or not fetched. Only used for the good moves
+ * columns, the search is driven by {@code stats}.</li>
+ * <li>{@code playerStats} - Stats of the games of each player (by username)
+ * in this position, from the player explorer (see
+ * {@link com.ejaque.openingexplorer.service.PlayerExplorerService}). Updated
+ * while the responses are streamed, so it can be read and written by several
+ * threads.</li>
+ * <li>{@code reachProbability} - Probability of reaching this position (at
+ * most 1.0), combining the paths (move orders) found to reach it: each path is
+ * the product of the weights of its edges. Opponent moves are SUMMED, but moves
+ * of our player are alternatives (only one of them is played), so in every
+ * position of our player the MAX of them is taken, even when the paths of the
+ * alternatives meet again later by transposition.</li>
+ * <li>{@code reachedByPlayerMove} - TRUE if the incoming edges are moves of
+ * our player (all the moves reaching a position are from the same side).</li>
+ * <li>{@code exploredProbability} - Reach probability when the moves of this
+ * position were explored (if it grows later, moves discarded by probability
+ * may need to be explored).</li>
+ * <li>{@code exploredDepth} - Remaining depth used when this position was
+ * explored (0 for "extra depth calls" that only fetch stats), -1 if not explored
+ * yet. A new path reaching the node with the same or less depth reuses the
+ * results.</li>
+ * <li>{@code avgRatingForAllMoves} - Result of the search for this position
+ * (weighted avg rating of all moves).</li>
+ * <li>{@code totalPaths} - Number of incoming edges (moves from other
+ * positions, plus one for the starting position) found to reach this
+ * position.</li>
+ * </ul>
+ */
+@Getter
+@Setter
+@ToString(exclude = { "stats", "topTierStats", "playerStats", "goodMoves", "children", "parents" })
+public class SearchNode {
+
+	private final long positionKey;
+	private PositionStats stats;
+	private PositionStats topTierStats;
+	private double reachProbability;
+	private int exploredDepth = -1;
+	private double exploredProbability;
+	private double avgRatingForAllMoves;
+	private int totalPaths;
+	private boolean reachedByPlayerMove;
+
+	/** Probability of the paths from outside the DAG (see {@link #addPath(double)}). */
+	private double pathProbability;
+
+	private final Map<String, PositionStats> playerStats = new ConcurrentHashMap<>();
+
+	/** Good moves found in this position, by move (UCI). */
+	private final Map<String, GoodMove> goodMoves = new LinkedHashMap<>();
+
+	/** Outgoing edges: positions reached by the moves explored, with the weight of each edge. */
+	private final Map<SearchNode, Double> children = new LinkedHashMap<>();
+
+	/** Incoming edges (cycles excluded): positions this one is reached from, with the weight of each edge. */
+	private final Map<SearchNode, Double> parents = new LinkedHashMap<>();
+
+	/** Max edges a change of the reach probability is propagated through (guards against very deep DAGs). */
+	private static final int MAX_PROPAGATION_DEPTH = 64;
+
+	/** Changes smaller than this are not propagated. */
+	private static final double MIN_PROPAGATED_PROBABILITY = 1E-12;
+
+	public SearchNode(long positionKey) {
+		this.positionKey = positionKey;
+	}
+
+	/**
+	 * Registers a new path reaching this position from outside the DAG (the
+	 * starting position), adding its probability to the reach probability of
+	 * the node and its descendants.
+	 *
+	 * @param pathProbability Probability of the new path.
+	 */
+	public void addPath(double pathProbability) {
+		totalPaths++;
+		this.pathProbability += pathProbability;
+		updateReachProbability(0);
+	}
+
+	/**
+	 * Adds an edge to a position reached by a move from this one. If the edge is
+	 * new, the reach probability of the child (and its descendants) is updated
+	 * with the reach probability of this node multiplied by the weight, and will
+	 * also get any later change of it. An edge back to a position of the path
+	 * (cycle) is kept, but adds no probability.
+	 *
+	 * @param child      Node of the position reached.
+	 * @param weight     Share of the reach probability passed through the move
+	 *                   (popularity of the move for the opponent, 1.0 for our
+	 *                   player).
+	 * @param playerMove TRUE if it's a move of our player (alternatives: the max
+	 *                   of them is taken, instead of the sum).
+	 * @return TRUE if the edge is new.
+	 */
+	public boolean addChild(SearchNode child, double weight, boolean playerMove) {
+		if (children.putIfAbsent(child, weight) != null) {
+			return false;
+		}
+		child.totalPaths++;
+		if (child.isAncestorOf(this)) {
+			return true;
+		}
+		child.reachedByPlayerMove = playerMove;
+		child.parents.put(this, weight);
+		child.updateReachProbability(0);
+		return true;
+	}
+
+	/** Checks if a node is this one or one of its descendants. */
+	private boolean isAncestorOf(SearchNode node) {
+		Set<SearchNode> visited = new HashSet<>();
+		Deque<SearchNode> pending = new ArrayDeque<>();
+		pending.add(this);
+		while (!pending.isEmpty()) {
+			SearchNode current = pending.poll();
+			if (current == node) {
+				return true;
+			}
+			if (visited.add(current)) {
+				pending.addAll(current.children.keySet());
+			}
+		}
+		return false;
+	}
+
+	/** Recalculates the reach probability from the incoming edges, propagating it to the descendants if it grew. */
+	private void updateReachProbability(int depth) {
+		// the clamp only absorbs rounding errors, the paths are combined without overcounting
+		double probability = Math.min(1.0, calculateReachProbability());
+		if (probability - reachProbability < MIN_PROPAGATED_PROBABILITY) {
+			return;
+		}
+		reachProbability = probability;
+		for (GoodMove goodMove : goodMoves.values()) {
+			goodMove.setProbabilityOcurring(reachProbability);
+		}
+		if (depth >= MAX_PROPAGATION_DEPTH) {
+			return;
+		}
+		for (SearchNode child : children.keySet()) {
+			child.updateReachProbability(depth + 1);
+		}
+	}
+
+	/**
+	 * Calculates the reach probability of this position from the paths of its
+	 * ancestors: for each ancestor, the probability of going from it to this
+	 * position (taking the MAX of the moves of our player and SUMMING the
+	 * opponent moves) multiplied by the probability of its paths from outside
+	 * the DAG. Combining the probabilities on the ancestors (instead of summing
+	 * the incoming edges) avoids adding up paths that go through different
+	 * moves of our player in a shared ancestor, as only one of them is played.
+	 */
+	private double calculateReachProbability() {
+		Map<SearchNode, Double> probabilityFrom = new HashMap<>();
+		probabilityFrom.put(this, 1.0);
+		Set<SearchNode> ancestors = getAncestors();
+		double probability = pathProbability;
+		for (SearchNode ancestor : ancestors) {
+			if (ancestor.pathProbability > 0) {
+				probability += ancestor.pathProbability * ancestor.getProbabilityTo(ancestors, probabilityFrom);
+			}
+		}
+		return probability;
+	}
+
+	/** Gets the nodes this one is reached from (all the incoming edges up to the starting position, cycles excluded). */
+	private Set<SearchNode> getAncestors() {
+		Set<SearchNode> ancestors = new HashSet<>();
+		Deque<SearchNode> pending = new ArrayDeque<>(parents.keySet());
+		while (!pending.isEmpty()) {
+			SearchNode current = pending.poll();
+			if (ancestors.add(current)) {
+				pending.addAll(current.parents.keySet());
+			}
+		}
+		return ancestors;
+	}
+
+	/**
+	 * Gets the probability of reaching a target position from this one, through
+	 * the edges between the ancestors of the target (memoized in
+	 * {@code probabilityFrom}, which starts with the target itself).
+	 */
+	private double getProbabilityTo(Set<SearchNode> targetAncestors, Map<SearchNode, Double> probabilityFrom) {
+		Double memoized = probabilityFrom.get(this);
+		if (memoized != null) {
+			return memoized;
+		}
+		double probability = 0.0;
+		for (SearchNode child : children.keySet()) {
+			Double weight = child.parents.get(this); // NULL for cycles
+			if (weight == null || !(targetAncestors.contains(child) || probabilityFrom.containsKey(child))) {
+				continue;
+			}
+			double childProbability = weight * child.getProbabilityTo(targetAncestors, probabilityFrom);
+			probability = child.reachedByPlayerMove ? Math.max(probability, childProbability) : probability + childProbability;
+		}
+		probabilityFrom.put(this, probability);
+		return probability;
+	}
+
+	/** Checks if the reach probability grew since the moves were explored. */
+	public boolean isReachProbabilityIncreased() {
+		return reachProbability > exploredProbability + MIN_PROPAGATED_PROBABILITY;
+	}
+
+	public GoodMove getGoodMove(String move) {
+		return goodMoves.get(move);
+	}
+
+	public void addGoodMove(GoodMove goodMove) {
+		goodMoves.put(goodMove.getMove(), goodMove);
+	}
+
+	public Collection<GoodMove> getGoodMoves() {
+		return goodMoves.values();
+	}
+}
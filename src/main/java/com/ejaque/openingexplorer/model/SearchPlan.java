@@ -0,0 +1,39 @@
+package com.ejaque.openingexplorer.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Params of a search and its estimated cost (see
+ * {@link com.ejaque.openingexplorer.service.SearchPlannerService}).
+ *
+ * <p>
+ * Attributes:
+ * </p>
+ * <ul>
+ * <li>{@code maxDepthHalfMoves}, {@code minProbabilityOfMove},
+ * {@code minGamesToExploreOpponentMove}, {@code minGamesToChooseCandidateMove},
+ * {@code opponentCoverage} - Same as the search params.</li>
+ * <li>{@code evalsEnabled} - TRUE if the engine evaluates the good moves.</li>
+ * <li>{@code positions} - Estimated positions fetched from the explorer
+ * (nothing cached, no transpositions, so it's an upper bound).</li>
+ * <li>{@code engineEvals} - Estimated engine evals.</li>
+ * <li>{@code wallTimeSecs} - Estimated time of the search.</li>
+ * </ul>
+ */
+@Builder(toBuilder = true)
+@Getter
+@ToString
+public class SearchPlan {
+
+	private int maxDepthHalfMoves;
+	private double minProbabilityOfMove;
+	private double minGamesToExploreOpponentMove;
+	private int minGamesToChooseCandidateMove;
+	private double opponentCoverage;
+	private boolean evalsEnabled;
+	private long positions;
+	private long engineEvals;
+	private double wallTimeSecs;
+}
@@ -0,0 +1,78 @@
+package com.ejaque.openingexplorer.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Pending position in the frontier of the search (one call to
+ * searchBestMove in the recursive search), expanded by the frontier workers or
+ * by the best-first search.
+ * <br>
+ * The position is NOT saved as a FEN: the task only has the move played from
+ * the parent task (the board is rebuilt replaying the moves from the starting
+ * position when the task is expanded), and its Zobrist key.
+ *
+ * <p>
+ * Attributes:
+ * </p>
+ * <ul>
+ * <li>{@code parent} - Task for the previous position, NULL for the starting
+ * position.</li>
+ * <li>{@code move} - Move (UCI, like the explorer returns it) played in the
+ * parent position to reach this one, NULL for the starting position.</li>
+ * <li>{@code positionKey} - Zobrist key of the position (see
+ * {@link com.ejaque.openingexplorer.util.ZobristUtil}).</li>
+ * <li>{@code color} - Color to play in the position.</li>
+ * <li>{@code remainingDepth} - Remaining depth (half moves).</li>
+ * <li>{@code probability} - Probability of the path (move order) reaching the
+ * position.</li>
+ * <li>{@code edgeWeight} - Share of the probability of the parent passed
+ * through the move (see {@link SearchNode#addChild}).</li>
+ * <li>{@code extraDepthCall} - TRUE when the position is only fetched to get
+ * its stats (position reached by a good move at the last depth), its moves are
+ * not explored.</li>
+ * </ul>
+ */
+@Builder(toBuilder = true)
+@Getter
+@ToString(exclude = "parent")
+public class SearchTask {
+
+	private SearchTask parent;
+	private String move;
+	private long positionKey;
+	private String color;
+	private int remainingDepth;
+	private double probability;
+	private double edgeWeight;
+	private boolean extraDepthCall;
+
+	/** Gets the moves played from the starting position to reach this position, in order. */
+	public Deque<String> getMoves() {
+		Deque<String> moves = new ArrayDeque<>();
+		for (SearchTask task = this; task.getParent() != null; task = task.getParent()) {
+			moves.addFirst(task.getMove());
+		}
+		return moves;
+	}
+
+	/**
+	 * Gets the depth explored for this position (0 for extra depth calls), same
+	 * as {@link SearchNode#getExploredDepth()}.
+	 */
+	public int getDepthToExplore() {
+		return extraDepthCall ? 0 : remainingDepth;
+	}
+
+	/**
+	 * Checks if every move explored from this task is also explored from the
+	 * other task (same position with the same or more depth and probability).
+	 */
+	public boolean isDominatedBy(SearchTask other) {
+		return other.getDepthToExplore() >= getDepthToExplore() && other.getProbability() >= probability;
+	}
+}
@@ -0,0 +1,57 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.ExplorerQuery;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.storage.PositionStatsFileReader;
+import com.ejaque.openingexplorer.util.ZobristUtil;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Explorer stats from a binary position stats file (memory-mapped, see
+ * {@link PositionStatsFileReader}), for example one written from PGN files with
+ * "explorer.pgn.binaryOutputFile". Positions are looked up by Zobrist key, the
+ * tree is not loaded onto the heap.
+ */
+@Service
+@ConditionalOnProperty(name = "explorer.source", havingValue = "binary")
+public class BinaryFileExplorerDataSource implements ExplorerDataSource {
+
+	@Value("${explorer.binary.file:position-stats.bin}")
+	private String file = "position-stats.bin";
+
+	private PositionStatsFileReader reader;
+
+	@PostConstruct
+	public void open() throws IOException {
+		reader = new PositionStatsFileReader(Paths.get(file));
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Gets the stats of a position from the file. The query is ignored (the file
+	 * has the games used to build it).
+	 */
+	@Override
+	public PositionStats getPositionStats(String fen, ExplorerQuery query) {
+		PositionStats stats = reader.get(ZobristUtil.getKey(fen));
+		return stats == null ? PositionStats.empty() : stats;
+	}
+
+	@Override
+	public String getName() {
+		return "binary";
+	}
+}
@@ -0,0 +1,101 @@
+package com.ejaque.openingexplorer.service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.ejaque.openingexplorer.model.EvaluationResult;
+
+/**
+ * Engine used to evaluate the positions of the search. Only one
+ * implementation is active, selected with "engine.backend":
+ * <ul>
+ * <li>"chessify" (default): remote engine through the Chessify websocket, one
+ * position at a time, see {@link ChessEngineService}.</li>
+ * <li>"local": pool of local UCI engine processes evaluating positions
+ * concurrently, see {@link LocalUciEngineService}.</li>
+ * </ul>
+ * Evaluations are requested first and their results taken later, so several
+ * positions can be evaluated while the caller does something else (the search
+ * only waits for an eval when it needs its value). Requests go through a
+ * bounded queue ("engine.queueCapacity"): requesting BLOCKS while it's full.
+ */
+public interface ChessEngine {
+
+	/** Starts the engine (server or processes), before requesting evaluations. */
+	void start() throws Exception;
+
+	/**
+	 * Requests evaluating a single move in a position, without waiting for the
+	 * result (only while the queue is full). A position already requested is not
+	 * evaluated again.
+	 *
+	 * @param fenCode Base position.
+	 * @param move    Move made from the base position in UCI format, like "e2e4".
+	 *                If NULL, the base position is evaluated.
+	 * @param depth   Max depth to go for the evaluation (in half moves).
+	 * @return Future completed (in an engine thread) when the evaluation is
+	 *         ready, exceptionally if it failed.
+	 */
+	CompletableFuture<EvaluationResult> evaluate(String fenCode, String move, int depth);
+
+	/** Same as {@link #evaluate(String, String, int)}, for taking the result later with {@link #getEvaluationResult}. */
+	default void requestEvaluation(String fenCode, String move, int depth) {
+		evaluate(fenCode, move, depth);
+	}
+
+	/**
+	 * Requests evaluating a list of moves in a position.
+	 *
+	 * @param fenCode Base position.
+	 * @param moves   Moves made from the base position in UCI format.
+	 * @param depth   Max depth to go for the evaluation (in half moves).
+	 */
+	default void requestEvaluationList(String fenCode, List<String> moves, int depth) {
+		for (String move : moves) {
+			requestEvaluation(fenCode, move, depth);
+		}
+	}
+
+	/**
+	 * Requests evaluating several moves of a position in a single search, with
+	 * one line per move (MultiPV) and the search restricted to the moves
+	 * ("go searchmoves"), without waiting for the result (only while the queue
+	 * is full).
+	 *
+	 * @param fenCode     Position to search.
+	 * @param searchMoves Moves to evaluate in UCI format, empty to search all the
+	 *                    moves (the best lines).
+	 * @param multiPv     Lines returned (MultiPV).
+	 * @param depth       Max depth to go for the search (in half moves).
+	 * @return Future with one result per line, best first: its first move (as
+	 *         best move), the eval after it (white's point of view) and its PV.
+	 *         Moves the engine sends no score for are missing.
+	 */
+	CompletableFuture<List<EvaluationResult>> evaluateLines(String fenCode, List<String> searchMoves, int multiPv,
+			int depth);
+
+	/** Evaluates the moves of a position in a single search, see {@link #evaluateLines}. */
+	default CompletableFuture<List<EvaluationResult>> evaluateMoves(String fenCode, List<String> moves, int depth) {
+		return evaluateLines(fenCode, moves, moves.size(), depth);
+	}
+
+	/** Gets the best lines of a position in a single search, see {@link #evaluateLines}. */
+	default CompletableFuture<List<EvaluationResult>> evaluateTopMoves(String fenCode, int lines, int depth) {
+		return evaluateLines(fenCode, List.of(), lines, depth);
+	}
+
+	/** Starts evaluating the requested positions (if they are not started as soon as requested). */
+	void startEvaluations();
+
+	/**
+	 * Gets the evaluation of a move requested before, BLOCKS until it is ready.
+	 *
+	 * @param fenCode Base position.
+	 * @param move    Move made from the base position, NULL for the base position.
+	 * @return The evaluation (white's point of view).
+	 */
+	EvaluationResult getEvaluationResult(String fenCode, String move);
+
+	/** Gets a short name for logging. */
+	String getName();
+}
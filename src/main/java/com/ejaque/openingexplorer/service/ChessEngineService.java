@@ -11,43 +11,119 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
-import com.ejaque.openingexplorer.config.Constants;
 import com.ejaque.openingexplorer.model.EvaluationResult;
 import com.ejaque.openingexplorer.util.PgnUtil;
 import com.ejaque.openingexplorer.util.UciUtil;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Service that evaluates positions, connects internally with Chessify.
  * <br>
  * NOTE: this is SINGLE THREADED as Chessify websocket channel is single threaded. All evaluations requested are put in a "queue" for completion.
+ * <br>
+ * The websocket session is opened once and kept open across evaluations (so the engine keeps its hash table): each
+ * position is sequenced with "stop" + "isready", and "position" + "go" are only sent after "readyok" (messages of the
+ * previous search are ignored until then). The session is only reopened if it fails, retrying the current evaluation.
+ * <br>
+ * Evaluations are requested with {@link #evaluate(String, String, int)}, that returns a future right away: requests go
+ * to a bounded queue (the caller BLOCKS while it's full) and are sent one by one by a dedicated engine thread, that
+ * waits for each "bestmove" (the websocket listener only completes the current search, it never blocks). Positions
+ * already evaluated with enough depth, or being evaluated, are taken from the {@link EvaluationStoreService}.
+ * See {@link LocalUciEngineService} for evaluating positions concurrently ("engine.backend: local").
  */
 @Service
+@ConditionalOnProperty(name = "engine.backend", havingValue = "chessify", matchIfMissing = true)
 @Slf4j
-public class ChessEngineService {
+public class ChessEngineService implements ChessEngine {
 
-    private WebSocket webSocket;
+    private volatile WebSocket webSocket;
 
-    private final Queue<Runnable> evaluationQueue = new ConcurrentLinkedQueue<>();
-    
-    private ExecutorService evaluationExecutor = Executors.newSingleThreadExecutor();
+    /** HTTP client for the websocket, reused when reconnecting. */
+    private HttpClient webSocketClient;
+
+    /** TRUE while waiting for "readyok", messages until then belong to the previous search and are ignored. */
+    private volatile boolean awaitingReady;
+
+    /** TRUE when the engine thread is started (see {@link #startEvaluations()}). */
+    private final AtomicBoolean engineThreadStarted = new AtomicBoolean();
+
+    /** TRUE after {@link #shutdownEvaluations()}, so closing the websocket is not a failure. */
+    private volatile boolean shuttingDown;
+
+    /** Max reconnections for one evaluation, after that it fails and the next one is started. */
+    private static final int MAX_RECONNECT_ATTEMPTS = 3;
+
+    /** Evaluations waiting for the engine, requesting more BLOCKS until there's room (backpressure). */
+    @Value("${engine.queueCapacity:64}")
+    private int queueCapacity = 64;
+
+    /** Max time to wait for the "bestmove" of a search, after that the session is reopened and the search sent again. */
+    @Value("${engine.chessify.searchTimeoutSecs:300}")
+    private long searchTimeoutSecs = 300;
+
+    private BlockingQueue<EvaluationRequest> evaluationQueue;
+
+    /** Engine thread: sends the evaluations in the queue to the engine, one by one. */
+    private ExecutorService evaluationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+    	Thread thread = new Thread(runnable, "chessify-engine");
+    	thread.setDaemon(true);
+    	return thread;
+    });
+
+    /** Search running in the engine, completed by the websocket listener ("bestmove" or connection lost). */
+    private volatile CompletableFuture<List<EvaluationResult>> currentSearch;
+
+    /**
+     * Last command sent in the session (see {@link #sendCommand(String)}): a websocket only allows one pending
+     * send, so each command is sent when the previous one is done.
+     */
+    private CompletableFuture<WebSocket> lastSend = CompletableFuture.completedFuture(null);
+
+    /** Session of {@link #lastSend}. */
+    private WebSocket lastSendSession;
+
+    /** Guards {@link #lastSend} (not the service lock, the websocket listener sends commands too). */
+    private final Object sendLock = new Object();
+
+    /** An evaluation waiting in the queue (one line for a single position, or several lines with MultiPV). */
+    private static class EvaluationRequest {
+    	private final String fenCode;
+    	private final List<String> searchMoves;
+    	private final int multiPv;
+    	private final int depth;
+    	private final CompletableFuture<List<EvaluationResult>> future;
+
+    	private EvaluationRequest(String fenCode, List<String> searchMoves, int multiPv, int depth,
+    			CompletableFuture<List<EvaluationResult>> future) {
+    		this.fenCode = fenCode;
+    		this.searchMoves = searchMoves;
+    		this.multiPv = multiPv;
+    		this.depth = depth;
+    		this.future = future;
+    	}
+    }
 
     /**
      * FEN code of the position currently under evaluation. See {@link PgnUtil#getShortFenCode(String)}.
@@ -58,43 +134,46 @@ public class ChessEngineService {
      * Short FEN code of the position currently under evaluation. See {@link PgnUtil#getShortFenCode(String)}.
      */
     private String shortFenCodeCurrEval;
-    
-    
-    /** Current evaluation for the position. */
-    private double currEval;  // TODO: consider using a map  depth -> eval, for a richer analysis of eval evolution
-    
-    
-    private CompletableFuture<Void> bestMoveReceived = new CompletableFuture<>();
-    
-    
-	/**
-	 * Flag used to mark the current eval as completed. You always have to wait for
-	 * this to be completed before requesting a new eval to the UCI engine.
-	 */
-    private CompletableFuture<Void> evalCompletedFlag = new CompletableFuture<Void>();
 
+    /** Depth of the current evaluation (sent with "go" after "readyok"). */
+    private int depthCurrEval;
+
+    /** Moves the current search is restricted to ("go searchmoves"), empty for all. */
+    private List<String> searchMovesCurrEval = List.of();
+
+    /** Lines (MultiPV) of the current search. */
+    private int multiPvCurrEval = 1;
     
-    /** Delay used before rquesting new eval to engine, might be useful to avoid requesting before the engine has completed previous eval. */
-	private static final long DELAY_NEW_EVAL = 500;
     
-	/**
-	 * This is a map from a Short FEN to Evaluation. Short FEN is normal FEN without
-	 * las 2 numbers (halfmove clock and move number).
-	 */
-    private Map<String, CompletableFuture<EvaluationResult>> shortFenToEvaluationMap = new ConcurrentHashMap<>();
-
+    /** Current evaluation for the position: last score of each line (MultiPV), by line number. */
+    private Map<Integer, EvaluationResult> linesCurrEval = new TreeMap<>();
+    
+    @Autowired
+    private SearchMetricsService searchMetricsService;
 
     @Autowired
-    private ApplicationEventPublisher eventPublisher;  // NOT USED: we use CompletableFuture instead, to wait for results directly
+    private EvaluationStoreService evaluationStoreService;
+
+    /** Start time of the current eval (System.nanoTime()), for the eval latency metric. */
+    private volatile long evalStartNanos;
 
-	/**
-	 * Color to play in the position to evaluate (is extracted from the FEN). Can be
-	 * {@link Constants#COLOR_WHITE} or {@link Constants#COLOR_BLACK}.
-	 */
-	private String colorToPlay;
-	
     
+    @PostConstruct
+    public void init() {
+    	evaluationQueue = new LinkedBlockingQueue<>(queueCapacity);
+    }
     
+    @Override
+    public void start() throws Exception {
+    	createChessEngineServer();
+    	startEvaluations();
+    }
+
+    @Override
+    public String getName() {
+    	return "chessify";
+    }
+
     public String createChessEngineServer() throws Exception {
         String queryParameters = "cores=32&engine=stockfish10&options=" 
             + URLEncoder.encode("{\"engine\":{\"type\":\"option\",\"options\":[\"Stockfish 16\",\"CorChess\"],\"description\":\"Select an engine to run.\"},\"syzygy\":{\"type\":\"boolean\",\"options\":[true,true],\"description\":\"Use Syzygy 6 pieces TB.\"}}", StandardCharsets.UTF_8) 
@@ -149,16 +228,22 @@ public class ChessEngineService {
     }
     
     
-    public void startWSSConnection() throws Exception {
+    public synchronized void startWSSConnection() throws Exception {
     	
     	String uri = getChessEngineWssUrl();
     	
         log.debug("startWSSConnection: {}", uri);
-        HttpClient client = HttpClient.newBuilder()
-                                      .executor(Executors.newFixedThreadPool(2))
-                                      .build();
+        if (webSocketClient == null) {
+        	webSocketClient = HttpClient.newBuilder()
+        			.executor(Executors.newFixedThreadPool(2, runnable -> {
+        				Thread thread = new Thread(runnable, "chessify-websocket");
+        				thread.setDaemon(true);
+        				return thread;
+        			}))
+        			.build();
+        }
 
-        WebSocket.Builder builder = client.newWebSocketBuilder();
+        WebSocket.Builder builder = webSocketClient.newWebSocketBuilder();
 
         builder.header("Pragma", "no-cache")
                .header("Origin", "https://chessify.me")
@@ -177,6 +262,7 @@ public class ChessEngineService {
             @Override
             public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
                 log.debug("WebSocket closed: [" + statusCode + "] " + reason);  
+                onConnectionLost(webSocket, "closed: [" + statusCode + "] " + reason);
                 return null;
             }
 
@@ -184,12 +270,30 @@ public class ChessEngineService {
             public CompletionStage<?> onText(WebSocket webSocket, CharSequence charMessage, boolean last) {
                 log.debug("Message received: " + charMessage);
                 
-                String message = charMessage.toString();
+                String message = charMessage.toString().trim();
+                
+                // "isready" handshake: the new position is only sent when the previous search is over
+                if (awaitingReady) {
+                	if (message.equals("readyok")) {
+                		awaitingReady = false;
+                		sendCommand("setoption name MultiPV value " + multiPvCurrEval);
+                		sendCommand("position fen " + fenCodeCurrEval);
+                		sendCommand("go depth " + depthCurrEval + (searchMovesCurrEval.isEmpty() ? ""
+                				: " searchmoves " + String.join(" ", searchMovesCurrEval)));
+                	}
+                	webSocket.request(1);
+                	return null;
+                }
                 
-                if (message.startsWith("info") && message.contains("score cp")) {
-                	currEval = UciUtil.getEval(fenCodeCurrEval, message);
-                	
+                // "score cp" or "score mate" (infinite eval), a mated position has no PV ("score mate 0")
+                if (message.startsWith("info") && message.contains(" score ") && !UciUtil.isBoundScore(message)) {
                 	List<String> uciMoves = UciUtil.extractMoves(message);
+                	linesCurrEval.put(UciUtil.getMultiPv(message), EvaluationResult.builder()
+                			.bestMove(uciMoves.isEmpty() ? null : uciMoves.get(0))
+                			.evaluation(UciUtil.getEval(fenCodeCurrEval, message))
+                			.depth(depthCurrEval)
+                			.pv(uciMoves)
+                			.build());
                 	if (UciUtil.detectSacrifices(fenCodeCurrEval, UciUtil.extractMoves(message)).size() > 0) {
                 		log.warn("Sacrifices in this PGN:\n" + PgnUtil.getPgn(fenCodeCurrEval, uciMoves));
                 	}
@@ -198,67 +302,14 @@ public class ChessEngineService {
                 if (message.startsWith("bestmove")) {
                     log.debug("BESTMOVE received. Polling queue for next eval...");
                     
-                    String bestMove = UciUtil.getBestMove(message);
-                    
-                    // mark current eval as completed
-                    EvaluationResult evalResult = EvaluationResult.builder()
-                    		.bestMove(bestMove)
-                    		.evaluation(currEval)
-                    		.build();
-                    
                     log.debug("COMPLETING FEN eval: " + fenCodeCurrEval);
-    				shortFenToEvaluationMap.get(shortFenCodeCurrEval).complete(evalResult);
-    				bestMoveReceived.complete(null);
-                    
-                    // Trigger next evaluation in the queue
-                    Runnable nextTask = evaluationQueue.poll();
-                    if (nextTask != null) {
-                        nextTask.run();
+                    // the engine thread sends the next evaluation in the queue
+                    CompletableFuture<List<EvaluationResult>> search = currentSearch;
+                    if (search != null) {
+                    	search.complete(new ArrayList<>(linesCurrEval.values()));
                     }
                 }
-				
-                // Check for 'bestmove' command to mark evaluation completion
-                if (false && message.startsWith("info depth")) {
-                    evalCompletedFlag.complete(null); // Mark the current evaluation as completed (unblocks waiting threads)
-                    evalCompletedFlag = new CompletableFuture<>(); // Reset for the next evaluation
-                    //sendCommand("quit");
-                    
-                    // Close the current WebSocket connection
-                    if (webSocket != null) {
-                        CompletableFuture<Void> closeFuture = new CompletableFuture<>();
-                        webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "Resetting connection").thenRun(() -> closeFuture.complete(null));
-                        closeFuture.join(); // Wait for the closure to complete
-                    }
 
-                    // Reinitialize the WebSocket connection
-                    try {
-						startWSSConnection();
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-
-                    // Re-send any necessary initialization commands
-                    sendInitCommands("rnbqkbnr/1ppppppp/p7/8/1P6/P7/2PPPPPP/RNBQKBNR b KQkq - 0 2", 25); // FIXME: hardcoded, but is unused code now
-                   
-                    
-//                    sendCommand("stop");
-//                    
-//                    try {
-//						Thread.sleep(2000);
-//					} catch (InterruptedException e) {
-//						// TODO Auto-generated catch block
-//						log.error("error with thread sleep", e);
-//					}
-//                    
-//                    sendCommand("setoption name MultiPV value 1");
-//                    //sendCommand("newucigame");
-//                    sendCommand("position fen rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1");
-//                    sendCommand("go depth infinite");
-
-                    return null;
-                }
-                
                 webSocket.request(1); // Requesting next message
                 return null;
             }
@@ -266,80 +317,163 @@ public class ChessEngineService {
             @Override
             public void onError(WebSocket webSocket, Throwable error) {
                 log.error("Error on WebSocket: " + error.getMessage());
+                onConnectionLost(webSocket, error.toString());
             }
         }).join();
 
         if (webSocket == null) {
             throw new RuntimeException("WebSocket connection failed");
         }    
+        sendCommand("setoption name MultiPV value 1");
+    }
+    
+    /** Opens the websocket session if it is not open (it is kept open across evaluations). */
+    private synchronized void ensureConnected() throws Exception {
+    	if (webSocket == null || webSocket.isOutputClosed() || webSocket.isInputClosed()) {
+    		startWSSConnection();
+    	}
+    }
+    
+    /**
+     * Called when the websocket is closed or fails: the current search fails, so
+     * the engine thread retries it in a new session.
+     */
+    private void onConnectionLost(WebSocket lostWebSocket, String reason) {
+    	if (shuttingDown || lostWebSocket != webSocket) {
+    		return;
+    	}
+    	webSocket = null;
+    	CompletableFuture<List<EvaluationResult>> search = currentSearch;
+    	if (search == null || search.isDone()) {
+    		log.warn("WebSocket lost while idle, reconnecting on next evaluation: {}", reason);
+    		return;
+    	}
+    	search.completeExceptionally(new IllegalStateException("WebSocket lost: " + reason));
+    }
+    
+    /** Engine thread: sends the evaluations in the queue one by one, until shutdown. */
+    private void runEvaluations() {
+    	while (!shuttingDown) {
+    		EvaluationRequest request;
+    		try {
+    			request = evaluationQueue.take();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			return;
+    		}
+    		evaluateInSession(request);
+    	}
+    }
+    
+    /**
+     * Evaluates a position in the open session (opening it if needed), BLOCKS
+     * until its "bestmove". If the session fails (or there's no "bestmove" in
+     * {@code searchTimeoutSecs}), it's reopened and the position sent again (up
+     * to {@link #MAX_RECONNECT_ATTEMPTS} times).
+     */
+    private void evaluateInSession(EvaluationRequest request) {
+    	for (int attempt = 0; ; attempt++) {
+    		try {
+    			ensureConnected();
+    			currentSearch = new CompletableFuture<>();
+    			sendInitCommands(request.fenCode, request.searchMoves, request.multiPv, request.depth);
+    			List<EvaluationResult> result = currentSearch.get(searchTimeoutSecs, TimeUnit.SECONDS);
+    			if (searchMetricsService != null) {
+    				searchMetricsService.recordEngineEval(System.nanoTime() - evalStartNanos);
+    			}
+    			request.future.complete(result);
+    			return;
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			request.future.completeExceptionally(e);
+    			return;
+    		} catch (Exception e) {
+    			Throwable error = e instanceof ExecutionException ? e.getCause() : e;
+    			if (shuttingDown || attempt >= MAX_RECONNECT_ATTEMPTS) {
+    				log.error("Error evaluating position: fen=" + request.fenCode, error);
+    				request.future.completeExceptionally(error);
+    				return;
+    			}
+    			log.warn("Engine session failed, reconnecting (attempt {}): {}", attempt + 1, error.toString());
+    			// a session with no "bestmove" (timeout) is still open: it's dropped, its messages are ignored
+    			WebSocket failedWebSocket = webSocket;
+    			webSocket = null;
+    			if (failedWebSocket != null) {
+    				failedWebSocket.abort();
+    			}
+    		}
+    	}
+    }
+    
+    public void sendInitCommands(String fenCode, int depth) {
+    	sendInitCommands(fenCode, List.of(), 1, depth);
     }
     
-    public void sendInitCommands(String fenCode, int depth) {    	
+    public void sendInitCommands(String fenCode, List<String> searchMoves, int multiPv, int depth) {    	
     	log.debug("Sending INIT commands. fenCode={}", fenCode);
     	
     	fenCodeCurrEval = fenCode;
     	shortFenCodeCurrEval = PgnUtil.getShortFenCode(fenCode);
+    	depthCurrEval = depth;
+    	searchMovesCurrEval = searchMoves;
+    	multiPvCurrEval = multiPv;
+    	linesCurrEval = new TreeMap<>();
     	
     	log.debug("Set shortFenCodeCurrEval={}", shortFenCodeCurrEval);
 
-        // set the element in the eval result map
-        shortFenToEvaluationMap.put(shortFenCodeCurrEval, new CompletableFuture<EvaluationResult>());
+        evalStartNanos = System.nanoTime();
 
+        // "position" and "go" are sent after "readyok" (see onText)
+        awaitingReady = true;
         sendCommand("stop");
-        sendCommand("setoption name MultiPV value 1");
-        //sendCommand("position fen rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1");
-        sendCommand("position fen " + fenCode);        
-        sendCommand("go depth " + depth);
-        
-        // Initialize evalCompletedFlag to a completed state
-        // FIXME: evalCompletedFlag = CompletableFuture.completedFuture(null);
+        sendCommand("isready");
     }
 
-    public void sendCommand(String command) {
+    /**
+     * Sends a command to the engine after the previous one (without waiting). If
+     * the send fails, the session is lost: the current search fails, so the
+     * engine thread retries it in a new session right away.
+     *
+     * @return Future completed when the command is sent.
+     */
+    public CompletableFuture<WebSocket> sendCommand(String command) {
     	log.debug("sendCommand: {}", command);
-        webSocket.sendText(command, true);
+    	WebSocket session = webSocket;
+    	CompletableFuture<WebSocket> send;
+    	synchronized (sendLock) {
+    		// a new session doesn't wait for the sends of the previous one
+    		CompletableFuture<WebSocket> previousSend = session == lastSendSession ? lastSend
+    				: CompletableFuture.completedFuture(session);
+    		send = previousSend.handle((sent, error) -> session).thenCompose(ignored -> session != null
+    				? session.sendText(command, true)
+    				: CompletableFuture.failedFuture(new IllegalStateException("WebSocket not open")));
+    		lastSend = send;
+    		lastSendSession = session;
+    	}
+    	send.whenComplete((sent, error) -> {
+    		if (error != null) {
+    			log.error("Error sending command to the engine: " + command, error);
+    			onConnectionLost(session, "error sending \"" + command + "\": " + error);
+    		}
+    	});
+    	return send;
     }
 
-    private void saveEvaluation(String fenCode, EvaluationResult evaluationResult) {
-    	
-    	String shortFenCode = PgnUtil.getShortFenCode(fenCode);
-    	
-    	shortFenToEvaluationMap.computeIfPresent(shortFenCode, (key, future) -> {
-            future.complete(evaluationResult);
-            return future;
-        });
-    }
-    
-    
+    /** Starts the engine thread (only the first time), that sends the evaluations in the queue. */
+    @Override
     public void startEvaluations() {
-
-        Runnable nextTask = evaluationQueue.poll();
-        if (nextTask != null) {
-            nextTask.run();
-        }
-        
-//    	evaluationExecutor.execute(() -> {
-//            try {
-//                while (true) {
-//                    Runnable nextTask = evaluationQueue.poll();
-//                    if (nextTask != null) {
-//                        nextTask.run();
-//                    } else {
-//                        // Sleep for a short duration to prevent busy waiting
-//                        Thread.sleep(100); // 100 milliseconds, adjust as needed
-//                    }
-//                }
-//            } catch (InterruptedException e) {
-//                Thread.currentThread().interrupt();
-//                log.error("Evaluation thread was interrupted", e);
-//            }
-//        });
+    	if (engineThreadStarted.compareAndSet(false, true)) {
+    		evaluationExecutor.execute(this::runEvaluations);
+    	}
     }    
     
     
     public void shutdownEvaluations() {
-    	// FIXME: end the connection to websocket here
-        evaluationExecutor.shutdown();
+    	shuttingDown = true;
+        evaluationExecutor.shutdownNow();
+        if (webSocket != null) {
+        	webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "Shutting down");
+        }
         
 //        evaluationExecutor.shutdownNow();
 //        try {
@@ -358,6 +492,7 @@ public class ChessEngineService {
 	 *                like "e2e4", "g8f3", etc.
 	 * @param depth   Max depth to go for the evaluation (in half moves).               
 	 */
+    @Override
     public void requestEvaluationList(String fenCode, List<String> moves, int depth) {
     	log.debug("requestEvaluationList: depth={}, moves={}", depth, moves);
     	for (String move : moves) {
@@ -366,55 +501,54 @@ public class ChessEngineService {
     }
 
 	/**
-	 * Request evaluating a single move in a position.
+	 * Request evaluating a single move in a position. BLOCKS while the queue is
+	 * full, so the engine thread must be started (see {@link #startEvaluations()})
+	 * before requesting more than "engine.queueCapacity" evaluations.
 	 * 
 	 * @param fenCode Base position
 	 * @param move    Move made from the base position (fenCode), in UCI format
 	 *                like "e2e4", "g8f3", etc. If null, the base position is evaluated. 
 	 * @param depth   Max depth to go for the evaluation (in half moves).               
+	 * @return Future completed (in the engine thread) when the evaluation is ready.
 	 */
-	public void requestEvaluation(String fenCode, String move, int depth) {
+	@Override
+	public CompletableFuture<EvaluationResult> evaluate(String fenCode, String move, int depth) {
 		
+        String finalFenCode = move != null ? PgnUtil.getFinalFen(fenCode, move) : fenCode;
+        
+        // a position already evaluated or requested (transposition) is not evaluated again
+        // (a search with no score fails, so it's not stored)
+        return evaluationStoreService.evaluate(finalFenCode, depth,
+        		() -> enqueue(finalFenCode, List.of(), 1, depth).thenApply(lines -> {
+        			if (lines.isEmpty()) {
+        				throw new IllegalStateException("Engine sent no score for: " + finalFenCode);
+        			}
+        			return lines.get(0);
+        		}));
+	}
 
-    	log.debug("requestEvaluation(...)");
-    	
-        // Create a task for evaluation
-        Runnable evalTask = () -> {
-
-            log.debug("Requesting new evaluation for move: {}", move);
-
-            String finalFenCode = PgnUtil.getFinalFen(fenCode, move);
-            colorToPlay = PgnUtil.getColorToPlay(fenCode);
-            
-            // Close the current WebSocket connection
-            if (webSocket != null) {
-                CompletableFuture<Void> closeFuture = new CompletableFuture<>();
-                webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "Resetting connection").thenRun(() -> closeFuture.complete(null));
-                closeFuture.join(); // Wait for the closure to complete
-            }
+	/**
+	 * Requests a search with several lines (MultiPV), restricted to some moves if
+	 * there are. BLOCKS while the queue is full.
+	 */
+	@Override
+	public CompletableFuture<List<EvaluationResult>> evaluateLines(String fenCode, List<String> searchMoves,
+			int multiPv, int depth) {
+		return enqueue(fenCode, searchMoves, multiPv, depth);
+	}
 
-            // Reinitialize the WebSocket connection
-            try {
-				startWSSConnection();
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-            
-            // Re-send any necessary initialization commands
-            sendInitCommands(finalFenCode, depth);
-        };
-
-        // Add task to queue
-        log.debug("adding evalTask to the queue: move={}", move);
-        evaluationQueue.add(evalTask);
-
-//        // If it's the only task in the queue, start it immediately
-//        if (evaluationQueue.size() == 1) {
-//            log.debug("running evalTask: move={}", move);
-//        	evalTask.run();
-//        }
-        
+	/** Adds an evaluation to the queue, BLOCKS while it's full. */
+	private CompletableFuture<List<EvaluationResult>> enqueue(String finalFenCode, List<String> searchMoves,
+			int multiPv, int depth) {
+        CompletableFuture<List<EvaluationResult>> future = new CompletableFuture<>();
+        log.debug("adding evaluation to the queue: fen={} searchMoves={} multiPv={}", finalFenCode, searchMoves, multiPv);
+        try {
+        	evaluationQueue.put(new EvaluationRequest(finalFenCode, searchMoves, multiPv, depth, future));
+        } catch (InterruptedException e) {
+        	Thread.currentThread().interrupt();
+        	future.completeExceptionally(e);
+        }
+        return future;
 	}
 
 	
@@ -425,27 +559,27 @@ public class ChessEngineService {
 	 * @param fenCode FEN for the position to evaluate
 	 * @return The evaluation
 	 */
+    @Override
     public EvaluationResult getEvaluationResult(String fenCode, String move) {
     	
     	log.debug("getEvaluationResult: move={} fenCode={}", move, fenCode);
+    	long startNanos = System.nanoTime();
     	
-        // Wait for the bestmove message to be received
-        bestMoveReceived.join();
-
-        // Reset the CompletableFuture for the next usage
-        bestMoveReceived = new CompletableFuture<>();
-        
-        
     	// finalFenCode is the FEN after making the move, or the same FEN if move is NULL
     	String finalFenCode = move != null? PgnUtil.getFinalFen(fenCode, move) : fenCode;
     	
     	String shortFenCode = PgnUtil.getShortFenCode(finalFenCode);
     	log.debug("getEvaluationResult: shortFEN={}", shortFenCode);
-        CompletableFuture<EvaluationResult> evaluationFuture = shortFenToEvaluationMap.computeIfAbsent(shortFenCode, k -> new CompletableFuture<>());
-        //CompletableFuture<EvaluationResult> evaluationFuture = shortFenToEvaluationMap.get(shortFenCode);
+        CompletableFuture<EvaluationResult> evaluationFuture = evaluationStoreService.find(finalFenCode);
+        if (evaluationFuture == null) {
+        	throw new IllegalStateException("Evaluation not requested: " + finalFenCode);
+        }
 
         EvaluationResult result = evaluationFuture.join(); // This will BLOCK until the future is completed
         log.debug("Evaluation completed for bestMove={}: eval={}", result.getBestMove(), result.getEvaluation());
+        if (searchMetricsService != null) {
+        	searchMetricsService.recordEngineEvalBlocked(System.nanoTime() - startNanos);
+        }
         
         return result;
     }
@@ -0,0 +1,346 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.EvaluationResult;
+import com.ejaque.openingexplorer.util.PgnUtil;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent (on-disk) store of the engine evaluations, shared by the engine
+ * backends (see {@link ChessEngine}) and across runs.
+ * <br>
+ * Positions are identified by their short FEN (see
+ * {@link PgnUtil#getShortFenCode(String)}) and each one keeps its deepest
+ * evaluation (depth, score, best move, PV and time). A request is answered
+ * from the store when the stored depth is at least the requested one,
+ * otherwise the engine is called and the new (deeper) evaluation replaces the
+ * old one.
+ * <br>
+ * Concurrent requests for the same position share the same evaluation (a
+ * request waits for a running one if its depth is enough). Failed evaluations
+ * are kept as pending (so they can be read) until the position is requested
+ * again.
+ * <br>
+ * Entries live in memory in LRU order (bounded by {@code maxEntries}) and are
+ * appended to a JSON-lines file, compacted when loading and on shutdown (like
+ * the {@link PositionStatsCacheService}).
+ */
+@Service
+@Slf4j
+public class EvaluationStoreService {
+
+	/** Set to FALSE to keep the evaluations only in memory (not read nor written to the file). */
+	@Value("${engine.store.enabled:true}")
+	private boolean enabled = true;
+
+	/** JSON-lines file where the evaluations are persisted. */
+	@Value("${engine.store.file:evaluation-store.jsonl}")
+	private String storeFilePath = "evaluation-store.jsonl";
+
+	/** Max positions kept, the least recently used are evicted above this size. */
+	@Value("${engine.store.maxEntries:1000000}")
+	private int maxEntries = 1000000;
+
+	/** Infinite scores (mates) are written as "Infinity". */
+	private final Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+	/** Stored evaluations in access order, by short FEN. */
+	private final Map<String, StoredEvaluation> entries = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, StoredEvaluation> eldest) {
+			return size() > maxEntries;
+		}
+	};
+
+	/** Evaluations running (or failed), by short FEN. */
+	private final Map<String, PendingEvaluation> pendingEvaluations = new ConcurrentHashMap<>();
+
+	private BufferedWriter appendWriter;
+
+	private final AtomicInteger totalHits = new AtomicInteger();
+	private final AtomicInteger totalCoalesced = new AtomicInteger();
+	private final AtomicInteger totalMisses = new AtomicInteger();
+
+	/** One line of the store file. */
+	private static class StoredEvaluation {
+		/** Short FEN. */
+		String k;
+		/** Depth (half moves). */
+		int d;
+		/** Evaluation (white's point of view). */
+		double e;
+		/** Best move. */
+		String m;
+		/** PV (moves separated by spaces). */
+		String pv;
+		/** Time (epoch millis) of the evaluation. */
+		long t;
+
+		EvaluationResult toResult() {
+			return EvaluationResult.builder()
+					.evaluation(e)
+					.bestMove(m)
+					.depth(d)
+					.pv(pv == null || pv.isEmpty() ? List.of() : Arrays.asList(pv.split(" ")))
+					.build();
+		}
+	}
+
+	/** An evaluation requested to the engine. */
+	private static class PendingEvaluation {
+		private final int depth;
+		private final CompletableFuture<EvaluationResult> future;
+
+		private PendingEvaluation(int depth, CompletableFuture<EvaluationResult> future) {
+			this.depth = depth;
+			this.future = future;
+		}
+	}
+
+	@PostConstruct
+	public synchronized void load() throws IOException {
+		if (!enabled) {
+			log.info("Evaluation store file is DISABLED (evaluations kept only in memory)");
+			return;
+		}
+
+		Path path = Paths.get(storeFilePath);
+		int totalLines = 0;
+		if (Files.exists(path)) {
+			try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					totalLines++;
+					try {
+						StoredEvaluation entry = gson.fromJson(line, StoredEvaluation.class);
+						if (entry != null && entry.k != null) {
+							putIfDeeper(entry);
+						}
+					} catch (JsonSyntaxException e) {
+						// a run that was killed while writing can leave a truncated last line
+						log.warn("Ignoring corrupt line {} in evaluation store {}", totalLines, storeFilePath);
+					}
+				}
+			}
+		}
+		log.info("Evaluation store loaded: positions={} fileLines={} file={}", entries.size(), totalLines, storeFilePath);
+
+		if (totalLines > entries.size()) {
+			compact();
+		}
+		appendWriter = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Gets the evaluation of a position from the store, a running evaluation or
+	 * the engine (in this order).
+	 *
+	 * @param fenCode   Position to evaluate.
+	 * @param depth     Min depth of the evaluation (in half moves).
+	 * @param evaluator Requests the evaluation to the engine (only called if
+	 *                  there's no evaluation with enough depth).
+	 * @return Future completed when the evaluation is ready (already completed if
+	 *         it's stored).
+	 */
+	public CompletableFuture<EvaluationResult> evaluate(String fenCode, int depth,
+			Supplier<CompletableFuture<EvaluationResult>> evaluator) {
+		String shortFenCode = PgnUtil.getShortFenCode(fenCode);
+		EvaluationResult stored = get(shortFenCode, depth);
+		if (stored != null) {
+			totalHits.incrementAndGet();
+			return CompletableFuture.completedFuture(stored);
+		}
+
+		PendingEvaluation pending = new PendingEvaluation(depth, new CompletableFuture<>());
+		PendingEvaluation running = pendingEvaluations.compute(shortFenCode,
+				(key, existing) -> existing != null && existing.depth >= depth
+						&& !existing.future.isCompletedExceptionally() ? existing : pending);
+		if (running != pending) {
+			totalCoalesced.incrementAndGet();
+			return running.future;
+		}
+
+		totalMisses.incrementAndGet();
+		CompletableFuture<EvaluationResult> evaluation;
+		try {
+			evaluation = evaluator.get();
+		} catch (RuntimeException e) {
+			// the requests waiting for this evaluation must fail too (a later request retries it)
+			pending.future.completeExceptionally(e);
+			return pending.future;
+		}
+		evaluation.whenComplete((result, error) -> {
+			if (error != null) {
+				pending.future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+				return;
+			}
+			put(shortFenCode, depth, result);
+			pendingEvaluations.remove(shortFenCode, pending);
+			pending.future.complete(result);
+		});
+		return pending.future;
+	}
+
+	/**
+	 * Finds the evaluation of a position, running or stored (with any depth).
+	 *
+	 * @return The evaluation, NULL if the position was never requested.
+	 */
+	public CompletableFuture<EvaluationResult> find(String fenCode) {
+		String shortFenCode = PgnUtil.getShortFenCode(fenCode);
+		PendingEvaluation pending = pendingEvaluations.get(shortFenCode);
+		if (pending != null) {
+			return pending.future;
+		}
+		EvaluationResult stored = get(shortFenCode, 0);
+		return stored != null ? CompletableFuture.completedFuture(stored) : null;
+	}
+
+	/**
+	 * Gets a stored evaluation (the engine is not called).
+	 *
+	 * @param fenCode  Position.
+	 * @param minDepth Min depth of the evaluation (in half moves).
+	 * @return The evaluation, NULL if not stored or its depth is less than the min depth.
+	 */
+	public EvaluationResult getStored(String fenCode, int minDepth) {
+		return get(PgnUtil.getShortFenCode(fenCode), minDepth);
+	}
+
+	/**
+	 * Saves the lines of a search (MultiPV) as the evaluations of the positions
+	 * after their first move, one half move less deep. The score is the same
+	 * (white's point of view), the PV goes on with the second move.
+	 *
+	 * @param fenCode Position searched.
+	 * @param lines   Lines of the search (see {@link ChessEngine#evaluateLines}).
+	 */
+	public void putLines(String fenCode, List<EvaluationResult> lines) {
+		for (EvaluationResult line : lines) {
+			if (line.getBestMove() == null || line.getDepth() <= 1) {
+				continue;
+			}
+			List<String> pv = line.getPv() == null || line.getPv().size() < 2 ? List.of()
+					: line.getPv().subList(1, line.getPv().size());
+			String childFenCode = PgnUtil.getFinalFen(fenCode, line.getBestMove());
+			put(PgnUtil.getShortFenCode(childFenCode), line.getDepth() - 1, EvaluationResult.builder()
+					.evaluation(line.getEvaluation())
+					.bestMove(pv.isEmpty() ? null : pv.get(0))
+					.depth(line.getDepth() - 1)
+					.pv(pv)
+					.build());
+		}
+	}
+
+	/**
+	 * Gets a stored evaluation.
+	 *
+	 * @return The evaluation, NULL if not stored or its depth is less than the min depth.
+	 */
+	private synchronized EvaluationResult get(String shortFenCode, int minDepth) {
+		StoredEvaluation entry = entries.get(shortFenCode);
+		return entry != null && entry.d >= minDepth ? entry.toResult() : null;
+	}
+
+	/** Saves an evaluation (memory and file), unless a deeper one is already stored. */
+	private synchronized void put(String shortFenCode, int depth, EvaluationResult result) {
+		StoredEvaluation entry = new StoredEvaluation();
+		entry.k = shortFenCode;
+		entry.d = Math.max(depth, result.getDepth());
+		entry.e = result.getEvaluation();
+		entry.m = result.getBestMove();
+		entry.pv = result.getPv() != null ? String.join(" ", result.getPv()) : null;
+		entry.t = System.currentTimeMillis();
+		if (!putIfDeeper(entry) || appendWriter == null) {
+			return;
+		}
+		try {
+			appendWriter.write(gson.toJson(entry));
+			appendWriter.newLine();
+			appendWriter.flush();
+		} catch (IOException e) {
+			log.error("Error writing to evaluation store (kept only in memory): " + storeFilePath, e);
+		}
+	}
+
+	/** @return TRUE if the entry was saved (no deeper evaluation stored). */
+	private boolean putIfDeeper(StoredEvaluation entry) {
+		StoredEvaluation stored = entries.get(entry.k);
+		if (stored != null && stored.d > entry.d) {
+			return false;
+		}
+		entries.put(entry.k, entry);
+		return true;
+	}
+
+	/** Rewrites the store file with the live entries only (drops replaced and evicted evaluations). */
+	private synchronized void compact() throws IOException {
+		Path path = Paths.get(storeFilePath);
+		Path tmpPath = Paths.get(storeFilePath + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+			for (StoredEvaluation entry : entries.values()) {
+				writer.write(gson.toJson(entry));
+				writer.newLine();
+			}
+		}
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+		log.info("Evaluation store file compacted: positions={}", entries.size());
+	}
+
+	@PreDestroy
+	public synchronized void close() throws IOException {
+		if (appendWriter == null) {
+			return;
+		}
+		appendWriter.close();
+		appendWriter = null;
+		compact();
+		log.info("Evaluation store closed: hits={} coalesced={} misses={}", totalHits, totalCoalesced, totalMisses);
+	}
+
+	public int getTotalHits() {
+		return totalHits.get();
+	}
+
+	public int getTotalCoalesced() {
+		return totalCoalesced.get();
+	}
+
+	public int getTotalMisses() {
+		return totalMisses.get();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -1,6 +1,7 @@
 package com.ejaque.openingexplorer.service;
 
 import com.ejaque.openingexplorer.model.GoodMove;
+import com.ejaque.openingexplorer.model.PlayerMove;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.springframework.beans.factory.annotation.Value;
@@ -16,6 +17,14 @@ public class ExcelExportService {
     private String excelFilePath;
 
     public void generateExcel(List<GoodMove> goodMoves) throws IOException {
+        generateExcel(goodMoves, List.of());
+    }
+
+    /**
+     * Writes the good moves and, if there are any, the moves of the players we
+     * prepare against ("Players" sheet, see PlayerExplorerService).
+     */
+    public void generateExcel(List<GoodMove> goodMoves, List<PlayerMove> playerMoves) throws IOException {
         Workbook workbook = new XSSFWorkbook();
         Sheet sheet = workbook.createSheet("Good Moves");
 
@@ -39,6 +48,10 @@ public class ExcelExportService {
             writeGoodMove(move, row);
         }
 
+        if (!playerMoves.isEmpty()) {
+            createPlayersSheet(workbook, headerStyle, playerMoves);
+        }
+
         try (FileOutputStream outputStream = new FileOutputStream(excelFilePath)) {
             workbook.write(outputStream);
         }
@@ -51,7 +64,15 @@ public class ExcelExportService {
                             "Rating Percentile", "Average Rating For All Moves", 
                             "Average Rating", "Average Rating Opponents", 
                             "White Points Pct", "Games Position", "Games Move", 
-                            "Popularity%", "Ratio", "Eval"};
+                            "Popularity%", "Ratio", "Eval",
+                            "Top Tier Average Rating For All Moves", "Top Tier Average Rating",
+                            "Top Tier Average Rating Opponents", "Top Tier White Points Pct",
+                            "Top Tier Games Position",
+                            "Last Year Games Move", "Last Year Popularity%", "Last Year Average Rating",
+                            "Last Year White Points Pct", "Cloud Eval", "Cloud Eval Depth",
+                            "Opponents Covered Moves", "Opponents Covered Average Rating",
+                            "Opponents Covered White Points Pct", "Opponents Covered Eval",
+                            "Engine Top Moves", "Engine Best Eval", "Engine Rank"};
 
         for (int i = 0; i < headers.length; i++) {
             Cell cell = headerRow.createCell(i);
@@ -60,6 +81,35 @@ public class ExcelExportService {
         }
     }
 
+    private void createPlayersSheet(Workbook workbook, CellStyle headerStyle, List<PlayerMove> playerMoves) {
+        Sheet sheet = workbook.createSheet("Players");
+
+        String[] headers = {"Player", "FEN", "Move", "Probability Occurring", "Games Player Position",
+                            "Games Move", "Frequency%", "Popularity%", "Points Pct"};
+        Row headerRow = sheet.createRow(0);
+        for (int i = 0; i < headers.length; i++) {
+            Cell cell = headerRow.createCell(i);
+            cell.setCellValue(headers[i]);
+            cell.setCellStyle(headerStyle);
+        }
+        sheet.setColumnWidth(0, 16 * 256);
+        sheet.setColumnWidth(1, 72 * 256);
+
+        int rowCount = 1;
+        for (PlayerMove move : playerMoves) {
+            Row row = sheet.createRow(rowCount++);
+            row.createCell(0).setCellValue(move.getPlayer());
+            row.createCell(1).setCellValue(move.getFen());
+            row.createCell(2).setCellValue(move.getMove());
+            row.createCell(3).setCellValue(move.getProbabilityOcurring());
+            row.createCell(4).setCellValue(move.getTotalGames());
+            row.createCell(5).setCellValue(move.getTotalGamesMove());
+            row.createCell(6).setCellValue(move.getFrequency());
+            row.createCell(7).setCellValue(move.getPopularity());
+            row.createCell(8).setCellValue(move.getPointsPctg());
+        }
+    }
+
     private void writeGoodMove(GoodMove move, Row row) {
         Cell cell = row.createCell(0);
         cell.setCellValue(move.getFen());
@@ -111,5 +161,65 @@ public class ExcelExportService {
         
         cell = row.createCell(13);
         cell.setCellValue(move.getEvaluation());
+
+        cell = row.createCell(14);
+        cell.setCellValue(move.getTopTierAverageRatingForAllMoves());
+
+        cell = row.createCell(15);
+        cell.setCellValue(move.getTopTierAverageRating());
+
+        cell = row.createCell(16);
+        cell.setCellValue(move.getTopTierAverageRatingOpponents());
+
+        cell = row.createCell(17);
+        cell.setCellValue(move.getTopTierWhitePointsPctg());
+
+        cell = row.createCell(18);
+        cell.setCellValue(move.getTopTierTotalGames());
+
+        cell = row.createCell(19);
+        cell.setCellValue(move.getLastYearTotalGamesMove());
+
+        cell = row.createCell(20);
+        cell.setCellValue(move.getLastYearPopularity());
+
+        cell = row.createCell(21);
+        cell.setCellValue(move.getLastYearAverageRating());
+
+        cell = row.createCell(22);
+        cell.setCellValue(move.getLastYearWhitePointsPctg());
+
+        // no cloud eval for this position: left blank
+        if (move.getCloudEvalDepth() > 0) {
+            cell = row.createCell(23);
+            cell.setCellValue(move.getCloudEval());
+
+            cell = row.createCell(24);
+            cell.setCellValue(move.getCloudEvalDepth());
+        }
+
+        cell = row.createCell(25);
+        cell.setCellValue(move.getOpponentsCoveredMoves());
+
+        cell = row.createCell(26);
+        cell.setCellValue(move.getOpponentsCoveredAverageRating());
+
+        cell = row.createCell(27);
+        cell.setCellValue(move.getOpponentsCoveredWhitePointsPctg());
+
+        cell = row.createCell(28);
+        cell.setCellValue(move.getOpponentsCoveredEval());
+
+        // no top moves (disabled or no evals): left blank
+        if (move.getEngineTopMoves() != null) {
+            cell = row.createCell(29);
+            cell.setCellValue(move.getEngineTopMoves());
+
+            cell = row.createCell(30);
+            cell.setCellValue(move.getEngineBestEval());
+
+            cell = row.createCell(31);
+            cell.setCellValue(move.getEngineRank());
+        }
     }
 }
@@ -0,0 +1,49 @@
+package com.ejaque.openingexplorer.service;
+
+import com.ejaque.openingexplorer.model.ExplorerQuery;
+import com.ejaque.openingexplorer.model.PositionStats;
+
+/**
+ * Source of the opening explorer stats used by the search. Only one
+ * implementation is active, selected with "explorer.source":
+ * <ul>
+ * <li>"lichess" (default): the Lichess opening explorer API, see
+ * {@link LichessExplorerDataSource}.</li>
+ * <li>"pgn": opening tree built from local PGN files, see
+ * {@link PgnExplorerDataSource}.</li>
+ * <li>"binary": memory-mapped position stats file, see
+ * {@link BinaryFileExplorerDataSource}.</li>
+ * </ul>
+ */
+public interface ExplorerDataSource {
+
+	/**
+	 * Gets the stats of all the moves played in a position.
+	 *
+	 * @param fen   FEN for the position.
+	 * @param query Query params (rating range, speeds or masters). Sources that
+	 *              can't filter the games can ignore them.
+	 * @return Stats of the position (with no moves if the position is unknown),
+	 *         or NULL if there was an error getting them.
+	 * @throws Exception If there's an unexpected error.
+	 */
+	PositionStats getPositionStats(String fen, ExplorerQuery query) throws Exception;
+
+	/**
+	 * Gets the stats of all the moves played in a position, like
+	 * {@link #getPositionStats(String, ExplorerQuery)}, but with {@code refresh}
+	 * the source must not answer from a cache (the caller knows the stats it had
+	 * are outdated). Sources with no cache can ignore it.
+	 */
+	default PositionStats getPositionStats(String fen, ExplorerQuery query, boolean refresh) throws Exception {
+		return getPositionStats(fen, query);
+	}
+
+	/** Gets a short name for logging. */
+	String getName();
+
+	/** Gets the total calls done to a remote server (0 for local sources). */
+	default int getTotalRemoteCalls() {
+		return 0;
+	}
+}
@@ -0,0 +1,240 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.YearMonth;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.ExplorerQuery;
+import com.ejaque.openingexplorer.model.ExplorerResponse;
+import com.ejaque.openingexplorer.model.GoodMove;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.util.ExplorerJsonDecoder;
+import com.ejaque.openingexplorer.util.ZobristUtil;
+import com.github.bhlangonijr.chesslib.Board;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Adds extra data to the good moves after the search, so the lookups don't
+ * slow down the traversal (they are only done for the good moves, not for
+ * every position explored):
+ * <ul>
+ * <li>Last year stats: the explorer stats of the position with only the games
+ * of the last 12 months ({@code lastYear*} columns).</li>
+ * <li>Cloud eval: the Lichess cloud eval of the position after the move
+ * ({@code cloudEval} columns).</li>
+ * </ul>
+ * Lookups are deduplicated (one call per position, no matter how many good
+ * moves share it) and run by a small pool of threads. All calls go through
+ * {@link LichessExplorerClient#getWithRetries(String)}, so they share the rate
+ * limiter with the search, and through the {@link PositionStatsCacheService}.
+ */
+@Service
+@Slf4j
+public class GoodMoveEnrichmentService {
+
+	/** Set to TRUE to enrich the good moves when exporting them. */
+	@Value("${enrichment.enabled:false}")
+	private boolean enabled;
+
+	/** Lookups running at the same time (calls are also limited by the rate limiter). */
+	@Value("${enrichment.threads:2}")
+	private int threads = 2;
+
+	@Value("${enrichment.lastYear:true}")
+	private boolean lastYear = true;
+
+	@Value("${enrichment.cloudEval:true}")
+	private boolean cloudEval = true;
+
+	@Value("${enrichment.cloudEvalUrl:https://lichess.org/api/cloud-eval}")
+	private String cloudEvalUrl = "https://lichess.org/api/cloud-eval";
+
+	@Autowired
+	private LichessExplorerClient lichessExplorerClient;
+
+	@Autowired
+	private PositionStatsCacheService positionStatsCacheService;
+
+	/** Cached value for positions without cloud eval (so they are not asked again). */
+	private static final String NO_CLOUD_EVAL = "{}";
+
+	/**
+	 * Fills the last year and cloud eval columns of the good moves. BLOCKS until
+	 * all the lookups are done. Lookups that fail leave the columns empty.
+	 *
+	 * @param goodMoves Good moves found by the search.
+	 * @param query     Query used by the search (same rating range and speeds
+	 *                  for the last year stats).
+	 */
+	public void enrich(List<GoodMove> goodMoves, ExplorerQuery query) {
+		if (!enabled || goodMoves.isEmpty()) {
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		ExplorerQuery lastYearQuery = getLastYearQuery(query, YearMonth.now());
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "good-move-enrichment");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			// deduplicated lookups: stats by position, cloud eval by position after the move
+			Map<Long, CompletableFuture<PositionStats>> lastYearStats = new HashMap<>();
+			Map<Long, CompletableFuture<String>> cloudEvals = new HashMap<>();
+			Board board = new Board();
+			for (GoodMove goodMove : goodMoves) {
+				String fen = goodMove.getFen();
+				if (lastYear) {
+					lastYearStats.computeIfAbsent(ZobristUtil.getKey(fen),
+							key -> CompletableFuture.supplyAsync(() -> fetchStats(fen, lastYearQuery), executor));
+				}
+				if (cloudEval) {
+					board.loadFromFen(fen);
+					OpeningExplorerService.doUciMove(board, goodMove.getMove());
+					String finalFen = board.getFen();
+					cloudEvals.computeIfAbsent(ZobristUtil.getKey(board),
+							key -> CompletableFuture.supplyAsync(() -> fetchCloudEval(finalFen), executor));
+				}
+			}
+
+			for (GoodMove goodMove : goodMoves) {
+				if (lastYear) {
+					setLastYearStats(goodMove, join(lastYearStats.get(ZobristUtil.getKey(goodMove.getFen()))));
+				}
+				if (cloudEval) {
+					board.loadFromFen(goodMove.getFen());
+					OpeningExplorerService.doUciMove(board, goodMove.getMove());
+					setCloudEval(goodMove, join(cloudEvals.get(ZobristUtil.getKey(board))));
+				}
+			}
+			log.info("Good moves enriched: goodMoves={} lastYearLookups={} cloudEvalLookups={} time={} secs",
+					goodMoves.size(), lastYearStats.size(), cloudEvals.size(), (System.currentTimeMillis() - startTime) / 1000);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Gets the query for the games of the last 12 months (masters only filter by
+	 * year).
+	 */
+	static ExplorerQuery getLastYearQuery(ExplorerQuery query, YearMonth now) {
+		YearMonth since = now.minusYears(1);
+		return ExplorerQuery.builder()
+				.ratingRange(query.getRatingRange())
+				.speeds(query.getSpeeds())
+				.masters(query.isMasters())
+				.since(query.isMasters() ? String.valueOf(since.getYear()) : since.toString())
+				.build();
+	}
+
+	static void setLastYearStats(GoodMove goodMove, PositionStats stats) {
+		if (stats == null) {
+			return;
+		}
+		for (int i = 0; i < stats.getMoveCount(); i++) {
+			if (stats.getUci(i).equals(goodMove.getMove())) {
+				goodMove.setLastYearTotalGamesMove(stats.getTotalGamesMove(i));
+				goodMove.setLastYearPopularity((double) stats.getTotalGamesMove(i) / stats.getTotalGames());
+				goodMove.setLastYearAverageRating(stats.getAverageRating(i));
+				goodMove.setLastYearWhitePointsPctg(stats.getWhitePointsPctg(i));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sets the cloud eval from the JSON response, like
+	 * {"depth":40,"pvs":[{"moves":"e7e5 g1f3","cp":18}]}. Mate is +-infinity
+	 * (same as the engine evals, see {@link com.ejaque.openingexplorer.util.UciUtil}).
+	 */
+	static void setCloudEval(GoodMove goodMove, String json) {
+		if (json == null) {
+			return;
+		}
+		JsonObject response = JsonParser.parseString(json).getAsJsonObject();
+		JsonArray pvs = response.getAsJsonArray("pvs");
+		if (pvs == null || pvs.isEmpty()) {
+			return;
+		}
+		JsonObject pv = pvs.get(0).getAsJsonObject();
+		if (pv.has("cp")) {
+			goodMove.setCloudEval(pv.get("cp").getAsInt() / 100.0);
+		} else if (pv.has("mate")) {
+			goodMove.setCloudEval(pv.get("mate").getAsInt() > 0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY);
+		} else {
+			return;
+		}
+		goodMove.setCloudEvalDepth(response.get("depth").getAsInt());
+	}
+
+	private PositionStats fetchStats(String fen, ExplorerQuery query) {
+		String key = Long.toHexString(ZobristUtil.getKey(fen)) + "|" + query.getKey();
+		String json = getCached(key, lichessExplorerClient.getPositionStatsUrl(fen, query), false);
+		return json == null ? null : ExplorerJsonDecoder.decode(json);
+	}
+
+	private String fetchCloudEval(String fen) {
+		String key = Long.toHexString(ZobristUtil.getKey(fen)) + "|cloudEval";
+		String url = cloudEvalUrl + "?multiPv=1&fen=" + URLEncoder.encode(fen, StandardCharsets.UTF_8);
+		return getCached(key, url, true);
+	}
+
+	/**
+	 * Gets the response body from the cache or calling the URL.
+	 *
+	 * @param notFoundIsEmpty TRUE if HTTP 404 means "no data" (cached as empty).
+	 * @return Response body, or NULL if there was an error.
+	 */
+	private String getCached(String key, String url, boolean notFoundIsEmpty) {
+		try {
+			return positionStatsCacheService.get(key, () -> {
+				try {
+					ExplorerResponse response = lichessExplorerClient.getWithRetries(url);
+					if (response.isOk()) {
+						return response.getBody();
+					} else if (notFoundIsEmpty && response.getStatusCode() == 404) {
+						return NO_CLOUD_EVAL;
+					}
+					log.error("Error enriching good move: status={} url={}", response.getStatusCode(), url);
+					return null;
+				} catch (IOException e) {
+					log.error("Error enriching good move (after retries): url=" + url, e);
+					return null;
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (Exception e) {
+			log.error("Error enriching good move: url=" + url, e);
+			return null;
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			log.error("Error enriching good move", e.getCause());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.Authenticator;
+import java.net.PasswordAuthentication;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.ExplorerQuery;
+import com.ejaque.openingexplorer.model.ExplorerResponse;
+import com.ejaque.openingexplorer.util.AdaptiveRateLimiter;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Long lived HTTP client for the Lichess opening explorer. One instance is
+ * shared by the whole run, so connections are pooled and kept alive (with
+ * HTTP/2 all calls are multiplexed in a single connection) instead of paying a
+ * new TCP + TLS handshake per position. Responses are requested with gzip.
+ * <br>
+ * Calls done with {@link #getWithRetries(String)} share one
+ * {@link AdaptiveRateLimiter}, so we call as fast as the server tolerates
+ * (without getting banned): HTTP 429 slows down the rate and pauses the calls for
+ * the "Retry-After" time, and failed calls (429, 5xx, network errors) are
+ * retried.
+ */
+@Service
+@Slf4j
+public class LichessExplorerClient {
+
+	@Value("${explorer.baseUrl:https://explorer.lichess.ovh}")
+	private String baseUrl = "https://explorer.lichess.ovh";
+
+	@Value("${explorer.http.connectTimeoutMillis:10000}")
+	private long connectTimeoutMillis = 10000;
+
+	/** Max time to wait for a response (after connecting). */
+	@Value("${explorer.http.requestTimeoutMillis:30000}")
+	private long requestTimeoutMillis = 30000;
+
+	/** Set to FALSE to force HTTP/1.1 (keep-alive connections are used anyway). */
+	@Value("${explorer.http.http2:true}")
+	private boolean http2 = true;
+
+	@Value("${lichess.api.username:}")
+	private String username;
+
+	@Value("${lichess.api.password:}")
+	private String password;
+
+	/**
+	 * Initial time in millis to wait between calls to Lichess API. Configure this
+	 * to avoid getting Http Error 429 from Lichess API. Have seen issues when
+	 * calling more often than one transaction per second. The rate limiter adapts
+	 * it later (see throttling.* params).
+	 */
+	@Value("${throttling.minTimeBetweenCalls:1200}")
+	private long minTimeBetweenCalls = 1200;
+
+	@Value("${throttling.minCallsPerSecond:0.1}")
+	private double minCallsPerSecond = 0.1;
+
+	@Value("${throttling.maxCallsPerSecond:1.5}")
+	private double maxCallsPerSecond = 1.5;
+
+	/** Max calls that can go together after an idle period. */
+	@Value("${throttling.burst:2}")
+	private double burst = 2;
+
+	/** Calls per second added to the rate after each successful call. */
+	@Value("${throttling.additiveIncrease:0.01}")
+	private double additiveIncrease = 0.01;
+
+	/** Factor applied to the rate after each HTTP 429. */
+	@Value("${throttling.decreaseFactor:0.5}")
+	private double decreaseFactor = 0.5;
+
+	/** Pause after an HTTP 429 without "Retry-After" header (Lichess asks for a full minute). */
+	@Value("${throttling.defaultRetryAfterMillis:60000}")
+	private long defaultRetryAfterMillis = 60000;
+
+	/** Max retries of a failed call (429, 5xx or network error). */
+	@Value("${throttling.maxRetries:5}")
+	private int maxRetries = 5;
+
+	/** Wait before the first retry of a 5xx or network error, doubled on each retry. */
+	@Value("${throttling.retryBackoffMillis:2000}")
+	private long retryBackoffMillis = 2000;
+
+	@Autowired
+	private SearchMetricsService searchMetricsService;
+
+	private HttpClient httpClient;
+
+	private AdaptiveRateLimiter rateLimiter;
+
+	private final AtomicInteger totalRetries = new AtomicInteger();
+
+	/** Threads for the HTTP client (also complete the async calls). */
+	private ExecutorService httpExecutor;
+
+	@PostConstruct
+	public void init() {
+		httpExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "explorer-http");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.executor(httpExecutor);
+
+		// credentials are only sent if the server asks for them (same as before with BasicCredentialsProvider)
+		if (username != null && !username.isBlank()) {
+			builder.authenticator(new Authenticator() {
+				@Override
+				protected PasswordAuthentication getPasswordAuthentication() {
+					return new PasswordAuthentication(username, password == null ? new char[0] : password.toCharArray());
+				}
+			});
+		}
+		httpClient = builder.build();
+
+		rateLimiter = new AdaptiveRateLimiter(1000.0 / minTimeBetweenCalls, minCallsPerSecond, maxCallsPerSecond, burst,
+				additiveIncrease, decreaseFactor);
+		log.info("Explorer HTTP client ready: baseUrl={} http2={} initialRate={} calls/sec", baseUrl, http2,
+				rateLimiter.getRate());
+	}
+
+	@PreDestroy
+	public void close() {
+		// JDK HttpClient releases its connections when the executor stops and the client is collected
+		httpExecutor.shutdownNow();
+	}
+
+	/**
+	 * Gets the URL for the position stats (all moves played) in the explorer.
+	 *
+	 * @param fen           FEN for the position.
+	 * @param explorerQuery Query params (rating range, speeds or masters, since).
+	 * @return Full URL.
+	 */
+	public String getPositionStatsUrl(String fen, ExplorerQuery explorerQuery) {
+		String encodedFen = URLEncoder.encode(fen, StandardCharsets.UTF_8);
+		String since = explorerQuery.getSince() == null ? "" : "&since=" + explorerQuery.getSince();
+		if (explorerQuery.isMasters()) {
+			return baseUrl + "/masters?fen=" + encodedFen + since;
+		}
+		return baseUrl + "/lichess?speeds=" + explorerQuery.getSpeeds() + "&ratings=" + explorerQuery.getRatingRange()
+				+ "&fen=" + encodedFen + since;
+	}
+
+	/**
+	 * Gets the URL for the stats of the games of a player in a position (player
+	 * explorer). The response is NDJSON: each line has the stats updated with
+	 * the games indexed so far, the last one has all of them.
+	 *
+	 * @param fen    FEN for the position.
+	 * @param player Lichess username.
+	 * @param color  Color of the player in the games ("white" or "black").
+	 * @param speeds Speeds, like "blitz,rapid".
+	 * @param modes  Modes, like "rated" or "casual,rated".
+	 * @return Full URL.
+	 */
+	public String getPlayerStatsUrl(String fen, String player, String color, String speeds, String modes) {
+		return baseUrl + "/player?player=" + URLEncoder.encode(player, StandardCharsets.UTF_8) + "&color=" + color
+				+ "&speeds=" + speeds + "&modes=" + modes + "&recentGames=0&fen="
+				+ URLEncoder.encode(fen, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Calls the URL respecting the rate limiter and retrying (same as
+	 * {@link #getWithRetries(String)}), reading the NDJSON response line by line
+	 * as the server sends it. BLOCKS until the response ends.
+	 * <br>
+	 * If a retry happens after some lines were read (network error in the
+	 * middle), the lines are sent again from the first one.
+	 *
+	 * @param url      Full URL.
+	 * @param onLine   Called with each (not blank) line, in the calling thread.
+	 * @return Status code of the response (the lines are only read if it's 200).
+	 * @throws IOException If there's a network error in the last retry.
+	 */
+	public int streamWithRetries(String url, Consumer<String> onLine) throws IOException, InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder()
+				.uri(URI.create(url))
+				.header("Accept", "application/x-ndjson")
+				.GET()
+				.build();
+		// no request timeout: the player explorer keeps the response open while indexing the games
+		return sendWithRetries(url, request, HttpResponse.BodyHandlers.ofInputStream(), (response, startTime) -> {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+				if (response.statusCode() == 200) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (!line.isBlank()) {
+							onLine.accept(line);
+						}
+					}
+				}
+			}
+			return response.statusCode();
+		});
+	}
+
+	/**
+	 * Calls the URL respecting the rate limiter, retrying on HTTP 429, 5xx and
+	 * network errors. BLOCKS until the response is ready (including the time
+	 * waiting for the rate limiter).
+	 *
+	 * @param url Full URL.
+	 * @return The response, with an error status code if the retries were
+	 *         exhausted or the error can't be fixed retrying (like a 400).
+	 * @throws IOException If there's a network error in the last retry.
+	 */
+	public ExplorerResponse getWithRetries(String url) throws IOException, InterruptedException {
+		return sendWithRetries(url, buildRequest(url), HttpResponse.BodyHandlers.ofByteArray(), this::toExplorerResponse);
+	}
+
+	/** Reads the response of a call (the body of a retried call is discarded instead). */
+	@FunctionalInterface
+	private interface ResponseReader<T, R> {
+		R read(HttpResponse<T> response, long startTime) throws IOException;
+	}
+
+	/**
+	 * Sends the request respecting the rate limiter, retrying on HTTP 429, 5xx
+	 * and network errors (also while reading the response). Each call is
+	 * recorded once in the metrics, with its status code (0 if there's no
+	 * response).
+	 *
+	 * @param url            Full URL (for the logs).
+	 * @param request        Request to send.
+	 * @param bodyHandler    Handler of the response body.
+	 * @param responseReader Reads the final response: success, an error not
+	 *                       fixed retrying, or the last retry.
+	 * @return Result of the response reader.
+	 * @throws IOException If there's a network error in the last retry.
+	 */
+	private <T, R> R sendWithRetries(String url, HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler,
+			ResponseReader<T, R> responseReader) throws IOException, InterruptedException {
+		for (int attempt = 0; ; attempt++) {
+			searchMetricsService.recordThrottleWait(rateLimiter.acquire());
+			long startNanos = System.nanoTime();
+			long startTime = System.currentTimeMillis();
+			boolean isRecorded = false;
+			try {
+				HttpResponse<T> response = httpClient.send(request, bodyHandler);
+				int statusCode = response.statusCode();
+				searchMetricsService.recordExplorerCall(System.nanoTime() - startNanos, statusCode);
+				isRecorded = true;
+
+				if (statusCode == 429) {
+					rateLimiter.onThrottled(getRetryAfterMillis(response));
+				} else if (statusCode < 500) {
+					rateLimiter.onSuccess();
+					return responseReader.read(response, startTime);
+				}
+
+				if (attempt >= maxRetries) {
+					log.error("Giving up after {} retries: status={} url={}", attempt, statusCode, url);
+					return responseReader.read(response, startTime);
+				}
+				if (response.body() instanceof InputStream body) {
+					body.close();
+				}
+				if (statusCode != 429) {
+					log.warn("Server error, retrying: status={} attempt={} url={}", statusCode, attempt + 1, url);
+					Thread.sleep(retryBackoffMillis << attempt);
+				}
+			} catch (IOException e) {
+				// an error reading the body was already recorded with the status code of the response
+				if (!isRecorded) {
+					searchMetricsService.recordExplorerCall(System.nanoTime() - startNanos, 0);
+				}
+				if (attempt >= maxRetries) {
+					throw e;
+				}
+				log.warn("Network error, retrying: attempt={} url={} error={}", attempt + 1, url, e.toString());
+				Thread.sleep(retryBackoffMillis << attempt);
+			}
+			totalRetries.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the time to wait from the "Retry-After" header (seconds or HTTP date).
+	 */
+	private long getRetryAfterMillis(HttpResponse<?> response) {
+		Optional<String> retryAfter = response.headers().firstValue("Retry-After");
+		if (retryAfter.isEmpty()) {
+			return defaultRetryAfterMillis;
+		}
+		try {
+			return Long.parseLong(retryAfter.get().trim()) * 1000L;
+		} catch (NumberFormatException e) {
+			try {
+				ZonedDateTime date = ZonedDateTime.parse(retryAfter.get().trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+				return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+			} catch (DateTimeParseException e2) {
+				log.warn("Invalid Retry-After header: {}", retryAfter.get());
+				return defaultRetryAfterMillis;
+			}
+		}
+	}
+
+	/**
+	 * Calls the URL and BLOCKS until the response is ready (NO rate limiting and
+	 * NO retries).
+	 *
+	 * @param url Full URL.
+	 * @return The response (can have an error status code).
+	 * @throws IOException If there's a network error or timeout.
+	 */
+	public ExplorerResponse get(String url) throws IOException, InterruptedException {
+		long startTime = System.currentTimeMillis();
+		HttpResponse<byte[]> response = httpClient.send(buildRequest(url), HttpResponse.BodyHandlers.ofByteArray());
+		return toExplorerResponse(response, startTime);
+	}
+
+	/**
+	 * Calls the URL without blocking, the future is completed (in an HTTP client
+	 * thread) when the response is ready (NO rate limiting and NO retries).
+	 *
+	 * @param url Full URL.
+	 * @return Future with the response (completed exceptionally on network errors).
+	 */
+	public CompletableFuture<ExplorerResponse> getAsync(String url) {
+		long startTime = System.currentTimeMillis();
+		return httpClient.sendAsync(buildRequest(url), HttpResponse.BodyHandlers.ofByteArray())
+				.thenApply(response -> {
+					try {
+						return toExplorerResponse(response, startTime);
+					} catch (IOException e) {
+						throw new IllegalStateException("Error decoding response from " + url, e);
+					}
+				});
+	}
+
+	public AdaptiveRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	public int getTotalRetries() {
+		return totalRetries.get();
+	}
+
+	private HttpRequest buildRequest(String url) {
+		return HttpRequest.newBuilder()
+				.uri(URI.create(url))
+				.timeout(Duration.ofMillis(requestTimeoutMillis))
+				.header("Accept", "application/json")
+				.header("Accept-Encoding", "gzip")
+				.GET()
+				.build();
+	}
+
+	private ExplorerResponse toExplorerResponse(HttpResponse<byte[]> response, long startTime) throws IOException {
+		byte[] body = response.body();
+		boolean isGzip = response.headers().firstValue("Content-Encoding")
+				.map(encoding -> encoding.equalsIgnoreCase("gzip"))
+				.orElse(false);
+		if (isGzip) {
+			try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+				body = in.readAllBytes();
+			}
+		}
+		return ExplorerResponse.builder()
+				.statusCode(response.statusCode())
+				.body(new String(body, StandardCharsets.UTF_8))
+				.latencyMillis(System.currentTimeMillis() - startTime)
+				.build();
+	}
+}
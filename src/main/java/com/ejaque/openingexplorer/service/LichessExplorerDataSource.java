@@ -0,0 +1,92 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.ExplorerQuery;
+import com.ejaque.openingexplorer.model.ExplorerResponse;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.util.ExplorerJsonDecoder;
+import com.ejaque.openingexplorer.util.ZobristUtil;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Explorer stats from the Lichess opening explorer API. Responses go through
+ * the persistent cache ({@link PositionStatsCacheService}), so only cache misses
+ * call the API (throttled by {@link LichessExplorerClient}).
+ */
+@Service
+@ConditionalOnProperty(name = "explorer.source", havingValue = "lichess", matchIfMissing = true)
+@Slf4j
+public class LichessExplorerDataSource implements ExplorerDataSource {
+
+	@Autowired
+	private PositionStatsCacheService positionStatsCacheService;
+
+	@Autowired
+	private LichessExplorerClient lichessExplorerClient;
+
+	/** Calls done to the explorer (cache misses). */
+	private final AtomicInteger totalCalls = new AtomicInteger();
+
+	@Override
+	public PositionStats getPositionStats(String fen, ExplorerQuery query) throws Exception {
+		return getPositionStats(fen, query, false);
+	}
+
+	@Override
+	public PositionStats getPositionStats(String fen, ExplorerQuery query, boolean refresh) throws Exception {
+		String jsonResponse = positionStatsCacheService.get(Long.toHexString(ZobristUtil.getKey(fen)) + "|" + query.getKey(),
+				() -> fetchPositionStats(fen, query), refresh);
+		return jsonResponse == null ? null : ExplorerJsonDecoder.decode(jsonResponse);
+	}
+
+	/**
+	 * Calls the Lichess explorer API to get the stats (JSON) of a position. This
+	 * is only called when the position is not in the cache, so cache hits don't
+	 * wait for throttling. Throttling and retries are handled by
+	 * {@link LichessExplorerClient}.
+	 * 
+	 * @param fen   FEN for the position
+	 * @param query Query params for the explorer
+	 * @return JSON response, or NULL if the response was an error (after all retries)
+	 */
+	private String fetchPositionStats(String fen, ExplorerQuery query) throws Exception {
+
+		String apiUrl = lichessExplorerClient.getPositionStatsUrl(fen, query);
+
+		totalCalls.incrementAndGet();
+		log.info("Call URL: " + apiUrl);
+		log.info("FEN: " + fen);
+
+		try {
+			ExplorerResponse response = lichessExplorerClient.getWithRetries(apiUrl);
+
+			if (response.isOk()) {
+				return response.getBody();
+			} else {
+				log.error("ERROR IN RESPONSE...");
+				log.error("response: " + response);
+				return null;
+			}
+		} catch (IOException e) {
+			log.error("ERROR CALLING URL (after retries): " + apiUrl, e);
+			return null;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "lichess";
+	}
+
+	@Override
+	public int getTotalRemoteCalls() {
+		return totalCalls.get();
+	}
+}
@@ -0,0 +1,251 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.EvaluationResult;
+import com.ejaque.openingexplorer.util.PgnUtil;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Evaluates positions with a pool of local UCI engine processes (any UCI
+ * binary, like Stockfish), with no network round-trip. Each requested position
+ * is dispatched right away to an idle engine, so up to "engine.local.processes"
+ * positions are evaluated at the same time (each engine with its own
+ * "Threads" and "Hash").
+ * <br>
+ * Evaluations go through the {@link EvaluationStoreService}, so a position
+ * already evaluated (with enough depth, in this run or a previous one) or
+ * being evaluated (by a transposition) is not evaluated again. An engine that
+ * fails (or doesn't answer in "engine.local.searchTimeoutSecs") is replaced by
+ * a new process.
+ */
+@Service
+@ConditionalOnProperty(name = "engine.backend", havingValue = "local")
+@Slf4j
+public class LocalUciEngineService implements ChessEngine {
+
+	/** Max wait for an idle engine before checking again if there are engines left. */
+	private static final long IDLE_ENGINE_POLL_SECS = 1;
+
+	/** Command line of the engine (binary and args, separated by spaces). */
+	@Value("${engine.local.command:stockfish}")
+	private String command = "stockfish";
+
+	/** Engine processes (positions evaluated at the same time). */
+	@Value("${engine.local.processes:4}")
+	private int processes = 4;
+
+	/** "Threads" UCI option of each process. */
+	@Value("${engine.local.threads:1}")
+	private int threads = 1;
+
+	/** "Hash" UCI option of each process (MB). */
+	@Value("${engine.local.hashMb:256}")
+	private int hashMb = 256;
+
+	/** Max wait for the "bestmove" of a search, then the engine is killed and replaced (and the search fails). */
+	@Value("${engine.local.searchTimeoutSecs:300}")
+	private long searchTimeoutSecs = 300;
+
+	/** Evaluations waiting for an idle engine, requesting more BLOCKS until there's room (backpressure). */
+	@Value("${engine.queueCapacity:64}")
+	private int queueCapacity = 64;
+
+	@Autowired(required = false)
+	private SearchMetricsService searchMetricsService;
+
+	@Autowired
+	private EvaluationStoreService evaluationStoreService;
+
+	/** Permits for the evaluations running or waiting (engines + queue capacity). */
+	private Semaphore queueSlots;
+
+	private final BlockingQueue<UciEngineProcess> idleEngines = new LinkedBlockingQueue<>();
+
+	private final List<UciEngineProcess> engines = new ArrayList<>();
+
+	/** One thread per engine, waiting for its result. */
+	private ExecutorService evaluationExecutor;
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (evaluationExecutor != null) {
+			return;
+		}
+		for (int i = 0; i < processes; i++) {
+			UciEngineProcess engine = newEngine();
+			engines.add(engine);
+			idleEngines.add(engine);
+		}
+		queueSlots = new Semaphore(processes + queueCapacity);
+		evaluationExecutor = Executors.newFixedThreadPool(processes, runnable -> {
+			Thread thread = new Thread(runnable, "uci-engine");
+			thread.setDaemon(true);
+			return thread;
+		});
+		log.info("Local UCI engines ready: processes={} threads={} hashMb={} command={}", processes, threads, hashMb,
+				command);
+	}
+
+	@Override
+	public String getName() {
+		return "local";
+	}
+
+	@Override
+	public CompletableFuture<EvaluationResult> evaluate(String fenCode, String move, int depth) {
+		String finalFenCode = move != null ? PgnUtil.getFinalFen(fenCode, move) : fenCode;
+		return evaluationStoreService.evaluate(finalFenCode, depth,
+				() -> dispatch(finalFenCode, engine -> engine.evaluate(finalFenCode, depth)));
+	}
+
+	@Override
+	public CompletableFuture<List<EvaluationResult>> evaluateLines(String fenCode, List<String> searchMoves,
+			int multiPv, int depth) {
+		return dispatch(fenCode, engine -> engine.evaluateLines(fenCode, searchMoves, multiPv, depth));
+	}
+
+	/** A search run by an idle engine. */
+	private interface EngineTask<T> {
+		T run(UciEngineProcess engine) throws IOException;
+	}
+
+	/** Dispatches a search to the engines, BLOCKS while the queue is full. */
+	private <T> CompletableFuture<T> dispatch(String fenCode, EngineTask<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			queueSlots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+			return future;
+		}
+		evaluationExecutor.execute(() -> {
+			try {
+				future.complete(runWithIdleEngine(fenCode, task));
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+			} finally {
+				queueSlots.release();
+			}
+		});
+		return future;
+	}
+
+	/** Positions are dispatched to the engines as soon as they are requested. */
+	@Override
+	public void startEvaluations() {
+	}
+
+	@Override
+	public EvaluationResult getEvaluationResult(String fenCode, String move) {
+		long startNanos = System.nanoTime();
+		String finalFenCode = move != null ? PgnUtil.getFinalFen(fenCode, move) : fenCode;
+		CompletableFuture<EvaluationResult> evaluationFuture = evaluationStoreService.find(finalFenCode);
+		if (evaluationFuture == null) {
+			throw new IllegalStateException("Evaluation not requested: " + finalFenCode);
+		}
+
+		EvaluationResult result = evaluationFuture.join(); // This will BLOCK until the future is completed
+		if (searchMetricsService != null) {
+			searchMetricsService.recordEngineEvalBlocked(System.nanoTime() - startNanos);
+		}
+		return result;
+	}
+
+	@PreDestroy
+	public synchronized void close() {
+		if (evaluationExecutor != null) {
+			evaluationExecutor.shutdownNow();
+		}
+		engines.forEach(UciEngineProcess::close);
+		engines.clear();
+		idleEngines.clear();
+	}
+
+	/**
+	 * Runs a search with an idle engine (runs in an evaluation thread). Fails if
+	 * there are no engines left (all of them failed and couldn't be restarted).
+	 */
+	private <T> T runWithIdleEngine(String fenCode, EngineTask<T> task) {
+		UciEngineProcess engine = null;
+		try {
+			while (engine == null) {
+				if (!hasEngines()) {
+					throw new CompletionException(new IllegalStateException("No local UCI engines left: fen=" + fenCode));
+				}
+				engine = idleEngines.poll(IDLE_ENGINE_POLL_SECS, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		}
+		long startNanos = System.nanoTime();
+		try {
+			T result = task.run(engine);
+			if (searchMetricsService != null) {
+				searchMetricsService.recordEngineEval(System.nanoTime() - startNanos);
+			}
+			return result;
+		} catch (IOException | RuntimeException e) {
+			log.error("Error evaluating position, restarting engine: fen=" + fenCode, e);
+			engine = replaceEngine(engine);
+			throw new CompletionException(e);
+		} finally {
+			if (engine != null) {
+				idleEngines.add(engine);
+			}
+		}
+	}
+
+	private synchronized boolean hasEngines() {
+		return !engines.isEmpty();
+	}
+
+	/**
+	 * Replaces a failed engine with a new process.
+	 *
+	 * @return The new engine, NULL if it can't be launched (the pool has one
+	 *         engine less).
+	 */
+	private synchronized UciEngineProcess replaceEngine(UciEngineProcess failedEngine) {
+		failedEngine.close();
+		engines.remove(failedEngine);
+		try {
+			UciEngineProcess engine = newEngine();
+			engines.add(engine);
+			return engine;
+		} catch (IOException e) {
+			log.error("Error restarting engine, engines left: " + engines.size(), e);
+			return null;
+		}
+	}
+
+	private UciEngineProcess newEngine() throws IOException {
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put("Threads", String.valueOf(threads));
+		options.put("Hash", String.valueOf(hashMb));
+		return new UciEngineProcess(Arrays.asList(command.trim().split("\\s+")), options,
+				TimeUnit.SECONDS.toMillis(searchTimeoutSecs));
+	}
+}
@@ -1,23 +1,28 @@
 package com.ejaque.openingexplorer.service;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.apache.commons.math3.util.Precision;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.event.EventListener;
@@ -25,20 +30,27 @@ import org.springframework.stereotype.Service;
 
 import com.ejaque.openingexplorer.config.Constants;
 import com.ejaque.openingexplorer.event.EvaluationResultEvent;
+import com.ejaque.openingexplorer.model.BranchingProfile;
 import com.ejaque.openingexplorer.model.EvaluationResult;
+import com.ejaque.openingexplorer.model.ExplorerQuery;
 import com.ejaque.openingexplorer.model.GoodMove;
+import com.ejaque.openingexplorer.model.PlayerMove;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.model.SearchNode;
+import com.ejaque.openingexplorer.model.SearchPlan;
+import com.ejaque.openingexplorer.model.SearchTask;
+import com.ejaque.openingexplorer.util.AdaptiveRateLimiter;
 import com.ejaque.openingexplorer.util.EloUtil;
 import com.ejaque.openingexplorer.util.PgnUtil;
+import com.ejaque.openingexplorer.util.ZobristUtil;
 import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.CastleRight;
 import com.github.bhlangonijr.chesslib.Piece;
 import com.github.bhlangonijr.chesslib.Side;
 import com.github.bhlangonijr.chesslib.Square;
 import com.github.bhlangonijr.chesslib.move.Move;
-import com.github.bhlangonijr.chesslib.move.MoveException;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -98,31 +110,66 @@ public class OpeningExplorerService {
     /** This avg rating is used as a reference for doing weighted sums, just an optimization.*/
     public static final double AVG_RATING = 2500.0;
     
-	/**
-	 * Time in millis to wait between calls to Lichess API. Configure this to avoid
-	 * getting Http Error 429 from Lichess API. Have seen issues when calling more
-	 * often than one transaction per second.
-	 */
-    @Value("${throttling.minTimeBetweenCalls}")
-	private long minTimeBetweenCalls = 1100;
-    
     @Autowired
-    private ChessEngineService chessEngineService;
+    private ChessEngine chessEngineService;
+
+    @Autowired
+    private EvaluationStoreService evaluationStoreService;
 
     @Autowired
     private ExcelExportService excelExportService;
+
+    @Autowired
+    private PositionStatsCacheService positionStatsCacheService;
+
+    @Autowired
+    private LichessExplorerClient lichessExplorerClient;
+
+    @Autowired
+    private ExplorerDataSource explorerDataSource;
+
+    @Autowired
+    private SearchCheckpointService searchCheckpointService;
+
+    @Autowired
+    private SearchMetricsService searchMetricsService;
+
+    @Autowired
+    private GoodMoveEnrichmentService goodMoveEnrichmentService;
+
+    @Autowired
+    private SearchPlannerService searchPlannerService;
+
+    @Autowired
+    private PlayerExplorerService playerExplorerService;
     
     
     List<GoodMove> bestMoves = new ArrayList<>();
     
-    long lastTimeCalledLichess = System.currentTimeMillis();
+    /** Evals of good moves still running (set in the good move when ready, see {@link #requestEval(String, String)}). */
+    private final List<CompletableFuture<Void>> pendingEvals = new ArrayList<>();
+    
+	/**
+	 * Transposition table: one node per position (key is the Zobrist key, see
+	 * {@link ZobristUtil}), so positions reached by different move orders are only
+	 * fetched and explored once.
+	 */
+    Map<Long, SearchNode> nodeTable = new HashMap<>();
+    
+    /** Total times a position already in {@link #nodeTable} was reached again. */
+    private int totalTranspositions;
+    
+	/**
+	 * Number of workers expanding the frontier of the search concurrently before
+	 * the recursive search (see {@link #prefetchFrontier}). Set to 0 to DISABLE
+	 * (only the recursive search, one explorer call at a time).
+	 */
+    @Value("${searchParams.frontierWorkers:0}")
+    private int frontierWorkers;
+    
+    /** Explorer stats fetched by the frontier workers (by position key), taken by the recursive search. */
+    private final Map<Long, PositionStats> prefetchedStats = new ConcurrentHashMap<>();
     
-    @Value("${lichess.api.username}")
-    private String username;
-
-    @Value("${lichess.api.password}")
-    private String password;
-
     @Value("${searchParams.maxDepthHalfMoves}")
 	private int maxDepthHalfMoves;
     
@@ -174,6 +221,17 @@ public class OpeningExplorerService {
     /** Target depth for engine eval. Set to 0 ti DISABLE engine usage.*/
     @Value("${searchParams.evalDepth}")    
 	private int evalDepth;    
+
+    /**
+     * Best moves of the engine saved with the good moves (one MultiPV search per position with good moves, that also
+     * evaluates the good moves among them). Set to 0 to DISABLE.
+     */
+    @Value("${engine.topMoves:5}")
+    private int engineTopMoves = 5;
+
+    /** Set to FALSE to evaluate each good move in its own search, instead of all the good moves of a position in one search. */
+    @Value("${engine.batchEvals:true}")
+    private boolean batchEvals = true;
     
 	/**
 	 * Minimum probability for the move to happen. This probability is calculated
@@ -191,8 +249,69 @@ public class OpeningExplorerService {
     
     @Value("${searchParams.ratingRange}")    
 	private String ratingRange;
+
+    /** Game speeds (COMMA separated) to query in the lichess explorer. Not used for "masters". */
+    @Value("${searchParams.speeds:blitz,rapid,classical}")    
+	private String speeds;
+    
+	/**
+	 * Rating range of the "top tier" explorer variant (like "masters", or "2500"
+	 * when searching with "2200"), fetched concurrently with the main variant for
+	 * each position to fill the top tier columns of the good moves. Only the main
+	 * variant drives the search. Empty to DISABLE.
+	 */
+    @Value("${searchParams.topTier.ratingRange:}")
+    private String topTierRatingRange;
+    
+	/**
+	 * Share of the games covered by the opponent replies explored in each
+	 * position, like 0.9: replies are taken in popularity order until they cover
+	 * 90% of the games, the rest (sidelines) are not explored. The good moves
+	 * get the weighted stats of the covered replies (see
+	 * {@link #setOpponentsStats()}). Set to 1.0 to consider all the replies.
+	 */
+    @Value("${searchParams.opponentCoverage:1.0}")
+    private double opponentCoverage = 1.0;
+    
+	/** Evals of the opponent replies are limited to +-this when averaged (big blunders don't weigh more than needed). */
+    public static final double MAX_OPPONENT_REPLY_EVAL = 3.0;
+    
+    /** Game speeds of the top tier variant, empty to use the same as the main variant. */
+    @Value("${searchParams.topTier.speeds:}")
+    private String topTierSpeeds;
+    
+    /** Stats of the top tier variant (by position key), fetched together with the main stats. */
+    private final Map<Long, PositionStats> topTierStats = new ConcurrentHashMap<>();
+    
+    /** Threads fetching the top tier variant, NULL if it is disabled. */
+    private ExecutorService topTierExecutor;
 	private int totalErrorsExploringMoves;
     
+    public static final String SEARCH_MODE_RECURSIVE = "recursive";
+    public static final String SEARCH_MODE_BEST_FIRST = "bestFirst";
+    
+	/**
+	 * Search mode: "recursive" (depth first, in explorer order) or "bestFirst"
+	 * (most likely positions first, see {@link #searchBestFirst}).
+	 */
+    @Value("${searchParams.mode:recursive}")
+    private String searchMode = SEARCH_MODE_RECURSIVE;
+    
+    /** Time budget (minutes) for the best-first search. Set to 0 for no limit. */
+    @Value("${searchParams.bestFirst.maxMinutes:0}")
+    private long bestFirstMaxMinutes;
+    
+	/**
+	 * Budget of calls to the explorer for the best-first search (cache hits don't
+	 * count). Set to 0 for no limit.
+	 */
+    @Value("${searchParams.bestFirst.maxApiCalls:0}")
+    private int bestFirstMaxApiCalls;
+    
+    /** Set by {@link #stopSearch()}, the search stops before the next position. */
+    private volatile boolean stopRequested;
+    
+    
     
 
     /** Starts the search for good moves. */
@@ -201,14 +320,35 @@ public class OpeningExplorerService {
     	EvaluationResult evaluationResult = null;
     	String nextBestMove = null;
     	
+    	// stats and evals are saved while searching, with "--resume" or "--incremental" the saved ones are reused
+    	// ("--plan" only reads them, the checkpoint of the last search is kept)
+    	String statsSource = explorerDataSource.getName() + "|" + getExplorerQuery().getKey();
+    	searchCheckpointService.open(startPositionFEN + "|" + statsSource, statsSource, searchPlannerService.isDryRun());
+    	searchMetricsService.searchStarted();
+    	
+    	if (topTierRatingRange != null && !topTierRatingRange.isBlank() && topTierExecutor == null) {
+    		topTierExecutor = Executors.newCachedThreadPool(runnable -> {
+    			Thread thread = new Thread(runnable, "top-tier-fetch");
+    			thread.setDaemon(true);
+    			return thread;
+    		});
+    		log.info("Top tier variant: {}", getTopTierExplorerQuery().getKey());
+    	}
+    	
+    	// estimate of the search (and thresholds tuned to the time budget, if any), "--plan" only reports it
+    	if (searchPlannerService.isEnabled() || searchPlannerService.isDryRun()) {
+    		planSearch();
+    		if (searchPlannerService.isDryRun()) {
+    			return;
+    		}
+    	}
+    	
     	// start the chess engine service for evaluations
     	if (evalDepth > 0) {
-	    	chessEngineService.createChessEngineServer();
-	    	chessEngineService.requestEvaluation(startPositionFEN, null, evalDepth);
-	    	chessEngineService.startEvaluations();
+	    	chessEngineService.start();
 
 	    	// this call BLOCKS until result is ready:
-	        evaluationResult = chessEngineService.getEvaluationResult(startPositionFEN, null);  
+	        evaluationResult = chessEngineService.evaluate(startPositionFEN, null, evalDepth).join();
 
 	        startPositionEval = evaluationResult.getEvaluation();
 	        nextBestMove = evaluationResult.getBestMove();
@@ -222,30 +362,273 @@ public class OpeningExplorerService {
         log.info("playerColor={}", playerColor);
         log.info("startPositionColor={}", startPositionColor);
         
-        // start exploring moves
-    	searchBestMove(startPositionFEN, nextBestMove, startPositionColor, maxDepthHalfMoves, 1.0, false);
+        if (SEARCH_MODE_BEST_FIRST.equals(searchMode)) {
+        	searchBestFirst(startPositionColor);
+        	return;
+        }
+        
+        // fetch all the positions concurrently, so the recursive search finds them ready
+        if (frontierWorkers > 0) {
+        	prefetchFrontier(startPositionColor);
+        }
+        
+        // start exploring moves (the board is updated with do/undo move while searching)
+        Board board = new Board();
+        board.loadFromFen(startPositionFEN);
+    	searchBestMove(board, nextBestMove, startPositionColor, maxDepthHalfMoves, null, 1.0, false);
+    }
+    
+	/**
+	 * Asks the search to stop (it finishes the position being explored, the
+	 * recursive one goes back without exploring more positions), so
+	 * {@link #startSearch()} returns. The good moves found so far are a valid
+	 * result (see {@link #getRankedGoodMoves()}), exported as usual. Called on
+	 * Ctrl-C (see MainApplication).
+	 */
+    public void stopSearch() {
+    	stopRequested = true;
     }
     
+	/**
+	 * Best-first search: positions are explored in order of probability (the most
+	 * likely positions for our repertoire first) instead of depth first, using
+	 * the same criteria as the recursive search to choose the moves to explore
+	 * and the good moves.
+	 * <br>
+	 * It stops when there are no more positions to explore, or when the time or
+	 * explorer calls budget is spent (or {@link #stopSearch()} is called). As the
+	 * most likely positions are already explored, the good moves found at any
+	 * point are the most relevant ones.
+	 * 
+	 * @param color Color to play in the starting position.
+	 */
+	private void searchBestFirst(String color) throws Exception {
+		long startTime = System.currentTimeMillis();
+		long deadline = bestFirstMaxMinutes > 0 ? startTime + bestFirstMaxMinutes * 60 * 1000 : Long.MAX_VALUE;
+		
+		PriorityQueue<SearchTask> frontier = new PriorityQueue<>(
+				Comparator.comparingDouble(SearchTask::getProbability).reversed());
+		Map<Long, List<SearchTask>> expandedTasks = new HashMap<>();
+		frontier.add(newRootTask(color));
+		
+		String stopReason = "frontier empty";
+		while (!frontier.isEmpty()) {
+			if (stopRequested) {
+				stopReason = "stop requested";
+				break;
+			} else if (System.currentTimeMillis() >= deadline) {
+				stopReason = "time budget spent";
+				break;
+			} else if (bestFirstMaxApiCalls > 0 && explorerDataSource.getTotalRemoteCalls() >= bestFirstMaxApiCalls) {
+				stopReason = "explorer calls budget spent";
+				break;
+			}
+			
+			SearchTask task = frontier.poll();
+			long positionKey = task.getPositionKey();
+			SearchNode node = nodeTable.get(positionKey);
+			if (node == null) {
+				node = new SearchNode(positionKey);
+				nodeTable.put(positionKey, node);
+			} else {
+				totalTranspositions++;
+				searchMetricsService.nodeTransposition();
+			}
+			// DAG: the reach probability combines all the paths, a new path also updates all the descendants
+			if (task.getParent() == null) {
+				node.addPath(task.getProbability());
+			} else {
+				nodeTable.get(task.getParent().getPositionKey()).addChild(node, task.getEdgeWeight(),
+						!task.getColor().equals(playerColor));
+			}
+			// moves are chosen with the merged probability (expanded again if it grew since the last time)
+			task = task.toBuilder().probability(node.getReachProbability()).build();
+			searchMetricsService.setSearchDepth(maxDepthHalfMoves - task.getRemainingDepth());
+			
+			if (isExpandedBefore(expandedTasks, positionKey, task)) {
+				continue;
+			}
+			node.setExploredDepth(Math.max(node.getExploredDepth(), task.getDepthToExplore()));
+			
+			for (SearchTask childTask : expandBestFirstTask(node, task)) {
+				if (childTask.getRemainingDepth() > 0 || childTask.isExtraDepthCall()) {
+					frontier.add(childTask);
+				}
+			}
+			searchMetricsService.setFrontierSize(frontier.size());
+		}
+		
+		log.info("Best-first search stopped ({}): positions={} pendingInFrontier={} explorerCalls={} time={} secs", 
+				stopReason, nodeTable.size(), frontier.size(), explorerDataSource.getTotalRemoteCalls(), 
+				(System.currentTimeMillis() - startTime) / 1000);
+	}
+
+	/**
+	 * Explores a position in the best-first search: saves its stats in the node
+	 * and the good moves found.
+	 * 
+	 * @return Tasks for the positions reached by the moves to explore.
+	 */
+	private List<SearchTask> expandBestFirstTask(SearchNode node, SearchTask task) throws Exception {
+		List<SearchTask> childTasks = new ArrayList<>();
+		String color = task.getColor();
+		Board board = getTaskBoard(task);
+		String fen = null;  // only built if needed (eval or good move)
+		
+		PositionStats stats = node.getStats();
+		if (stats == null) {
+			// stats already fetched by the planner probe (see planSearch)
+			stats = prefetchedStats.remove(node.getPositionKey());
+			if (stats == null) {
+				stats = getPositionStats(node.getPositionKey(), board);
+			}
+			node.setStats(stats);
+			node.setTopTierStats(topTierStats.get(node.getPositionKey()));
+		}
+		if (stats == null) {
+			totalErrorsExploringMoves++;
+			searchMetricsService.nodeErrored();
+			return childTasks;
+		}
+		searchMetricsService.nodeExpanded();
+		
+		int totalGames = stats.getTotalGames();
+		
+		// the starting position is always the first one explored
+		if (totalGamesStartingPosition == null) {
+			totalGamesStartingPosition = totalGames;
+		}
+		
+		double avgRatingForAllMoves = stats.getAvgRatingForAllMoves();
+		node.setAvgRatingForAllMoves(avgRatingForAllMoves);
+		
+		if (task.isExtraDepthCall()) {
+			return childTasks;  // we only need the stats of this position
+		}
+		
+		int[] averageRatings = stats.getCandidateRatings(minGamesToChooseCandidateMove);
+		int[] averageRatingRanks = PositionStats.rankRatings(averageRatings);
+		int movesToConsider = getMovesToConsider(color, stats);
+		
+		// evals of the good moves requested together (one engine search), the search goes on meanwhile
+		Map<String, CompletableFuture<Double>> evalFutures = Map.of();
+		CompletableFuture<List<EvaluationResult>> topMovesFuture = CompletableFuture.completedFuture(List.of());
+		List<String> newGoodMoves = evalDepth > 0
+				? getNewGoodMoves(node, color, stats, averageRatings, avgRatingForAllMoves, movesToConsider)
+				: List.of();
+		if (!newGoodMoves.isEmpty()) {
+			fen = board.getFen();
+			topMovesFuture = requestTopMoves(fen);
+			evalFutures = requestEvals(fen, newGoodMoves, topMovesFuture);
+		}
+		
+		for (int i = 0; i < movesToConsider; i++) {
+			String move = stats.getUci(i);
+			int totalGamesMove = stats.getTotalGamesMove(i);
+			if (totalGamesMove < minGamesToChooseCandidateMove) {
+				break;
+			}
+			
+			double popularityPctg = (double) totalGamesMove / totalGames;
+			double accumulatedProbability = getAccumulatedProbability(color, task.getProbability(), popularityPctg);
+			boolean isGoodMove = isRarePlayerMove(color, popularityPctg)
+					&& isGoodRatingRatio(averageRatings[i] / avgRatingForAllMoves, totalGamesMove);
+			
+			if (isGoodMove && node.getGoodMove(move) == null) {
+				if (fen == null) {
+					fen = board.getFen();
+				}
+				double whitePointsPctg = stats.getWhitePointsPctg(i);
+				// the eval is set when ready, the search goes on meanwhile
+				CompletableFuture<Double> evalFuture = evalFutures.get(move);
+				
+				// averageRatingOpponents is set when ranking, the next position could be explored later (or never)
+				GoodMove goodMove = GoodMove.builder()
+						.move(move)
+						.totalGames(totalGames)
+						.averageRating(averageRatings[i])
+						.averageRatingForAllMoves(avgRatingForAllMoves)
+						.ratingRank(averageRatingRanks[i])
+						.ratingPercentile((1 - ((double) (averageRatingRanks[i] - 1) / averageRatingRanks.length)) * 100.0)
+						.popularity(popularityPctg)
+						.totalGamesMove(totalGamesMove)
+						.fen(fen)
+						.probabilityOcurring(node.getReachProbability())
+						.rawProbability((double) totalGames / totalGamesStartingPosition)
+						.whitePointsPctg(whitePointsPctg)
+						.performance(EloUtil.getPerformance(avgRatingForAllMoves, whitePointsPctg))
+						.build();
+				setTopTierStats(goodMove, node.getTopTierStats());
+				node.addGoodMove(goodMove);
+				bestMoves.add(goodMove);
+				if (evalFuture == null) {
+					searchCheckpointService.saveGoodMove(goodMove);
+				} else {
+					pendingEvals.add(evalFuture.thenAcceptBoth(topMovesFuture, (eval, topMoves) -> {
+						goodMove.setEvaluation(eval);
+						setEngineTopMoves(goodMove, topMoves);
+						searchCheckpointService.saveGoodMove(goodMove);
+					}));
+				}
+			}
+			
+			if (isMoveToExplore(accumulatedProbability, totalGamesMove) || isGoodMove) {
+				childTasks.add(newChildTask(task, board, move, accumulatedProbability,
+						getEdgeWeight(color, popularityPctg), isGoodMove));
+			}
+		}
+		searchMetricsService.movesPruned(stats.getMoveCount() - childTasks.size());
+		return childTasks;
+	}
+
+	/**
+	 * Gets the good moves found so far, ranked by probability of occurring (most
+	 * likely first). The avg rating of the opponents is taken from the positions
+	 * reached by the good moves, when they were already explored.
+	 */
+	public List<GoodMove> getRankedGoodMoves() {
+		Board board = new Board();
+		for (GoodMove goodMove : bestMoves) {
+			board.loadFromFen(goodMove.getFen());
+			doUciMove(board, goodMove.getMove());
+			SearchNode nextNode = nodeTable.get(ZobristUtil.getKey(board));
+			if (nextNode != null && nextNode.getStats() != null) {
+				goodMove.setAverageRatingOpponents(nextNode.getAvgRatingForAllMoves());
+			}
+		}
+		List<GoodMove> rankedGoodMoves = new ArrayList<>(bestMoves);
+		rankedGoodMoves.sort(Comparator.comparingDouble(GoodMove::getProbabilityOcurring).reversed());
+		return rankedGoodMoves;
+	}
+    
 	/**
 	 * Recursively searches for the best moves from the given position, depth, and
 	 * probability. It communicates with the Lichess API, processes the response,
 	 * and applies various criteria to evaluate moves.
 	 * 
-	 * @param fen               FEN for current position
+	 * @param board             Board with the current position, moves are done and
+	 *                          undone on it while searching (it has the same
+	 *                          position when this method returns)
 	 * @param engineBestMove    Best move in this position according to engine  TODO: not used, review
 	 * @param color             Color to play in this move
 	 * @param remainingDepth    Remaining depth, for example starts with depth 10
 	 *                          and ends with 0 when no further searching can be
 	 *                          done.
-	 * @param parentProbability Probability of the opponent reaching this line
+	 * @param parentNode        Node of the previous position (the move played
+	 *                          there reaches this one), NULL for the starting
+	 *                          position
+	 * @param edgeWeight        Share of the reach probability of the parent
+	 *                          passed to this position (see
+	 *                          {@link SearchNode#addChild}), 1.0 for the starting
+	 *                          position
 	 * @param isExtraDepthCall  Set to TRUE only when you are already at remaining
 	 *                          depth 1 but you want the extra call just to get the
 	 *                          avg rating returned by this method.
 	 * @return Avg rating for all valid moves in this position
 	 * @throws Exception
 	 */
-	private double searchBestMove(String fen, String engineBestMove, String color, int remainingDepth,
-			double parentProbability, boolean isExtraDepthCall) throws Exception {
+	private double searchBestMove(Board board, String engineBestMove, String color, int remainingDepth,
+			SearchNode parentNode, double edgeWeight, boolean isExtraDepthCall) throws Exception {
 
     	double avgRatingForAllValidMoves = 0.0;  	// all "valid" moves that have a minimum games played
     	double avgRatingForAllMoves = 0.0;			// all "moves", for doing stats		
@@ -256,23 +639,234 @@ public class OpeningExplorerService {
         	log.info("hitting MAX DEPTH... returning");
             return avgRatingForAllValidMoves; // Stop recursion at remaining depth = 0
         }
+    	if (stopRequested) {
+    		return avgRatingForAllValidMoves; // see stopSearch()
+    	}
+    	
+    	// TRANSPOSITIONS: we reuse the node if this position was already explored (by another move order) 
+    	long positionKey = ZobristUtil.getKey(board);
+    	int depthToExplore = isExtraDepthCall ? 0 : remainingDepth;
+    	SearchNode node = nodeTable.get(positionKey);
+    	if (node == null) {
+    		node = new SearchNode(positionKey);
+    		nodeTable.put(positionKey, node);
+    	} else {
+    		totalTranspositions++;
+    		searchMetricsService.nodeTransposition();
+    	}
+    	// DAG: the reach probability combines all the paths, a new path also updates all the descendants
+    	if (parentNode == null) {
+    		node.addPath(edgeWeight);
+    	} else {
+    		parentNode.addChild(node, edgeWeight, !color.equals(playerColor));
+    	}
+    	searchMetricsService.setSearchDepth(maxDepthHalfMoves - remainingDepth);
     	
-        avgRatingForAllMoves = callLichessApiPositionStats(fen, engineBestMove, color, remainingDepth, parentProbability,
+    	// explored again only if deeper, or if the reach probability grew (moves discarded by probability may qualify now)
+    	if (node.getExploredDepth() >= depthToExplore && (isExtraDepthCall || !node.isReachProbabilityIncreased())) {
+    		log.debug("TRANSPOSITION, reusing node: paths={} reachProbability={} exploredDepth={}", 
+    				node.getTotalPaths(), node.getReachProbability(), node.getExploredDepth());
+    		return node.getAvgRatingForAllMoves();
+    	}
+    	// we set this before exploring, so a repeated position down this line does not loop
+    	node.setExploredDepth(Math.max(node.getExploredDepth(), depthToExplore));
+    	node.setExploredProbability(node.getReachProbability());
+    	
+        avgRatingForAllMoves = callLichessApiPositionStats(node, board, engineBestMove, color, remainingDepth, node.getReachProbability(),
 				isExtraDepthCall, avgRatingForAllValidMoves, avgRatingForAllMoves, goodMovesFound);
         
         return avgRatingForAllMoves;
     }
 
 	
+	/**
+	 * Requests the eval of a move without waiting for it (saved evals are
+	 * reused), so the search keeps exploring while the engine works and only
+	 * waits when it needs the value (see {@link #awaitEval(CompletableFuture)}).
+	 */
+	CompletableFuture<Double> requestEval(String fenCode, String move) {
+		Double savedEval = searchCheckpointService.getEvaluation(fenCode, move);
+		if (savedEval != null) {
+			return CompletableFuture.completedFuture(savedEval);
+		}
+		return chessEngineService.evaluate(fenCode, move, evalDepth).thenApply(result -> {
+			searchCheckpointService.saveEvaluation(fenCode, move, result.getEvaluation());
+			return result.getEvaluation();
+		});
+	}
+	
+	/** Waits for an eval requested before. An eval that failed is 0.0 (and counted as an error). */
+	double awaitEval(CompletableFuture<Double> evalFuture) {
+		long startNanos = System.nanoTime();
+		try {
+			return evalFuture.join();
+		} catch (CompletionException e) {
+			log.error("Error evaluating move", e.getCause());
+			totalErrorsExploringMoves++;
+			return 0.0;
+		} finally {
+			searchMetricsService.recordEngineEvalBlocked(System.nanoTime() - startNanos);
+		}
+	}
+	
 	double getEval(String fenCode, String move) {
-		chessEngineService.requestEvaluation(fenCode, move, evalDepth);
-		chessEngineService.startEvaluations();
-		return chessEngineService.getEvaluationResult(fenCode, move).getEvaluation();
+		return awaitEval(requestEval(fenCode, move));
+	}
+	
+	/**
+	 * Requests the evals of several moves of a position without waiting for
+	 * them, like {@link #requestEval(String, String)}, see
+	 * {@link #requestEvals(String, List, CompletableFuture)}.
+	 */
+	Map<String, CompletableFuture<Double>> requestEvals(String fenCode, List<String> moves) {
+		return requestEvals(fenCode, moves, CompletableFuture.completedFuture(List.of()));
+	}
+	
+	/**
+	 * Requests the evals of several moves of a position without waiting for
+	 * them, like {@link #requestEval(String, String)}. Evals saved in the
+	 * checkpoint or stored (deep enough) are reused, then the moves in the top
+	 * lines of the engine are taken from them. The rest are evaluated in one
+	 * engine search (MultiPV + "go searchmoves"), a move missing in its result is
+	 * evaluated on its own.
+	 *
+	 * @param topMovesFuture Top lines of the engine in the position (see
+	 *                       {@link #requestTopMoves(String)}), empty if not
+	 *                       requested.
+	 * @return Eval of each move.
+	 */
+	Map<String, CompletableFuture<Double>> requestEvals(String fenCode, List<String> moves,
+			CompletableFuture<List<EvaluationResult>> topMovesFuture) {
+		Map<String, CompletableFuture<Double>> evalFutures = new LinkedHashMap<>();
+		List<String> movesToEvaluate = new ArrayList<>();
+		for (String move : moves) {
+			Double eval = searchCheckpointService.getEvaluation(fenCode, move);
+			if (eval == null) {
+				// a line of an earlier search, one half move less deep
+				EvaluationResult stored = evaluationStoreService.getStored(PgnUtil.getFinalFen(fenCode, move), evalDepth - 1);
+				if (stored != null) {
+					eval = stored.getEvaluation();
+					searchCheckpointService.saveEvaluation(fenCode, move, eval);
+				}
+			}
+			if (eval != null) {
+				evalFutures.put(move, CompletableFuture.completedFuture(eval));
+			} else {
+				movesToEvaluate.add(move);
+			}
+		}
+		if (movesToEvaluate.isEmpty()) {
+			return evalFutures;
+		}
+		
+		// async: the moves not in the top lines are requested out of the engine thread (requesting can BLOCK)
+		CompletableFuture<List<EvaluationResult>> linesFuture = topMovesFuture.thenComposeAsync(topMoves -> {
+			List<String> missingMoves = movesToEvaluate.stream()
+					.filter(move -> topMoves.stream().noneMatch(line -> move.equals(line.getBestMove())))
+					.toList();
+			if (!batchEvals || missingMoves.size() < 2) {
+				return CompletableFuture.completedFuture(topMoves);
+			}
+			return chessEngineService.evaluateMoves(fenCode, missingMoves, evalDepth).thenApply(lines -> {
+				evaluationStoreService.putLines(fenCode, lines);
+				List<EvaluationResult> allLines = new ArrayList<>(topMoves);
+				allLines.addAll(lines);
+				return allLines;
+			});
+		});
+		for (String move : movesToEvaluate) {
+			evalFutures.put(move, linesFuture.thenComposeAsync(lines -> {
+				for (EvaluationResult line : lines) {
+					if (move.equals(line.getBestMove())) {
+						searchCheckpointService.saveEvaluation(fenCode, move, line.getEvaluation());
+						return CompletableFuture.completedFuture(line.getEvaluation());
+					}
+				}
+				return requestEval(fenCode, move);
+			}));
+		}
+		return evalFutures;
+	}
+	
+	/**
+	 * Requests the best moves of the engine in a position (empty if disabled or
+	 * if the search fails). Top moves saved in the checkpoint are reused, new
+	 * ones are saved (and their lines stored as the evals of the positions after
+	 * them).
+	 */
+	private CompletableFuture<List<EvaluationResult>> requestTopMoves(String fenCode) {
+		if (engineTopMoves <= 0) {
+			return CompletableFuture.completedFuture(List.of());
+		}
+		List<EvaluationResult> savedTopMoves = searchCheckpointService.getTopMoves(fenCode);
+		if (savedTopMoves != null) {
+			return CompletableFuture.completedFuture(savedTopMoves);
+		}
+		return chessEngineService.evaluateTopMoves(fenCode, engineTopMoves, evalDepth).thenApply(topMoves -> {
+			evaluationStoreService.putLines(fenCode, topMoves);
+			searchCheckpointService.saveTopMoves(fenCode, topMoves);
+			return topMoves;
+		}).exceptionally(e -> {
+			log.error("Error getting the top moves of the engine: fen=" + fenCode, e);
+			return List.of();
+		});
+	}
+	
+	/** Sets the best moves of the engine in the position of a good move (nothing if there are none). */
+	static void setEngineTopMoves(GoodMove goodMove, List<EvaluationResult> topMoves) {
+		if (topMoves.isEmpty()) {
+			return;
+		}
+		goodMove.setEngineTopMoves(topMoves.stream()
+				.map(line -> line.getBestMove() + " " + String.format(Locale.US, "%.2f", line.getEvaluation()))
+				.collect(Collectors.joining(", ")));
+		goodMove.setEngineBestEval(topMoves.get(0).getEvaluation());
+		for (int i = 0; i < topMoves.size(); i++) {
+			if (goodMove.getMove().equals(topMoves.get(i).getBestMove())) {
+				goodMove.setEngineRank(i + 1);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the good moves of a position not saved yet (same criteria as the
+	 * search), so their evals can be requested together before exploring them.
+	 */
+	private List<String> getNewGoodMoves(SearchNode node, String color, PositionStats stats, int[] averageRatings,
+			double avgRatingForAllMoves, int movesToConsider) {
+		List<String> goodMoves = new ArrayList<>();
+		for (int i = 0; i < movesToConsider; i++) {
+			int totalGamesMove = stats.getTotalGamesMove(i);
+			if (totalGamesMove < minGamesToChooseCandidateMove) {
+				break;
+			}
+			double popularityPctg = (double) totalGamesMove / stats.getTotalGames();
+			if (isRarePlayerMove(color, popularityPctg)
+					&& isGoodRatingRatio(averageRatings[i] / avgRatingForAllMoves, totalGamesMove)
+					&& node.getGoodMove(stats.getUci(i)) == null) {
+				goodMoves.add(stats.getUci(i));
+			}
+		}
+		return goodMoves;
+	}
+	
+	/** Waits for the evals of the good moves found by the best-first search (set when they are ready). */
+	private void awaitPendingEvals() {
+		for (CompletableFuture<Void> pendingEval : pendingEvals) {
+			try {
+				pendingEval.join();
+			} catch (CompletionException e) {
+				log.error("Error evaluating good move", e.getCause());
+				totalErrorsExploringMoves++;
+			}
+		}
+		pendingEvals.clear();
 	}
 	
     /**
      * 
-     * @param fen
+     * @param node                    Node of the transposition table for this position (stats are saved here to be reused)
+     * @param board                   Board with the current position (FEN is only built when needed)
      * @param engineBestMove          Best move in this position according to engine   TODO: not used, review
      * @param color
      * @param remainingDepth
@@ -282,123 +876,91 @@ public class OpeningExplorerService {
      * @param avgRatingForAllMoves
      * @param goodMovesFound EMPTY if we are to find this moves, and NOT EMPTY if they are already found and we just need to add stats to them.
      * @return
-     * @throws UnsupportedEncodingException
      * @throws InterruptedException
      * @throws IOException
-     * @throws ClientProtocolException
      * @throws Exception
      */
-	private double callLichessApiPositionStats(String fen, String engineBestMove, String color, int remainingDepth, double parentProbability,
+	private double callLichessApiPositionStats(SearchNode node, Board board, String engineBestMove, String color, int remainingDepth, double parentProbability,
 			boolean isExtraDepthCall, double avgRatingForAllValidMoves, double avgRatingForAllMoves, List<GoodMove> goodMovesFound)
-			throws UnsupportedEncodingException, InterruptedException, IOException, ClientProtocolException, Exception {
-		
-		String encodedFen = URLEncoder.encode(fen, "UTF-8");
+			throws InterruptedException, IOException, Exception {
 		
-		String apiUrl = null;
-		
-		if (ratingRange.trim().endsWith("masters")) {
-			apiUrl = "https://explorer.lichess.ovh/masters?fen=" + encodedFen;
-		} else {
-			apiUrl = "https://explorer.lichess.ovh/lichess?speeds=blitz,rapid,classical&ratings=" + ratingRange + "&fen=" + encodedFen;
+		String fen = null;  // only built if needed (eval or good move)
+		PositionStats stats = node.getStats();
+		if (stats == null) {
+			// stats already fetched by the frontier workers (see prefetchFrontier)
+			stats = prefetchedStats.remove(node.getPositionKey());
+			if (stats == null) {
+				stats = getPositionStats(node.getPositionKey(), board);
+			}
+			node.setStats(stats);
+			node.setTopTierStats(topTierStats.get(node.getPositionKey()));
 		}
 
-        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-        credentialsProvider.setCredentials(
-                org.apache.http.auth.AuthScope.ANY,
-                new org.apache.http.auth.UsernamePasswordCredentials(username, password)
-        );
-
-        HttpClient httpClient = HttpClients.custom()
-                .setDefaultCredentialsProvider(credentialsProvider)
-                .build();
-        
-        // HANDLE THROTTLING OF CALLS TO LICHESS  (DONT GET BANNED!!!)
-        long elapsedTime = System.currentTimeMillis() - lastTimeCalledLichess;
-        if (elapsedTime < minTimeBetweenCalls) {
-        	long remainingTime = minTimeBetweenCalls - elapsedTime;
-        	Thread.sleep(remainingTime);  						// wait some time to total a full second since last calling URL, to avoid Http Error 429
-        }
-    	lastTimeCalledLichess = System.currentTimeMillis(); // i am just about to call so I record the time here 
-        
-        log.info("Call URL: " + apiUrl);
-        log.info("FEN: " + fen);
-        HttpGet httpGet = new HttpGet(apiUrl);
-
-        HttpResponse response = httpClient.execute(httpGet);
-
-        if (response.getStatusLine().getStatusCode() == 200) {
-            String jsonResponse = EntityUtils.toString(response.getEntity());
-            JsonObject jsonObject = JsonParser.parseString(jsonResponse).getAsJsonObject();
-            JsonArray movesArray = jsonObject.getAsJsonArray("moves");
-            int totalWhiteWins = jsonObject.get("white").getAsInt();
-            int totalBlackWins = jsonObject.get("black").getAsInt();
-            int totalDraws = jsonObject.get("draws").getAsInt();
-            int totalGames = totalWhiteWins + totalBlackWins + totalDraws;
+        if (stats != null) {
+            int totalGames = stats.getTotalGames();
 
         	// if not set, calculate the total games for starting position
         	if (totalGamesStartingPosition == null && remainingDepth == maxDepthHalfMoves) {
         		totalGamesStartingPosition = totalGames;
         	}
             
-            List<Integer> averageRatings = new ArrayList<>();
-            List<Integer> averageRatingRanks = new ArrayList<>();
+            int[] averageRatings = stats.getCandidateRatings(minGamesToChooseCandidateMove);
             int totalGamesForAllValidMoves = 0;	// total considering only moves "searched"
-            int totalGamesForAllMoves = 0;
             
-            for (int i = 0; i < movesArray.size(); i++) {
-                JsonObject moveObject = movesArray.get(i).getAsJsonObject();
-            	int averageRating = moveObject.get("averageRating").getAsInt();
-
-                int whiteWins = moveObject.get("white").getAsInt();
-                int blackWins = moveObject.get("black").getAsInt();
-                int draws = moveObject.get("draws").getAsInt();
-                
-                int totalGamesMove = whiteWins + blackWins + draws;
-            	
-                // we calculate the avgRatingForAllValidMoves by doing a weighted avg of the avg rating for all moves
+            // we calculate the avgRatingForAllValidMoves by doing a weighted avg of the avg rating for all moves
+            for (int i = 0; i < stats.getMoveCount(); i++) {
+                int totalGamesMove = stats.getTotalGamesMove(i);
             	if (totalGamesMove >= minGamesToChooseCandidateMove) {
-            		averageRatings.add(averageRating);
             		totalGamesForAllValidMoves = totalGamesForAllValidMoves + totalGamesMove;
-            		avgRatingForAllValidMoves = avgRatingForAllValidMoves + (double) averageRating * totalGamesMove / AVG_RATING;
+            		avgRatingForAllValidMoves = avgRatingForAllValidMoves + (double) stats.getAverageRating(i) * totalGamesMove / AVG_RATING;
             	}
-
-            	totalGamesForAllMoves = totalGamesForAllMoves + totalGamesMove;
-            	avgRatingForAllMoves = avgRatingForAllMoves + (double) averageRating * totalGamesMove / AVG_RATING;
             }
             
             // we multiply for AVG_RATING to cancel out the division we did before (this is only for avoiding numeric overflows).
-            avgRatingForAllValidMoves = (double) avgRatingForAllValidMoves * AVG_RATING / totalGamesForAllValidMoves;
-            avgRatingForAllMoves = (double) avgRatingForAllMoves * AVG_RATING / totalGamesForAllMoves;
+            avgRatingForAllValidMoves = avgRatingForAllValidMoves * AVG_RATING / totalGamesForAllValidMoves;
+            avgRatingForAllMoves = stats.getAvgRatingForAllMoves();
             
             log.info("avgRatingForAllValidMoves=" + avgRatingForAllValidMoves);
             log.info("avgRatingForAllMoves=" + avgRatingForAllMoves);
             
-            averageRatingRanks = rankAverageRatings(averageRatings);
+            // saved before exploring the moves, so it's ready if a transposition reaches this node again down this line
+            node.setAvgRatingForAllMoves(avgRatingForAllMoves);
             
-            for (int i = 0; i < movesArray.size(); i++) {
+            int[] averageRatingRanks = PositionStats.rankRatings(averageRatings);
+            searchMetricsService.nodeExpanded();
+            int movesExplored = 0;
+            int movesToConsider = getMovesToConsider(color, stats);
+            
+            // evals of the good moves requested together (one engine search), NOT BLOCKING
+            Map<String, CompletableFuture<Double>> evalFutures = Map.of();
+            CompletableFuture<List<EvaluationResult>> topMovesFuture = CompletableFuture.completedFuture(List.of());
+            List<String> newGoodMoves = evalDepth > 0
+            		? getNewGoodMoves(node, color, stats, averageRatings, avgRatingForAllMoves, movesToConsider)
+            		: List.of();
+            if (!newGoodMoves.isEmpty()) {
+            	fen = board.getFen();
+            	topMovesFuture = requestTopMoves(fen);
+            	evalFutures = requestEvals(fen, newGoodMoves, topMovesFuture);
+            }
+            
+            for (int i = 0; i < movesToConsider; i++) {
             	
             	boolean isGoodMove = false;
             	double ratingPercentile = 0.0;
             	double averageRatingOpponents = 0.0;
             	
                 Double localEval = 0.0;
+                CompletableFuture<Double> evalFuture = null;
                 boolean skipEvalCheck = true;
 
-            	
-                JsonObject moveObject = movesArray.get(i).getAsJsonObject();
-                String move = moveObject.get("uci").getAsString();
+                String move = stats.getUci(i);
                 
                 log.debug("checking move: " + move);
                 log.debug("total games (prev move): " + totalGames);
                 
+                int totalGamesMove = stats.getTotalGamesMove(i);
                 
-                int whiteWins = moveObject.get("white").getAsInt();
-                int blackWins = moveObject.get("black").getAsInt();
-                int draws = moveObject.get("draws").getAsInt();
-                
-                int totalGamesMove = whiteWins + blackWins + draws;
-                
-                double whitePointsPctg = (double) (whiteWins * 1 + draws * 0.5) / totalGamesMove; 
+                double whitePointsPctg = stats.getWhitePointsPctg(i); 
 
                 // if total games are very few, we stop iterating (moves are ordered descending on total games played)
             	if (totalGamesMove < minGamesToChooseCandidateMove) {
@@ -410,38 +972,33 @@ public class OpeningExplorerService {
                 // calculate the Probability of reaching this position
                 double rawProbability = (double) totalGames / totalGamesStartingPosition;
                 
-                double accumulatedProbability = 1.0;
-                // if we are checking the opponent move, recalculate the Probability of this move
-                if (!color.equals(playerColor)) {
-                	accumulatedProbability = parentProbability * popularityPctg;
-                } else {
-                	accumulatedProbability = parentProbability;
-                }
+                double accumulatedProbability = getAccumulatedProbability(color, parentProbability, popularityPctg);
                 
                 // Check if it's played rarely from PLAYER's side
-                if (color.equals(playerColor) && popularityPctg <= maxPopularityPctg) {
+                if (isRarePlayerMove(color, popularityPctg)) {
                 	
-                	ratingPercentile = (1 - ((double) (averageRatingRanks.get(i) - 1) / averageRatingRanks.size())) * 100.0;
+                	ratingPercentile = (1 - ((double) (averageRatingRanks[i] - 1) / averageRatingRanks.length)) * 100.0;
                 	
-                	double ratingRatio = averageRatings.get(i) / avgRatingForAllMoves;
+                	double ratingRatio = averageRatings[i] / avgRatingForAllMoves;
                 	
                     // Check if it's one of the top moves in terms of rating average
                 	// and that it has a "minimum of games" played
-                    if ( 	// ratingRatio > minRatingRatio (below) 
-                    		Precision.compareTo(ratingRatio, minRatingRatio, Constants.EPSILON) > 0
-                    		&& totalGamesMove >= minGamesToChooseGoodMove) {
+                    if (isGoodRatingRatio(ratingRatio, totalGamesMove)) {
                     	
                     	// TODO: check if could use ratingPercentile  >= minPercentileForRatingAvg  like we did in the past
                     	
                     	isGoodMove = true;
-                    	
-                    	if (evalDepth > 0) {
-                    		localEval = getEval(fen, move);
+                    	if (fen == null) {
+                    		fen = board.getFen();
                     	}
                     	
-                    	log.debug("*** GOOD MOVE: move={} eval={}", move, localEval);
+                    	// no need to evaluate again if the node is explored again (deeper)
+                    	// NOT BLOCKING: the engine works while this move is explored, we wait for the eval when saving the good move
+                    	evalFuture = evalFutures.get(move);
+                    	
+                    	log.debug("*** GOOD MOVE: move={}", move);
                     	log.debug("popularity pctg: " + popularityPctg);                    	
-                    	log.debug("avg rating rank: " + averageRatingRanks.get(i));
+                    	log.debug("avg rating rank: " + averageRatingRanks[i]);
                     }
 
                     
@@ -474,8 +1031,7 @@ public class OpeningExplorerService {
                 
 				// if Probability of move is enough and we have "enough games" and decent EVAL,
 				// continue searching recursively
-                if (accumulatedProbability >= minProbabilityOfMove 
-                		&& totalGamesMove >= minGamesToExploreOpponentMove 
+                if (isMoveToExplore(accumulatedProbability, totalGamesMove)
                 		// && Precision.compareTo(evalDiff, currentMaxEvalDiff, Constants.EPSILON) < 0     // TODO: check if we should check for this diff, seems checking with globalEvalDiff is enough
                 	) {
                 	
@@ -484,26 +1040,32 @@ public class OpeningExplorerService {
                 		//skipEvalCheck = false;  //FIXME: disabled for now
                 	}
 
-                	// if we dont skip evaluation and we havent done it yet, we do it... 
-                	if (!skipEvalCheck && localEval == null) {
-                		localEval = getEval(fen, move);
+                	// if we dont skip evaluation, we wait for it (requesting it if we havent done it yet)... 
+                	if (!skipEvalCheck) {
+                		localEval = evalFuture != null ? awaitEval(evalFuture) : getEval(board.getFen(), move);
                 	}
                 	
                 	if (skipEvalCheck || Precision.compareTo(startPositionEval - localEval, currentMaxEvalDiff, Constants.EPSILON) < 0) {
                 		log.debug("EXPLORING MOVE: color={} move={} localEval={} startPositionalEval={}", color, move, localEval, startPositionEval);
                 		log.debug("currentMaxEvalDiff={}", currentMaxEvalDiff);
 	                	
-	                    String newFen = generateNewFen(fen, move);
 	                    String opponentColor = (color.equals(COLOR_WHITE)) ? COLOR_BLACK : COLOR_WHITE;
 	                    log.debug("try move: " + move);
 	                    if (!isExtraDepthCall) {
 	                    	// we mark this as an "extra depth call" only if we are in remaining depth=1 
 	                    	// and we are doing and we are looking at a "good move"
-	                    	averageRatingOpponents = searchBestMove(newFen, null, opponentColor, remainingDepth - 1, accumulatedProbability, remainingDepth == 1 && isGoodMove);
+	                    	doUciMove(board, move);
+	                    	movesExplored++;
+	                    	try {
+	                    		averageRatingOpponents = searchBestMove(board, null, opponentColor, remainingDepth - 1, node,
+	                    				getEdgeWeight(color, popularityPctg), remainingDepth == 1 && isGoodMove);
+	                    	} finally {
+	                    		board.undoMove();
+	                    	}
 	                    } else {
 	                    	log.debug("not doing call to search more moves, we are just getting the avgRatingForAllValidMoves (extra call)");
 	                    }
-	                    log.debug("back to FEN: "+ fen);
+	                    log.debug("back from move: "+ move);
                 	
                 	} else {
                 		log.debug("DISCARDING MOVE: color={} move={} localEval={} startPositionalEval={}", color, move, localEval, startPositionEval);
@@ -512,73 +1074,593 @@ public class OpeningExplorerService {
                 // if we dont comply with criteria to search deeper but we HAVE to do 
                 // an "extra depth call" (for Good Move stats)...
                 } else if (isGoodMove) {
-                    String newFen = generateNewFen(fen, move);
                     String opponentColor = (color.equals(COLOR_WHITE)) ? COLOR_BLACK : COLOR_WHITE;
                     log.debug("try move (to get stats): " + move);
-                	averageRatingOpponents = searchBestMove(newFen, null, opponentColor, remainingDepth - 1, accumulatedProbability, remainingDepth == 1 && isGoodMove);
-                	log.debug("back to FEN (got stats): "+ fen);
+                    doUciMove(board, move);
+                    movesExplored++;
+                    try {
+                    	averageRatingOpponents = searchBestMove(board, null, opponentColor, remainingDepth - 1, node,
+                    			getEdgeWeight(color, popularityPctg), remainingDepth == 1 && isGoodMove);
+                    } finally {
+                    	board.undoMove();
+                    }
+                	log.debug("back from move (got stats): "+ move);
                 }
                 
+                // if this good move was already saved (node explored again, deeper), we only update its stats
+                if (isGoodMove && node.getGoodMove(move) != null) {
+                	node.getGoodMove(move).setAverageRatingOpponents(averageRatingOpponents);
+                	
                 // if we are iterating in a "good move", we save it to memory
-                if (isGoodMove) {
-                    bestMoves.add(
-                    		GoodMove.builder()
+                } else if (isGoodMove) {
+                	GoodMove goodMove = GoodMove.builder()
                     		.move(move)
                     		.totalGames(totalGames)
-                    		.evaluation(localEval)
+                    		.evaluation(evalFuture != null ? awaitEval(evalFuture) : localEval)
                     		.whitePointsPctg(whitePointsPctg)
-                    		.averageRating(averageRatings.get(i))
+                    		.averageRating(averageRatings[i])
                     		.averageRatingForAllMoves(avgRatingForAllMoves)
                     		.averageRatingOpponents(averageRatingOpponents)
-                    		.ratingRank(averageRatingRanks.get(i))
+                    		.ratingRank(averageRatingRanks[i])
                     		.ratingPercentile(ratingPercentile)
                     		.popularity(popularityPctg)
                     		.totalGamesMove(totalGamesMove)
                     		.fen(fen)
-                    		.probabilityOcurring(parentProbability)
+                    		.probabilityOcurring(node.getReachProbability())
                     		.rawProbability(rawProbability)
                     		.whitePointsPctg(whitePointsPctg)
                     		.performance(EloUtil.getPerformance(avgRatingForAllMoves, whitePointsPctg))
-                    		.build()
-                    		);
+                    		.build();
+                	setTopTierStats(goodMove, node.getTopTierStats());
+                	setEngineTopMoves(goodMove, topMovesFuture.join());
+                	node.addGoodMove(goodMove);
+                    bestMoves.add(goodMove);
+                    searchCheckpointService.saveGoodMove(goodMove);
                 }
 
             
             } // end FOR candidate moves
+            
+            if (!isExtraDepthCall) {
+            	searchMetricsService.movesPruned(stats.getMoveCount() - movesExplored);
+            }
         
         } else {
         	totalErrorsExploringMoves++;
-        	log.error("ERROR IN RESPONSE...");
-        	log.error("response: " + response);
+        	searchMetricsService.nodeErrored();
+        	node.setExploredDepth(-1);  // so another path reaching this position can try again
         }
 		return avgRatingForAllMoves;
 	}
-    
-    
 
-	private List<Integer> rankAverageRatings(List<Integer> averageRatings) {
-        List<Integer> sortedRatings = new ArrayList<>(averageRatings);
-        Collections.sort(sortedRatings, Collections.reverseOrder());
+	/**
+	 * Gets the probability of the path after playing a move: for opponent moves
+	 * it is multiplied by the popularity of the move, our player's moves don't
+	 * change it (we choose them).
+	 */
+	private double getAccumulatedProbability(String color, double parentProbability, double popularityPctg) {
+		return parentProbability * getEdgeWeight(color, popularityPctg);
+	}
+
+	/**
+	 * Gets the share of the reach probability passed through a move (weight of
+	 * the edge in the DAG): the popularity for opponent moves, 1.0 for our
+	 * player's moves.
+	 */
+	private double getEdgeWeight(String color, double popularityPctg) {
+		return color.equals(playerColor) ? 1.0 : popularityPctg;
+	}
 
-        Map<Integer, Integer> ratingToRank = new HashMap<>();
-        int rank = 1;
+	/**
+	 * Gets the number of moves to consider in a position (most played first):
+	 * all for our player, for the opponent only the replies covering
+	 * {@link #opponentCoverage} of the games.
+	 */
+	private int getMovesToConsider(String color, PositionStats stats) {
+		if (color.equals(playerColor)) {
+			return stats.getMoveCount();
+		}
+		return stats.getCoveredMoveCount(opponentCoverage);
+	}
 
-        for (int i = 0; i < sortedRatings.size(); i++) {
-            int rating = sortedRatings.get(i);
-            if (!ratingToRank.containsKey(rating)) {
-                ratingToRank.put(rating, rank);
-            }
-            rank++;
-        }
+	/** Checks if the move is from PLAYER's side and it's played rarely (candidate to good move). */
+	private boolean isRarePlayerMove(String color, double popularityPctg) {
+		return color.equals(playerColor) && popularityPctg <= maxPopularityPctg;
+	}
 
-        List<Integer> averageRatingRanks = new ArrayList<>();
-        for (int rating : averageRatings) {
-            int rankForRating = ratingToRank.get(rating);
-            averageRatingRanks.add(rankForRating);
-        }
+	/** Checks if a rare move has a good rating ratio and a "minimum of games" played (so it's a good move). */
+	private boolean isGoodRatingRatio(double ratingRatio, int totalGamesMove) {
+		// ratingRatio > minRatingRatio
+		return Precision.compareTo(ratingRatio, minRatingRatio, Constants.EPSILON) > 0
+				&& totalGamesMove >= minGamesToChooseGoodMove;
+	}
+
+	/** Checks if the probability of the move is enough and we have "enough games" to search deeper. */
+	private boolean isMoveToExplore(double accumulatedProbability, int totalGamesMove) {
+		return accumulatedProbability >= minProbabilityOfMove && totalGamesMove >= minGamesToExploreOpponentMove;
+	}
+
+	/**
+	 * Expands the frontier of the search concurrently, only to fetch the stats
+	 * of the positions the recursive search will need (see
+	 * {@link #prefetchedStats}). Pending positions are expanded by a pool of
+	 * {@link #frontierWorkers} workers sharing the rate limiter of the explorer
+	 * client, so siblings (and "extra depth calls") are fetched in parallel
+	 * while the JSON parsing and FEN generation of other positions goes on.
+	 * <br>
+	 * Moves are expanded with the same criteria used by the recursive search
+	 * (which does not depend on the engine eval), so the positions fetched are
+	 * the same. A position reached again by another path is only expanded if the
+	 * new path has more depth or probability than the ones already expanded, so
+	 * we can fetch a few positions the recursive search would skip (transpositions
+	 * reached later in the search), never less.
+	 * 
+	 * @param color Color to play in the starting position.
+	 */
+	private void prefetchFrontier(String color) throws InterruptedException {
+		ExecutorService workers = Executors.newFixedThreadPool(frontierWorkers, runnable -> {
+			Thread thread = new Thread(runnable, "frontier-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Map<Long, List<SearchTask>> expandedTasks = new HashMap<>();
+		AtomicInteger pendingTasks = new AtomicInteger();
+		CountDownLatch frontierEmpty = new CountDownLatch(1);
+		long startTime = System.currentTimeMillis();
+		
+		if (submitFrontierTask(newRootTask(color), workers, expandedTasks, pendingTasks, frontierEmpty)) {
+			frontierEmpty.await();
+		}
+		workers.shutdown();
+		
+		log.info("Frontier expanded: positions={} workers={} time={} secs", prefetchedStats.size(), frontierWorkers,
+				(System.currentTimeMillis() - startTime) / 1000);
+	}
+
+	/**
+	 * Estimates the cost of the search (explorer calls, engine evals, time) and,
+	 * if there's a time budget, raises the min probability and the min games to
+	 * explore until it fits (see {@link SearchPlannerService}).
+	 * <br>
+	 * The estimate uses the branching of a shallow probe: the first half moves
+	 * of the search are fetched with the same criteria, and saved so the search
+	 * reuses them.
+	 * 
+	 * @return The plan applied, with its estimate.
+	 */
+	public SearchPlan planSearch() throws Exception {
+		playerColor = PgnUtil.getColorToPlay(startPositionFEN);
+		long startTime = System.currentTimeMillis();
+		int remoteCallsBefore = explorerDataSource.getTotalRemoteCalls();
+		
+		List<PositionStats> playerPositions = new ArrayList<>();
+		List<PositionStats> opponentPositions = new ArrayList<>();
+		int goodMoves = 0;
+		long rootGames = 0;
+		
+		Deque<SearchTask> pendingTasks = new ArrayDeque<>();
+		Set<Long> probedKeys = new HashSet<>();
+		pendingTasks.add(newRootTask(playerColor));
+		int minRemainingDepth = maxDepthHalfMoves - searchPlannerService.getProbeDepth();
+		while (!pendingTasks.isEmpty()) {
+			SearchTask task = pendingTasks.poll();
+			if (!probedKeys.add(task.getPositionKey())) {
+				continue;
+			}
+			Board board = getTaskBoard(task);
+			PositionStats stats = prefetchedStats.get(task.getPositionKey());
+			if (stats == null) {
+				stats = getPositionStats(task.getPositionKey(), board);
+				if (stats == null) {
+					continue;
+				}
+				prefetchedStats.put(task.getPositionKey(), stats);
+			}
+			
+			String color = task.getColor();
+			boolean isPlayer = color.equals(playerColor);
+			(isPlayer ? playerPositions : opponentPositions).add(stats);
+			if (task.getParent() == null) {
+				rootGames = stats.getTotalGames();
+			}
+			
+			int totalGames = stats.getTotalGames();
+			int[] averageRatings = stats.getCandidateRatings(minGamesToChooseCandidateMove);
+			int movesToConsider = getMovesToConsider(color, stats);
+			for (int i = 0; i < movesToConsider; i++) {
+				int totalGamesMove = stats.getTotalGamesMove(i);
+				if (totalGamesMove < minGamesToChooseCandidateMove) {
+					break;
+				}
+				double popularityPctg = (double) totalGamesMove / totalGames;
+				double accumulatedProbability = getAccumulatedProbability(color, task.getProbability(), popularityPctg);
+				if (isRarePlayerMove(color, popularityPctg)
+						&& isGoodRatingRatio(averageRatings[i] / stats.getAvgRatingForAllMoves(), totalGamesMove)) {
+					goodMoves++;
+				}
+				if (task.getRemainingDepth() - 1 > minRemainingDepth && isMoveToExplore(accumulatedProbability, totalGamesMove)) {
+					pendingTasks.add(newChildTask(task, board, stats.getUci(i), accumulatedProbability,
+							getEdgeWeight(color, popularityPctg), false));
+				}
+			}
+		}
+		
+		// time per call measured in the probe (only remote calls count, cache hits are almost free)
+		int remoteCalls = explorerDataSource.getTotalRemoteCalls() - remoteCallsBefore;
+		double probeSecs = (System.currentTimeMillis() - startTime) / 1000.0;
+		BranchingProfile profile = BranchingProfile.builder()
+				.rootGames(rootGames)
+				.playerPopularity(SearchPlannerService.getAveragePopularity(playerPositions))
+				.opponentPopularity(SearchPlannerService.getAveragePopularity(opponentPositions))
+				.goodMovesPerPlayerNode(playerPositions.isEmpty() ? 0.0 : (double) goodMoves / playerPositions.size())
+				.secondsPerCall(probeSecs / Math.max(1, remoteCalls > 0 ? remoteCalls : probedKeys.size()))
+				.build();
+		log.info("Planner probe: positions={} remoteCalls={} time={} secs profile={}", probedKeys.size(), remoteCalls,
+				probeSecs, profile);
+		
+		SearchPlan plan = searchPlannerService.plan(profile, SearchPlan.builder()
+				.maxDepthHalfMoves(maxDepthHalfMoves)
+				.minProbabilityOfMove(minProbabilityOfMove)
+				.minGamesToExploreOpponentMove(minGamesToExploreOpponentMove)
+				.minGamesToChooseCandidateMove(minGamesToChooseCandidateMove)
+				.opponentCoverage(opponentCoverage)
+				.evalsEnabled(evalDepth > 0)
+				.build());
+		minProbabilityOfMove = plan.getMinProbabilityOfMove();
+		minGamesToExploreOpponentMove = plan.getMinGamesToExploreOpponentMove();
+		return plan;
+	}
+
+	/**
+	 * Submits a task to the workers, unless the position is not fetched by the
+	 * recursive search (max depth) or it was already expanded with more depth and
+	 * probability.
+	 * 
+	 * @return TRUE if submitted.
+	 */
+	private boolean submitFrontierTask(SearchTask task, ExecutorService workers, Map<Long, List<SearchTask>> expandedTasks,
+			AtomicInteger pendingTasks, CountDownLatch frontierEmpty) {
+		
+		if (stopRequested || (task.getRemainingDepth() <= 0 && !task.isExtraDepthCall())) {
+			return false;
+		}
+		synchronized (expandedTasks) {
+			if (isExpandedBefore(expandedTasks, task.getPositionKey(), task)) {
+				return false;
+			}
+		}
+		
+		searchMetricsService.setFrontierSize(pendingTasks.incrementAndGet());
+		workers.execute(() -> {
+			try {
+				for (SearchTask childTask : expandFrontierTask(task)) {
+					submitFrontierTask(childTask, workers, expandedTasks, pendingTasks, frontierEmpty);
+				}
+			} catch (Exception e) {
+				// the recursive search will try again
+				log.error("Error expanding frontier task: " + task, e);
+			} finally {
+				int pending = pendingTasks.decrementAndGet();
+				searchMetricsService.setFrontierSize(pending);
+				if (pending == 0) {
+					frontierEmpty.countDown();
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Fetches the stats of the position and gets the moves the recursive search
+	 * explores from it (same criteria as {@link #callLichessApiPositionStats}).
+	 * 
+	 * @return Tasks for the positions reached by the moves explored.
+	 */
+	private List<SearchTask> expandFrontierTask(SearchTask task) throws Exception {
+		List<SearchTask> childTasks = new ArrayList<>();
+		Board board = getTaskBoard(task);
+		
+		PositionStats stats = prefetchedStats.get(task.getPositionKey());
+		if (stats == null) {
+			// NOTE: two paths reaching the same position at the same time can fetch it twice (rare, the cache has it after that)
+			stats = getPositionStats(task.getPositionKey(), board);
+			if (stats == null) {
+				return childTasks;
+			}
+			prefetchedStats.put(task.getPositionKey(), stats);
+		}
+		if (task.isExtraDepthCall()) {
+			return childTasks;  // we only need the stats of this position
+		}
+		
+		int totalGames = stats.getTotalGames();
+		double avgRatingForAllMoves = stats.getAvgRatingForAllMoves();
+		int[] averageRatings = stats.getCandidateRatings(minGamesToChooseCandidateMove);
+		String color = task.getColor();
+		int movesToConsider = getMovesToConsider(color, stats);
+		
+		for (int i = 0; i < movesToConsider; i++) {
+			int totalGamesMove = stats.getTotalGamesMove(i);
+			if (totalGamesMove < minGamesToChooseCandidateMove) {
+				break;
+			}
+			
+			double popularityPctg = (double) totalGamesMove / totalGames;
+			double accumulatedProbability = getAccumulatedProbability(color, task.getProbability(), popularityPctg);
+			boolean isGoodMove = isRarePlayerMove(color, popularityPctg)
+					&& isGoodRatingRatio(averageRatings[i] / avgRatingForAllMoves, totalGamesMove);
+			
+			if (isMoveToExplore(accumulatedProbability, totalGamesMove) || isGoodMove) {
+				childTasks.add(newChildTask(task, board, stats.getUci(i), accumulatedProbability,
+						getEdgeWeight(color, popularityPctg), isGoodMove));
+			}
+		}
+		return childTasks;
+	}
+
+	/**
+	 * Checks if the position was already expanded by a path with the same or
+	 * more depth and probability (so expanding this task adds nothing), if not
+	 * the task is registered as expanded.
+	 */
+	private static boolean isExpandedBefore(Map<Long, List<SearchTask>> expandedTasks, long positionKey, SearchTask task) {
+		List<SearchTask> tasksForPosition = expandedTasks.computeIfAbsent(positionKey, key -> new ArrayList<>());
+		for (SearchTask expandedTask : tasksForPosition) {
+			if (task.isDominatedBy(expandedTask)) {
+				return true;
+			}
+		}
+		tasksForPosition.add(task);
+		return false;
+	}
+
+	/** Creates the task for the starting position. */
+	private SearchTask newRootTask(String color) {
+		Board board = new Board();
+		board.loadFromFen(startPositionFEN);
+		return SearchTask.builder()
+				.positionKey(ZobristUtil.getKey(board))
+				.color(color)
+				.remainingDepth(maxDepthHalfMoves)
+				.probability(1.0)
+				.edgeWeight(1.0)
+				.build();
+	}
+
+	/**
+	 * Creates the task for the position reached by a move, same as the recursive
+	 * call done by the recursive search ("extra depth call" only for good moves
+	 * at the last depth). The move is done and undone on the board of the parent
+	 * task, only to get the key of the new position.
+	 */
+	private SearchTask newChildTask(SearchTask task, Board board, String move, double accumulatedProbability,
+			double edgeWeight, boolean isGoodMove) {
+		doUciMove(board, move);
+		long positionKey = ZobristUtil.getKey(board);
+		board.undoMove();
+		return SearchTask.builder()
+				.parent(task)
+				.move(move)
+				.positionKey(positionKey)
+				.color((task.getColor().equals(COLOR_WHITE)) ? COLOR_BLACK : COLOR_WHITE)
+				.remainingDepth(task.getRemainingDepth() - 1)
+				.probability(accumulatedProbability)
+				.edgeWeight(edgeWeight)
+				.extraDepthCall(task.getRemainingDepth() == 1 && isGoodMove)
+				.build();
+	}
+
+	/**
+	 * Gets the board for the position of a task, replaying the moves from the
+	 * starting position.
+	 */
+	private Board getTaskBoard(SearchTask task) {
+		Board board = new Board();
+		board.loadFromFen(startPositionFEN);
+		for (String move : task.getMoves()) {
+			doUciMove(board, move);
+		}
+		return board;
+	}
+
+	/**
+	 * Gets the stats of a position from the checkpoint of the search being
+	 * resumed or else from the explorer data source (for the Lichess explorer,
+	 * from the cache when possible, except for the stale positions of an
+	 * incremental search). Stats fetched are saved to the checkpoint.
+	 * 
+	 * @param positionKey Key of the position.
+	 * @param board       Board with the position (the FEN is only built if the
+	 *                    stats are not in the checkpoint).
+	 * @return Stats of the position, or NULL if there was an error calling the explorer.
+	 */
+	private PositionStats getPositionStats(long positionKey, Board board) throws Exception {
+		String fen = board.getFen();
+		
+		// the top tier variant is fetched at the same time (by another thread), the search waits for both
+		CompletableFuture<Void> topTierFetch = fetchTopTierStats(positionKey, fen);
+		try {
+			PositionStats stats = searchCheckpointService.takeStats(positionKey);
+			if (stats != null) {
+				return stats;
+			}
+			// stale positions of an incremental re-run are fetched again, not served from the cache
+			stats = explorerDataSource.getPositionStats(fen, getExplorerQuery(), searchCheckpointService.isStale(positionKey));
+			if (stats != null) {
+				searchCheckpointService.saveStats(positionKey, stats);
+			}
+			return stats;
+		} finally {
+			if (topTierFetch != null) {
+				topTierFetch.join();
+			}
+		}
+	}
+	
+	/**
+	 * Starts fetching the stats of the top tier variant of a position (saved in
+	 * {@link #topTierStats}). Errors are only logged, the good moves of the
+	 * position will have no top tier columns.
+	 * 
+	 * @return The fetch running, or NULL if the top tier variant is disabled or
+	 *         already fetched.
+	 */
+	private CompletableFuture<Void> fetchTopTierStats(long positionKey, String fen) {
+		if (topTierExecutor == null || topTierStats.containsKey(positionKey)) {
+			return null;
+		}
+		ExplorerQuery query = getTopTierExplorerQuery();
+		return CompletableFuture.runAsync(() -> {
+			try {
+				PositionStats stats = explorerDataSource.getPositionStats(fen, query);
+				if (stats != null) {
+					topTierStats.put(positionKey, stats);
+				}
+			} catch (Exception e) {
+				log.error("Error getting top tier stats: fen=" + fen, e);
+			}
+		}, topTierExecutor);
+	}
+	
+	/**
+	 * Sets the top tier columns of a good move from the top tier stats of its
+	 * position (none if NULL). The avg rating of the opponents is set when
+	 * exporting, see {@link #setOpponentsStats()}.
+	 */
+	private static void setTopTierStats(GoodMove goodMove, PositionStats topTierStats) {
+		if (topTierStats == null) {
+			return;
+		}
+		goodMove.setTopTierTotalGames(topTierStats.getTotalGames());
+		goodMove.setTopTierAverageRatingForAllMoves(topTierStats.getAvgRatingForAllMoves());
+		for (int i = 0; i < topTierStats.getMoveCount(); i++) {
+			if (topTierStats.getUci(i).equals(goodMove.getMove())) {
+				goodMove.setTopTierAverageRating(topTierStats.getAverageRating(i));
+				goodMove.setTopTierWhitePointsPctg(topTierStats.getWhitePointsPctg(i));
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Sets the stats of the opponent replies to the good moves, from the
+	 * positions reached by them (when they were explored): the top tier avg
+	 * rating, and the weighted (by games played) avg rating, score and eval of
+	 * the replies covering {@link #opponentCoverage} of the games. Evals are only
+	 * done if the engine is enabled.
+	 */
+	private void setOpponentsStats() {
+		Board board = new Board();
+		for (GoodMove goodMove : bestMoves) {
+			board.loadFromFen(goodMove.getFen());
+			doUciMove(board, goodMove.getMove());
+			SearchNode nextNode = nodeTable.get(ZobristUtil.getKey(board));
+			if (nextNode == null) {
+				continue;
+			}
+			if (nextNode.getTopTierStats() != null) {
+				goodMove.setTopTierAverageRatingOpponents(nextNode.getTopTierStats().getAvgRatingForAllMoves());
+			}
+			
+			PositionStats stats = nextNode.getStats();
+			if (stats != null && stats.getTotalGames() > 0) {
+				int coveredMoves = stats.getCoveredMoveCount(opponentCoverage);
+				goodMove.setOpponentsCoveredMoves(coveredMoves);
+				goodMove.setOpponentsCoveredAverageRating(stats.getWeightedAverageRating(coveredMoves));
+				goodMove.setOpponentsCoveredWhitePointsPctg(stats.getWeightedWhitePointsPctg(coveredMoves));
+				if (evalDepth > 0) {
+					goodMove.setOpponentsCoveredEval(getCoveredEval(board.getFen(), stats, coveredMoves));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gets the positions of the search tree where a color is to move, most
+	 * probable first. Nodes don't keep their FEN, so the tree is walked from the
+	 * starting position doing the moves of the stats that lead to other nodes.
+	 *
+	 * @param color Color to move.
+	 * @return FEN of each node.
+	 */
+	Map<SearchNode, String> getPositions(String color) {
+		Map<SearchNode, String> fens = new HashMap<>();
+		Deque<String> pendingFens = new ArrayDeque<>();
+		pendingFens.add(startPositionFEN);
+		fens.put(nodeTable.get(ZobristUtil.getKey(startPositionFEN)), startPositionFEN);
+		Board board = new Board();
+		while (!pendingFens.isEmpty()) {
+			String fen = pendingFens.poll();
+			board.loadFromFen(fen);
+			SearchNode node = nodeTable.get(ZobristUtil.getKey(board));
+			if (node == null || node.getStats() == null) {
+				continue;
+			}
+			for (int i = 0; i < node.getStats().getMoveCount(); i++) {
+				doUciMove(board, node.getStats().getUci(i));
+				SearchNode child = nodeTable.get(ZobristUtil.getKey(board));
+				if (child != null && !fens.containsKey(child)) {
+					fens.put(child, board.getFen());
+					pendingFens.add(board.getFen());
+				}
+				board.undoMove();
+			}
+		}
+		fens.remove(null);
+		
+		Map<SearchNode, String> positions = new LinkedHashMap<>();
+		fens.entrySet().stream()
+				.filter(entry -> PgnUtil.getColorToPlay(entry.getValue()).equals(color))
+				.sorted(Comparator.comparingDouble(
+						(Map.Entry<SearchNode, String> entry) -> entry.getKey().getReachProbability()).reversed())
+				.forEach(entry -> positions.put(entry.getKey(), entry.getValue()));
+		return positions;
+	}
+
+	/**
+	 * Gets the weighted (by games played) avg eval of the first replies of a
+	 * position, each eval limited to +-{@link #MAX_OPPONENT_REPLY_EVAL}.
+	 */
+	private double getCoveredEval(String fen, PositionStats stats, int coveredMoves) {
+		// all requested first, so they are evaluated in one search
+		List<String> moves = new ArrayList<>();
+		for (int i = 0; i < coveredMoves; i++) {
+			moves.add(stats.getUci(i));
+		}
+		Map<String, CompletableFuture<Double>> evalFutures = requestEvals(fen, moves);
+		double evalSum = 0.0;
+		long games = 0;
+		for (int i = 0; i < coveredMoves; i++) {
+			double eval = awaitEval(evalFutures.get(stats.getUci(i)));
+			eval = Math.max(-MAX_OPPONENT_REPLY_EVAL, Math.min(MAX_OPPONENT_REPLY_EVAL, eval));
+			evalSum += eval * stats.getTotalGamesMove(i);
+			games += stats.getTotalGamesMove(i);
+		}
+		return games == 0 ? 0.0 : evalSum / games;
+	}
 
-        return averageRatingRanks;
-    }    
+	/**
+	 * Gets the query params for the explorer, as defined in the config. A rating
+	 * range ending in "masters" means the masters database.
+	 */
+	private ExplorerQuery getExplorerQuery() {
+		return getExplorerQuery(ratingRange, speeds);
+	}
+	
+	/** Gets the query params for the top tier variant (see {@link #topTierRatingRange}). */
+	private ExplorerQuery getTopTierExplorerQuery() {
+		return getExplorerQuery(topTierRatingRange, topTierSpeeds.isBlank() ? speeds : topTierSpeeds);
+	}
+	
+	private static ExplorerQuery getExplorerQuery(String ratingRange, String speeds) {
+		return ExplorerQuery.builder()
+				.ratingRange(ratingRange.trim())
+				.speeds(speeds)
+				.masters(ratingRange.trim().endsWith("masters"))
+				.build();
+	}
+    
+    
 
 	/**
 	 * Exports the good moves found to an excel file.
@@ -586,14 +1668,40 @@ public class OpeningExplorerService {
 	 * @throws IOException If there's some problem generating excel file.
 	 */
 	public void exportGoodMoves() throws IOException {
+		awaitPendingEvals();
+		if (SEARCH_MODE_BEST_FIRST.equals(searchMode)) {
+			bestMoves = getRankedGoodMoves();
+		}
+		
         System.out.println("Best Moves:");
         
         for (GoodMove goodMove : bestMoves) {
         	System.out.println("MOVE: " + goodMove);
 		}
 
+        setOpponentsStats();
+        goodMoveEnrichmentService.enrich(bestMoves, getExplorerQuery());
+        
+        // moves of the opponents we prepare against (see "players.usernames")
+        List<PlayerMove> playerMoves = new ArrayList<>();
+        if (playerExplorerService.isEnabled()) {
+        	String opponentColor = playerColor.equals(COLOR_WHITE) ? COLOR_BLACK : COLOR_WHITE;
+        	playerMoves = playerExplorerService.harvest(getPositions(opponentColor), opponentColor);
+        }
+        
         log.info("EXPORTING all good moves to EXCEL file.");
-        excelExportService.generateExcel(bestMoves);
+        excelExportService.generateExcel(bestMoves, playerMoves);
+        
+        log.info("Positions explored: {} (transpositions found: {}) source: {}", nodeTable.size(), totalTranspositions,
+        		explorerDataSource.getName());
+        AdaptiveRateLimiter rateLimiter = lichessExplorerClient.getRateLimiter();
+        log.info("Explorer calls: {} (retries: {}, throttled: {}), time waiting for rate limiter: {} secs, final rate: {} calls/sec", 
+        		rateLimiter.getTotalCalls(), lichessExplorerClient.getTotalRetries(), rateLimiter.getTotalThrottled(), 
+        		rateLimiter.getTotalWaitMillis() / 1000, rateLimiter.getRate());
+        log.info("Position stats cache: hits={} staleHits={} misses={}", positionStatsCacheService.getTotalHits(),
+        		positionStatsCacheService.getTotalStaleHits(), positionStatsCacheService.getTotalMisses());
+        log.info("Positions from checkpoint: reused={} new={} stale={}", searchCheckpointService.getTotalReused(),
+        		searchCheckpointService.getTotalNew(), searchCheckpointService.getTotalStale());
         
         if (totalErrorsExploringMoves == 0) {
         	System.out.println("FINISHED OK (no errors)");
@@ -602,42 +1710,27 @@ public class OpeningExplorerService {
         }
     }
     
-    /**
-	 * Generates a new FEN (Forsyth-Edwards Notation) string after a move. It now
-	 * includes a check for castling moves and converts them if necessary.
+	/**
+	 * Does a move on the board (it can be undone with {@link Board#undoMove()}).
+	 * Castling moves from the explorer (like "e1h1") are converted to king moves.
 	 * 
-	 * @param fen
-	 * @param moveUci
-	 * @return
+	 * @param board   Board with the position, updated with the move.
+	 * @param moveUci Move in UCI format, like the explorer returns it.
 	 */
-    private String generateNewFen(String fen, String moveUci) {
-        Board board = new Board();
-        board.loadFromFen(fen);
-
-        Square from = Square.valueOf(moveUci.substring(0, 2).toUpperCase());
-        Square to = Square.valueOf(moveUci.substring(2, 4).toUpperCase());
-
-        Move move;
-        if (moveUci.length() > 4) {
-            char promotionChar = moveUci.charAt(4);
-            boolean isBlack = Character.isLowerCase(promotionChar); // Determine the color based on the case of the promotion character
-            Piece promotionPiece = convertPromotionCharToPiece(Character.toLowerCase(promotionChar), isBlack);
-            move = new Move(from, to, promotionPiece);
-        } else {
-        	move = new Move(from, to);
-            move = convertToCastlingMoveIfNeeded(move, board, from, to);
-        }
-
-        try {
-            board.doMove(move);
-        } catch (MoveException e) {
-            e.printStackTrace();
-            // Handle the exception or rethrow as appropriate
-        }
+	static void doUciMove(Board board, String moveUci) {
+		Square from = Square.squareAt((moveUci.charAt(0) - 'a') + (moveUci.charAt(1) - '1') * 8);
+		Square to = Square.squareAt((moveUci.charAt(2) - 'a') + (moveUci.charAt(3) - '1') * 8);
 
-        return board.getFen();
-    }
-    
+		Move move;
+		if (moveUci.length() > 4) {
+			// the promotion piece is always lowercase in UCI, the color is the side to move
+			boolean isBlack = board.getSideToMove() == Side.BLACK;
+			move = new Move(from, to, convertPromotionCharToPiece(Character.toLowerCase(moveUci.charAt(4)), isBlack));
+		} else {
+			move = convertToCastlingMoveIfNeeded(new Move(from, to), board, from, to);
+		}
+		board.doMove(move);
+	}
     
 	/**
 	 * Receives a castling move like e1a1, e1h1, e8a8 or e8h8 and coverts it to a
@@ -649,31 +1742,40 @@ public class OpeningExplorerService {
 	 * @param to
 	 * @return
 	 */
-	private Move convertToCastlingMoveIfNeeded(Move move, Board board, Square from, Square to) {
+	private static Move convertToCastlingMoveIfNeeded(Move move, Board board, Square from, Square to) {
 	    
 		// quick check to improve performance, if the "from" square is not the king square, we know it is not castling
-		if (!move.getFrom().equals(Square.E1) && !move.getFrom().equals(Square.E8)) {
+		if (from != Square.E1 && from != Square.E8) {
 			return move; // just return original move as it does not need "castling transformation"
 		}
 		
-		String fen = board.getFen();
 	    // Check if the king is in the correct position for castling
 	    boolean isWhiteKingInPosition = board.getPiece(Square.E1) == Piece.WHITE_KING;
 	    boolean isBlackKingInPosition = board.getPiece(Square.E8) == Piece.BLACK_KING;
+	    CastleRight whiteCastleRight = board.getCastleRight(Side.WHITE);
+	    CastleRight blackCastleRight = board.getCastleRight(Side.BLACK);
 
 	    // Check if the move is a castling move and if castling is available
-	    if (from == Square.E1 && to == Square.H1 && fen.contains("K") && isWhiteKingInPosition) {
-	        return new Move("e1g1", Side.WHITE); // White short castle
-	    } else if (from == Square.E1 && to == Square.A1 && fen.contains("Q") && isWhiteKingInPosition) {
-	        return new Move("e1c1", Side.WHITE); // White long castle
-	    } else if (from == Square.E8 && to == Square.H8 && fen.contains("k") && isBlackKingInPosition) {
-	        return new Move("e8g8", Side.BLACK); // Black short castle
-	    } else if (from == Square.E8 && to == Square.A8 && fen.contains("q") && isBlackKingInPosition) {
-	        return new Move("e8c8", Side.BLACK); // Black long castle
+	    if (from == Square.E1 && to == Square.H1 && hasKingSide(whiteCastleRight) && isWhiteKingInPosition) {
+	        return new Move(Square.E1, Square.G1); // White short castle
+	    } else if (from == Square.E1 && to == Square.A1 && hasQueenSide(whiteCastleRight) && isWhiteKingInPosition) {
+	        return new Move(Square.E1, Square.C1); // White long castle
+	    } else if (from == Square.E8 && to == Square.H8 && hasKingSide(blackCastleRight) && isBlackKingInPosition) {
+	        return new Move(Square.E8, Square.G8); // Black short castle
+	    } else if (from == Square.E8 && to == Square.A8 && hasQueenSide(blackCastleRight) && isBlackKingInPosition) {
+	        return new Move(Square.E8, Square.C8); // Black long castle
 	    } else {
 	    	return move;
 	    }
 	}
+
+	private static boolean hasKingSide(CastleRight castleRight) {
+		return castleRight == CastleRight.KING_SIDE || castleRight == CastleRight.KING_AND_QUEEN_SIDE;
+	}
+
+	private static boolean hasQueenSide(CastleRight castleRight) {
+		return castleRight == CastleRight.QUEEN_SIDE || castleRight == CastleRight.KING_AND_QUEEN_SIDE;
+	}
     
     private static Piece convertPromotionCharToPiece(char promotionChar, boolean isBlack) {
         if (isBlack) {
@@ -0,0 +1,349 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.customlibs.chesslib.CustomPgnIterator;
+import com.ejaque.openingexplorer.model.ExplorerQuery;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.storage.PositionStatsFileWriter;
+import com.ejaque.openingexplorer.util.ZobristUtil;
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.Piece;
+import com.github.bhlangonijr.chesslib.Square;
+import com.github.bhlangonijr.chesslib.game.Game;
+import com.github.bhlangonijr.chesslib.game.GameResult;
+import com.github.bhlangonijr.chesslib.move.Move;
+import com.github.bhlangonijr.chesslib.move.MoveList;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Explorer stats from an opening tree built from local PGN files, so the search
+ * runs with no network and no throttling. The tree is built on startup:
+ * <ul>
+ * <li>Each file is read by one thread (with {@link CustomPgnIterator}, so games
+ * with errors are skipped).</li>
+ * <li>Games are replayed in batches by a pool of workers (one per core by
+ * default), adding the result of the game to every position (up to
+ * {@code maxPlies}) and to the move played in it.</li>
+ * </ul>
+ * Stats are the same as the Lichess explorer returns: white wins, draws and
+ * black wins per move, and the average rating of both players (only games
+ * with ratings are used for it). Castling moves use the explorer notation
+ * ("e1h1").
+ * <br>
+ * NOTE: the whole tree is kept in memory, see README about heap size for big
+ * PGN files (or reduce {@code maxPlies}).
+ */
+@Service
+@ConditionalOnProperty(name = "explorer.source", havingValue = "pgn")
+@Slf4j
+public class PgnExplorerDataSource implements ExplorerDataSource {
+
+	/** PGN files (COMMA separated) used to build the opening tree. */
+	@Value("${explorer.pgn.files:}")
+	private String pgnFiles;
+
+	/**
+	 * If set, the opening tree is also saved to this binary file after loading,
+	 * to be used later with explorer.source "binary" (no need to parse the PGN
+	 * files again).
+	 */
+	@Value("${explorer.pgn.binaryOutputFile:}")
+	private String binaryOutputFile;
+
+	/** Max half moves of each game added to the tree. */
+	@Value("${explorer.pgn.maxPlies:30}")
+	private int maxPlies = 30;
+
+	/** Workers replaying games. Set to 0 to use all the cores. */
+	@Value("${explorer.pgn.threads:0}")
+	private int threads;
+
+	/** Games replayed by each task. */
+	@Value("${explorer.pgn.batchSize:500}")
+	private int batchSize = 500;
+
+	/** Opening tree: stats of each position (key is the Zobrist key, see {@link ZobristUtil}). */
+	private final Map<Long, PositionCounters> positions = new ConcurrentHashMap<>();
+
+	private final AtomicInteger totalGames = new AtomicInteger();
+	private final AtomicInteger totalGamesSkipped = new AtomicInteger();
+
+	/** Counters of a move (or of all the games in a position). */
+	private static class MoveCounters {
+		int white;
+		int draws;
+		int black;
+		long ratingSum;
+		int ratedGames;
+
+		int getTotalGames() {
+			return white + draws + black;
+		}
+
+		int getAverageRating() {
+			return ratedGames == 0 ? 0 : (int) (ratingSum / ratedGames);
+		}
+	}
+
+	/** Counters of a position, updated by the workers holding its lock. */
+	private static class PositionCounters {
+		final MoveCounters totals = new MoveCounters();
+		final Map<String, MoveCounters> moves = new HashMap<>(4);
+	}
+
+	@PostConstruct
+	public void load() throws Exception {
+		List<String> files = new ArrayList<>();
+		for (String file : pgnFiles.split(",")) {
+			if (!file.isBlank()) {
+				files.add(file.trim());
+			}
+		}
+		if (files.isEmpty()) {
+			throw new IllegalStateException("No PGN files configured for the explorer (explorer.pgn.files)");
+		}
+
+		long startTime = System.currentTimeMillis();
+		int totalThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+
+		// bounded queue: when the workers can't keep up, the readers replay the games themselves
+		ThreadPoolExecutor replayExecutor = new ThreadPoolExecutor(totalThreads, totalThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(totalThreads * 2), newThreadFactory("pgn-replay"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		ExecutorService readerExecutor = Executors.newFixedThreadPool(Math.min(files.size(), totalThreads),
+				newThreadFactory("pgn-reader"));
+		try {
+			List<Future<?>> readers = new ArrayList<>();
+			for (String file : files) {
+				readers.add(readerExecutor.submit(() -> {
+					readFile(file, replayExecutor);
+					return null;
+				}));
+			}
+			for (Future<?> reader : readers) {
+				reader.get();
+			}
+		} finally {
+			readerExecutor.shutdown();
+			replayExecutor.shutdown();
+			replayExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		log.info("PGN opening tree loaded: files={} games={} skipped={} positions={} threads={} time={} secs", files.size(),
+				totalGames.get(), totalGamesSkipped.get(), positions.size(), totalThreads,
+				(System.currentTimeMillis() - startTime) / 1000);
+
+		if (!binaryOutputFile.isBlank()) {
+			writeBinaryFile(Paths.get(binaryOutputFile.trim()));
+		}
+	}
+
+	/** Saves the opening tree to a binary position stats file (see {@link PositionStatsFileWriter}). */
+	public void writeBinaryFile(Path file) throws IOException {
+		try (PositionStatsFileWriter writer = new PositionStatsFileWriter(file)) {
+			for (Map.Entry<Long, PositionCounters> entry : positions.entrySet()) {
+				writer.add(entry.getKey(), toPositionStats(entry.getValue()));
+			}
+		}
+	}
+
+	private void readFile(String file, ExecutorService replayExecutor) throws Exception {
+		log.info("Reading PGN file: {}", file);
+		// not a try-with-resources: its close() is declared to throw any exception (-Xlint:try)
+		CustomPgnIterator games = new CustomPgnIterator(file);
+		try {
+			List<Game> batch = new ArrayList<>(batchSize);
+			for (Game game : games) {
+				batch.add(game);
+				if (batch.size() == batchSize) {
+					submitBatch(batch, replayExecutor);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			submitBatch(batch, replayExecutor);
+		} finally {
+			games.close();
+		}
+	}
+
+	private void submitBatch(List<Game> batch, ExecutorService replayExecutor) {
+		replayExecutor.execute(() -> {
+			for (Game game : batch) {
+				try {
+					addGame(game);
+				} catch (Exception e) {
+					totalGamesSkipped.incrementAndGet();
+					log.debug("Ignoring game with errors: " + game.getGameId(), e);
+				}
+			}
+		});
+	}
+
+	/** Replays a game, adding its result to the positions (and moves) reached. */
+	private void addGame(Game game) throws Exception {
+		GameResult result = game.getResult();
+		if (result == null || result == GameResult.ONGOING) {
+			totalGamesSkipped.incrementAndGet();
+			return;
+		}
+		MoveList halfMoves = game.getHalfMoves();
+		if ((halfMoves == null || halfMoves.isEmpty()) && game.getMoveText() != null) {
+			game.loadMoveText();
+			halfMoves = game.getHalfMoves();
+		}
+		if (halfMoves == null || halfMoves.isEmpty()) {
+			totalGamesSkipped.incrementAndGet();
+			return;
+		}
+
+		int whiteElo = game.getWhitePlayer() != null ? game.getWhitePlayer().getElo() : 0;
+		int blackElo = game.getBlackPlayer() != null ? game.getBlackPlayer().getElo() : 0;
+		int rating = whiteElo > 0 && blackElo > 0 ? (whiteElo + blackElo) / 2 : 0;
+
+		Board board = new Board();
+		if (game.getFen() != null && !game.getFen().isBlank()) {
+			board.loadFromFen(game.getFen());
+		}
+		int plies = 0;
+		for (Move move : halfMoves) {
+			if (plies++ == maxPlies) {
+				break;
+			}
+			addResult(ZobristUtil.getKey(board), toExplorerUci(board, move), result, rating);
+			board.doMove(move);
+		}
+		addResult(ZobristUtil.getKey(board), null, result, rating);
+		totalGames.incrementAndGet();
+	}
+
+	private void addResult(long positionKey, String uci, GameResult result, int rating) {
+		PositionCounters position = positions.computeIfAbsent(positionKey, key -> new PositionCounters());
+		synchronized (position) {
+			addResult(position.totals, result, rating);
+			if (uci != null) {
+				addResult(position.moves.computeIfAbsent(uci, key -> new MoveCounters()), result, rating);
+			}
+		}
+	}
+
+	private static void addResult(MoveCounters counters, GameResult result, int rating) {
+		if (result == GameResult.WHITE_WON) {
+			counters.white++;
+		} else if (result == GameResult.BLACK_WON) {
+			counters.black++;
+		} else {
+			counters.draws++;
+		}
+		if (rating > 0) {
+			counters.ratingSum += rating;
+			counters.ratedGames++;
+		}
+	}
+
+	/**
+	 * Gets the move in UCI, with castling as the king capturing its own rook
+	 * ("e1h1"), like the Lichess explorer.
+	 */
+	private static String toExplorerUci(Board board, Move move) {
+		String uci = move.toString();
+		Square from = move.getFrom();
+		Square to = move.getTo();
+		Piece piece = board.getPiece(from);
+		if (piece == Piece.WHITE_KING && from == Square.E1) {
+			if (to == Square.G1) {
+				return "e1h1";
+			} else if (to == Square.C1) {
+				return "e1a1";
+			}
+		} else if (piece == Piece.BLACK_KING && from == Square.E8) {
+			if (to == Square.G8) {
+				return "e8h8";
+			} else if (to == Square.C8) {
+				return "e8a8";
+			}
+		}
+		return uci;
+	}
+
+	/**
+	 * Gets the stats of a position from the opening tree. The query is ignored
+	 * (all the games in the PGN files are used).
+	 */
+	@Override
+	public PositionStats getPositionStats(String fen, ExplorerQuery query) {
+		PositionCounters position = positions.get(ZobristUtil.getKey(fen));
+		if (position == null) {
+			return PositionStats.empty();
+		}
+		return toPositionStats(position);
+	}
+
+	private static PositionStats toPositionStats(PositionCounters position) {
+		synchronized (position) {
+			// same order as the explorer: descending on total games
+			List<Map.Entry<String, MoveCounters>> moves = new ArrayList<>(position.moves.entrySet());
+			moves.sort(Comparator.comparingInt((Map.Entry<String, MoveCounters> entry) -> entry.getValue().getTotalGames())
+					.reversed());
+
+			int moveCount = moves.size();
+			String[] moveUci = new String[moveCount];
+			int[] moveWhite = new int[moveCount];
+			int[] moveDraws = new int[moveCount];
+			int[] moveBlack = new int[moveCount];
+			int[] moveAverageRating = new int[moveCount];
+			double weightedRatings = 0.0;
+			int totalGamesForAllMoves = 0;
+			for (int i = 0; i < moveCount; i++) {
+				MoveCounters counters = moves.get(i).getValue();
+				moveUci[i] = moves.get(i).getKey();
+				moveWhite[i] = counters.white;
+				moveDraws[i] = counters.draws;
+				moveBlack[i] = counters.black;
+				moveAverageRating[i] = counters.getAverageRating();
+				totalGamesForAllMoves = totalGamesForAllMoves + counters.getTotalGames();
+				weightedRatings = weightedRatings
+						+ (double) moveAverageRating[i] * counters.getTotalGames() / OpeningExplorerService.AVG_RATING;
+			}
+			double avgRatingForAllMoves = weightedRatings * OpeningExplorerService.AVG_RATING / totalGamesForAllMoves;
+
+			return new PositionStats(position.totals.white, position.totals.draws, position.totals.black, moveCount,
+					moveUci, moveWhite, moveDraws, moveBlack, moveAverageRating, avgRatingForAllMoves);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "pgn";
+	}
+
+	private static ThreadFactory newThreadFactory(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,203 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.PlayerMove;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.model.SearchNode;
+import com.ejaque.openingexplorer.util.ExplorerJsonDecoder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opponent preparation: gets the moves played by some players (the opponents
+ * we prepare against) in the positions of the search tree, from the player
+ * explorer, in one pass after the search.
+ * <br>
+ * The player explorer streams its response (NDJSON, each line has the stats
+ * updated with the games indexed so far), so the lines are decoded as they
+ * arrive into {@link SearchNode#getPlayerStats()}, and the last one stays
+ * there. One lookup per player and position, run by a small pool of threads
+ * and sharing the rate limiter with the search (see
+ * {@link LichessExplorerClient#streamWithRetries}). Final responses are cached
+ * in the {@link PositionStatsCacheService}.
+ */
+@Service
+@Slf4j
+public class PlayerExplorerService {
+
+	/** Lichess usernames (comma separated), empty to disable the player mode. */
+	@Value("${players.usernames:}")
+	private String usernames = "";
+
+	@Value("${players.speeds:blitz,rapid,classical}")
+	private String speeds = "blitz,rapid,classical";
+
+	@Value("${players.modes:rated}")
+	private String modes = "rated";
+
+	/** Positions looked up per player (the most probable ones). */
+	@Value("${players.maxPositions:200}")
+	private int maxPositions = 200;
+
+	/** Lookups running at the same time (calls are also limited by the rate limiter). */
+	@Value("${players.threads:2}")
+	private int threads = 2;
+
+	@Autowired
+	private LichessExplorerClient lichessExplorerClient;
+
+	@Autowired
+	private PositionStatsCacheService positionStatsCacheService;
+
+	public boolean isEnabled() {
+		return !getPlayers().isEmpty();
+	}
+
+	/**
+	 * Gets the moves of the players in the positions. BLOCKS until all the
+	 * lookups are done. Lookups that fail are skipped.
+	 *
+	 * @param positions Positions where the players are to move, with their FEN,
+	 *                  most probable first.
+	 * @param color     Color of the players.
+	 * @return Moves of each player, by player and position (most probable first).
+	 */
+	public List<PlayerMove> harvest(Map<SearchNode, String> positions, String color) {
+		List<String> players = getPlayers();
+		if (players.isEmpty() || positions.isEmpty()) {
+			return new ArrayList<>();
+		}
+		long startTime = System.currentTimeMillis();
+		List<Map.Entry<SearchNode, String>> lookupPositions = positions.entrySet().stream()
+				.limit(maxPositions)
+				.toList();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "player-explorer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<CompletableFuture<Void>> lookups = new ArrayList<>();
+			for (String player : players) {
+				for (Map.Entry<SearchNode, String> position : lookupPositions) {
+					lookups.add(CompletableFuture.runAsync(
+							() -> fetchPlayerStats(position.getKey(), position.getValue(), player, color), executor));
+				}
+			}
+			CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).join();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		List<PlayerMove> playerMoves = new ArrayList<>();
+		for (String player : players) {
+			for (Map.Entry<SearchNode, String> position : lookupPositions) {
+				addPlayerMoves(playerMoves, player, position.getValue(), position.getKey(), color);
+			}
+		}
+		log.info("Player explorer: players={} positions={} moves={} time={} secs", players, lookupPositions.size(),
+				playerMoves.size(), (System.currentTimeMillis() - startTime) / 1000);
+		return playerMoves;
+	}
+
+	/**
+	 * Adds the moves of a player in a position, most played first (nothing if
+	 * the player has no games there).
+	 */
+	static void addPlayerMoves(List<PlayerMove> playerMoves, String player, String fen, SearchNode node, String color) {
+		PositionStats stats = node.getPlayerStats().get(player);
+		if (stats == null || stats.getTotalGames() == 0) {
+			return;
+		}
+		List<Integer> moves = new ArrayList<>();
+		for (int i = 0; i < stats.getMoveCount(); i++) {
+			moves.add(i);
+		}
+		moves.sort(Comparator.comparingInt(stats::getTotalGamesMove).reversed());
+		for (int i : moves) {
+			double whitePointsPctg = stats.getWhitePointsPctg(i);
+			playerMoves.add(PlayerMove.builder()
+					.player(player)
+					.fen(fen)
+					.move(stats.getUci(i))
+					.probabilityOcurring(node.getReachProbability())
+					.totalGames(stats.getTotalGames())
+					.totalGamesMove(stats.getTotalGamesMove(i))
+					.frequency((double) stats.getTotalGamesMove(i) / stats.getTotalGames())
+					.popularity(getPopularity(node.getStats(), stats.getUci(i)))
+					.pointsPctg(OpeningExplorerService.COLOR_WHITE.equals(color) ? whitePointsPctg : 1.0 - whitePointsPctg)
+					.build());
+		}
+	}
+
+	/** Gets the share of the games with a move, 0 if not played. */
+	private static double getPopularity(PositionStats stats, String move) {
+		if (stats == null || stats.getTotalGames() == 0) {
+			return 0.0;
+		}
+		for (int i = 0; i < stats.getMoveCount(); i++) {
+			if (stats.getUci(i).equals(move)) {
+				return (double) stats.getTotalGamesMove(i) / stats.getTotalGames();
+			}
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Gets the stats of a player in a position into the node, from the cache or
+	 * streaming the response (the node is updated with each line).
+	 */
+	private void fetchPlayerStats(SearchNode node, String fen, String player, String color) {
+		String key = Long.toHexString(node.getPositionKey()) + "|player=" + player.toLowerCase() + "|" + color + "|"
+				+ speeds + "|" + modes;
+		String url = lichessExplorerClient.getPlayerStatsUrl(fen, player, color, speeds, modes);
+		try {
+			String json = positionStatsCacheService.get(key, () -> {
+				AtomicReference<String> lastLine = new AtomicReference<>();
+				try {
+					int statusCode = lichessExplorerClient.streamWithRetries(url, line -> {
+						node.getPlayerStats().put(player, ExplorerJsonDecoder.decode(line));
+						lastLine.set(line);
+					});
+					if (statusCode != 200) {
+						log.error("Error in player explorer: status={} url={}", statusCode, url);
+						return null;
+					}
+				} catch (IOException e) {
+					log.error("Error in player explorer (after retries): url=" + url, e);
+					return null;
+				}
+				return lastLine.get();
+			});
+			if (json != null) {
+				node.getPlayerStats().put(player, ExplorerJsonDecoder.decode(json));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log.error("Error in player explorer: url=" + url, e);
+		}
+	}
+
+	private List<String> getPlayers() {
+		return Arrays.stream(usernames.split(","))
+				.map(String::trim)
+				.filter(player -> !player.isEmpty())
+				.toList();
+	}
+}
@@ -0,0 +1,307 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent (on-disk) cache for the responses of the Lichess opening explorer.
+ * Keys are built by the caller, normally the Zobrist key of the position (see
+ * {@link com.ejaque.openingexplorer.util.ZobristUtil}) plus the query params (see {@link com.ejaque.openingexplorer.model.ExplorerQuery#getKey()}).
+ * <br>
+ * Entries live in memory in LRU order (bounded by {@code maxEntries}) and every
+ * new entry is appended to a JSON-lines file, so the next run starts warm. The
+ * file is compacted (rewritten with the live entries only) when loading and on
+ * shutdown.
+ * <br>
+ * Freshness of an entry:
+ * <ul>
+ * <li>FRESH: younger than {@code ttlHours}, returned without calling the
+ * loader.</li>
+ * <li>STALE: older than TTL but inside {@code staleWhileRevalidateHours}, it is
+ * returned right away and the loader is called in background to refresh
+ * it.</li>
+ * <li>EXPIRED: older than that, treated as a miss (loader is called and we wait
+ * for it).</li>
+ * </ul>
+ */
+@Service
+@Slf4j
+public class PositionStatsCacheService {
+
+	/** Set to FALSE to always call the explorer (no cache at all). */
+	@Value("${cache.positionStats.enabled:true}")
+	private boolean enabled = true;
+
+	/** JSON-lines file where the entries are persisted. */
+	@Value("${cache.positionStats.file:position-stats-cache.jsonl}")
+	private String cacheFilePath = "position-stats-cache.jsonl";
+
+	/** Time to live (in hours) of an entry, after that it is considered STALE. */
+	@Value("${cache.positionStats.ttlHours:168}")
+	private long ttlHours = 168;
+
+	/**
+	 * Extra time (in hours) after TTL in which an entry can still be returned
+	 * while it is refreshed in background. Set to 0 to disable.
+	 */
+	@Value("${cache.positionStats.staleWhileRevalidateHours:720}")
+	private long staleWhileRevalidateHours = 720;
+
+	/** Max entries kept, the least recently used are evicted above this size. */
+	@Value("${cache.positionStats.maxEntries:500000}")
+	private int maxEntries = 500000;
+
+	private static final long MILLIS_PER_HOUR = 3600L * 1000L;
+
+	private final Gson gson = new Gson();
+
+	/** Entries in access order, so the eldest is the least recently used. */
+	private Map<String, CacheEntry> entries;
+
+	/** Keys with a background refresh in progress (to avoid refreshing twice). */
+	private final Set<String> keysRevalidating = ConcurrentHashMap.newKeySet();
+
+	private final ExecutorService revalidationExecutor = Executors.newSingleThreadExecutor();
+
+	private BufferedWriter appendWriter;
+
+	private final AtomicInteger totalHits = new AtomicInteger();
+	private final AtomicInteger totalStaleHits = new AtomicInteger();
+	private final AtomicInteger totalMisses = new AtomicInteger();
+
+	/** One line of the cache file. */
+	private static class CacheEntry {
+		/** Key. */
+		String k;
+		/** Time (epoch millis) when the value was fetched. */
+		long t;
+		/** Value (explorer JSON response). */
+		String v;
+
+		CacheEntry(String key, long timestamp, String value) {
+			this.k = key;
+			this.t = timestamp;
+			this.v = value;
+		}
+	}
+
+	@PostConstruct
+	public synchronized void load() throws IOException {
+		entries = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+
+		if (!enabled) {
+			log.info("Position stats cache is DISABLED");
+			return;
+		}
+
+		Path path = Paths.get(cacheFilePath);
+		int totalLines = 0;
+		if (Files.exists(path)) {
+			long now = System.currentTimeMillis();
+			try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					totalLines++;
+					try {
+						CacheEntry entry = gson.fromJson(line, CacheEntry.class);
+						// later lines override older ones, expired ones are dropped
+						if (entry != null && entry.k != null && getAgeHours(entry, now) < ttlHours + staleWhileRevalidateHours) {
+							entries.put(entry.k, entry);
+						}
+					} catch (JsonSyntaxException e) {
+						// a run that was killed while writing can leave a truncated last line
+						log.warn("Ignoring corrupt line {} in cache file {}", totalLines, cacheFilePath);
+					}
+				}
+			}
+		}
+		log.info("Position stats cache loaded: entries={} fileLines={} file={}", entries.size(), totalLines, cacheFilePath);
+
+		if (totalLines > entries.size()) {
+			compact();
+		}
+		appendWriter = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Gets the value for a key, calling the loader only if it is not cached (or
+	 * expired). Values returned by the loader are cached, unless they are NULL.
+	 *
+	 * @param key    Cache key.
+	 * @param loader Called to get the value on a miss (also in background, to
+	 *               refresh STALE entries). Must return NULL on errors.
+	 * @return The cached or loaded value, NULL if not cached and the loader failed.
+	 * @throws Exception Exception thrown by the loader.
+	 */
+	public String get(String key, Callable<String> loader) throws Exception {
+		return get(key, loader, false);
+	}
+
+	/**
+	 * Gets the value for a key, like {@link #get(String, Callable)}, but with
+	 * {@code forceRefresh} the cached value is ignored (even if FRESH or STALE)
+	 * and the loader is always called and waited for. Used when the caller knows
+	 * the data is outdated (e.g. positions of an incremental search that are too
+	 * old to be reused).
+	 *
+	 * @param key          Cache key.
+	 * @param loader       Called to get the value. Must return NULL on errors.
+	 * @param forceRefresh TRUE to skip the cached value.
+	 * @return The cached or loaded value, NULL if the loader failed (and the value
+	 *         was not cached or {@code forceRefresh} is TRUE).
+	 * @throws Exception Exception thrown by the loader.
+	 */
+	public String get(String key, Callable<String> loader, boolean forceRefresh) throws Exception {
+		if (!enabled) {
+			return loader.call();
+		}
+
+		CacheEntry entry = null;
+		if (!forceRefresh) {
+			synchronized (this) {
+				entry = entries.get(key);
+			}
+		}
+
+		if (entry != null) {
+			double ageHours = getAgeHours(entry, System.currentTimeMillis());
+			if (ageHours < ttlHours) {
+				totalHits.incrementAndGet();
+				return entry.v;
+			}
+			if (ageHours < ttlHours + staleWhileRevalidateHours) {
+				totalStaleHits.incrementAndGet();
+				revalidate(key, loader);
+				return entry.v;
+			}
+		}
+
+		totalMisses.incrementAndGet();
+		String value = loader.call();
+		if (value != null) {
+			put(key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Saves a value in the cache (memory and file).
+	 */
+	public synchronized void put(String key, String value) {
+		if (!enabled) {
+			return;
+		}
+		CacheEntry entry = new CacheEntry(key, System.currentTimeMillis(), value);
+		entries.put(key, entry);
+		if (appendWriter == null) {
+			return; // already closed (late background refresh)
+		}
+		try {
+			appendWriter.write(gson.toJson(entry));
+			appendWriter.newLine();
+			appendWriter.flush();
+		} catch (IOException e) {
+			log.error("Error writing to cache file (entry kept only in memory): " + cacheFilePath, e);
+		}
+	}
+
+	private void revalidate(String key, Callable<String> loader) {
+		if (!keysRevalidating.add(key)) {
+			return; // already being refreshed
+		}
+		revalidationExecutor.execute(() -> {
+			try {
+				String value = loader.call();
+				if (value != null) {
+					put(key, value);
+				}
+			} catch (Exception e) {
+				log.warn("Error refreshing STALE cache entry (keeping stale value): " + key, e);
+			} finally {
+				keysRevalidating.remove(key);
+			}
+		});
+	}
+
+	/**
+	 * Rewrites the cache file with the live entries only (drops duplicated,
+	 * expired and evicted entries).
+	 */
+	private synchronized void compact() throws IOException {
+		Path path = Paths.get(cacheFilePath);
+		Path tmpPath = Paths.get(cacheFilePath + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+			for (CacheEntry entry : entries.values()) {
+				writer.write(gson.toJson(entry));
+				writer.newLine();
+			}
+		}
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+		log.info("Position stats cache file compacted: entries={}", entries.size());
+	}
+
+	@PreDestroy
+	public synchronized void close() throws IOException {
+		revalidationExecutor.shutdownNow();
+		if (appendWriter == null) {
+			return;
+		}
+		appendWriter.close();
+		appendWriter = null;
+		compact();
+		log.info("Position stats cache closed: hits={} staleHits={} misses={}", totalHits, totalStaleHits, totalMisses);
+	}
+
+	private double getAgeHours(CacheEntry entry, long now) {
+		return (double) (now - entry.t) / MILLIS_PER_HOUR;
+	}
+
+	public int getTotalHits() {
+		return totalHits.get();
+	}
+
+	public int getTotalStaleHits() {
+		return totalStaleHits.get();
+	}
+
+	public int getTotalMisses() {
+		return totalMisses.get();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
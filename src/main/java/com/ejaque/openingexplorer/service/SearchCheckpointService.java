@@ -0,0 +1,412 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.EvaluationResult;
+import com.ejaque.openingexplorer.model.GoodMove;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.util.PgnUtil;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Checkpoints of the search, so a long search that crashes (or is stopped, or
+ * banned by the explorer) can be resumed starting the application with
+ * {@code --resume}.
+ * <br>
+ * Everything the search gets from outside is appended to a JSON-lines file as
+ * soon as it is known: the stats of each position explored, the engine evals
+ * (and top moves) and the good moves found (the partial result of the search). The search is
+ * deterministic given those, so a resumed search replays the explored part of
+ * the tree from the checkpoint (rebuilding the nodes, the pending frontier and
+ * the good moves, without fetching or evaluating anything again) and goes on
+ * from the first position not saved.
+ * <br>
+ * Incremental re-run: starting with {@code --incremental}, the checkpoint of
+ * the previous search (the whole tree it explored) is reused by a NEW search,
+ * even with other search params (depth, probability...) or starting position,
+ * as long as the explorer source and query are the same. Only the positions not
+ * in the previous tree (newly reachable with the new params) and the ones
+ * fetched more than {@code freshnessHours} ago are fetched, the good moves are
+ * derived again for the whole tree. The new checkpoint file has only the
+ * positions of the new tree (reused ones keep their fetch time).
+ * <br>
+ * Lines are flushed every {@code flushIntervalSecs} and on shutdown (Ctrl-C
+ * included). A run killed while writing can leave a truncated last line, it is
+ * ignored when resuming.
+ */
+@Service
+@Slf4j
+public class SearchCheckpointService {
+
+	/** Command line option to resume the search from the checkpoint file. */
+	public static final String RESUME_OPTION = "resume";
+
+	/** Command line option to start a new search reusing the tree of the previous one. */
+	public static final String INCREMENTAL_OPTION = "incremental";
+
+	/** Set to FALSE to disable the checkpoints (and resuming). */
+	@Value("${checkpoint.enabled:true}")
+	private boolean enabled = true;
+
+	/** JSON-lines file with the checkpoints of the last search. */
+	@Value("${checkpoint.file:search-checkpoint.jsonl}")
+	private String checkpointFilePath = "search-checkpoint.jsonl";
+
+	/** Max seconds between flushes of the file (lost lines if the process is killed). */
+	@Value("${checkpoint.flushIntervalSecs:10}")
+	private long flushIntervalSecs = 10;
+
+	/**
+	 * Incremental re-run: stats of the previous search fetched more than these
+	 * hours ago are fetched again.
+	 */
+	@Value("${checkpoint.freshnessHours:168}")
+	private long freshnessHours = 168;
+
+	private static final long MILLIS_PER_HOUR = 3600L * 1000L;
+
+	@Autowired(required = false)
+	private ApplicationArguments applicationArguments;
+
+	private final Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+	/** Stats loaded from the checkpoint (by position key), removed when the search takes them. */
+	private final Map<Long, CheckpointRecord> savedStats = new HashMap<>();
+
+	/** Positions of the previous search too old to be reused (incremental re-run). */
+	private final Set<Long> staleKeys = new HashSet<>();
+
+	/**
+	 * Saved stats are written again to the new file when taken (incremental
+	 * re-run, the new file only has the new tree).
+	 */
+	private boolean rewriteTakenStats;
+
+	private int totalReused;
+	private int totalNew;
+	private int totalStale;
+
+	/** Engine evals loaded from the checkpoint (by Short FEN and move). */
+	private final Map<String, Double> savedEvaluations = new HashMap<>();
+
+	/** Evals written again to the new file (incremental re-run). */
+	private final Set<String> rewrittenEvaluations = new HashSet<>();
+
+	/** Engine top moves loaded from the checkpoint (by Short FEN). */
+	private final Map<String, List<EvaluationResult>> savedTopMoves = new HashMap<>();
+
+	/** Top moves written again to the new file (incremental re-run). */
+	private final Set<String> rewrittenTopMoves = new HashSet<>();
+
+	/** Good moves already in the checkpoint (by Short FEN and move), not written again. */
+	private final Set<String> savedGoodMoves = new HashSet<>();
+
+	private BufferedWriter appendWriter;
+	private long lastFlushTime;
+
+	/** One line of the checkpoint file, only one of the values is set. */
+	private static class CheckpointRecord {
+		/** Search the checkpoint belongs to (first line of the file). */
+		String search;
+		/** Explorer source and query of the search (first line of the file). */
+		String statsSource;
+		/** Position key of the stats. */
+		Long key;
+		/** Time (epoch millis) when the stats were fetched. */
+		Long time;
+		/** Stats of the position. */
+		PositionStats stats;
+		/** Short FEN and move evaluated. */
+		String evalKey;
+		/** Engine eval. */
+		Double eval;
+		/** Good move found. */
+		GoodMove goodMove;
+		/** Short FEN of the position of the engine top moves. */
+		String topMovesKey;
+		/** Engine top moves (best move and eval of each line). */
+		List<EvaluationResult> topMoves;
+	}
+
+	/**
+	 * Opens the checkpoint file for a search. When resuming (and the file is
+	 * from the same search), the saved stats, evals and good moves are loaded
+	 * and new lines are appended to the file. For an incremental re-run, the
+	 * fresh stats of the previous search are loaded and a new file is started.
+	 * Otherwise a new file is started. A read-only checkpoint (for a dry run)
+	 * loads the same, but the file is neither truncated nor written.
+	 *
+	 * @param searchKey   Identifies the search (starting position, explorer
+	 *                    source and query), a checkpoint of another search is
+	 *                    not resumed.
+	 * @param statsSource Explorer source and query, stats of a previous search
+	 *                    with another source are not reused by an incremental
+	 *                    re-run.
+	 * @param readOnly    TRUE to keep the file as it is (nothing is saved).
+	 * @throws IOException If the file can't be read or written.
+	 */
+	public synchronized void open(String searchKey, String statsSource, boolean readOnly) throws IOException {
+		if (!enabled) {
+			log.info("Search checkpoints are DISABLED");
+			return;
+		}
+		Path path = Paths.get(checkpointFilePath);
+		boolean resume = isOptionRequested(RESUME_OPTION) && Files.exists(path) && load(path, searchKey, null);
+		if (!resume && isOptionRequested(INCREMENTAL_OPTION) && Files.exists(path)) {
+			rewriteTakenStats = load(path, null, statsSource);
+		}
+		if (readOnly) {
+			log.info("Search checkpoint opened READ-ONLY: file={}", checkpointFilePath);
+			return;
+		}
+
+		if (resume) {
+			appendWriter = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		} else {
+			appendWriter = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			CheckpointRecord header = new CheckpointRecord();
+			header.search = searchKey;
+			header.statsSource = statsSource;
+			write(header);
+		}
+		flush();
+	}
+
+	/**
+	 * Loads a checkpoint file, to resume the same search (only the search key is
+	 * given) or for an incremental re-run (only the stats source is given, good
+	 * moves are not loaded and stale stats are dropped).
+	 *
+	 * @return FALSE if the file is from another search or stats source (nothing
+	 *         is loaded).
+	 */
+	private boolean load(Path path, String searchKey, String statsSource) throws IOException {
+		boolean incremental = searchKey == null;
+		long minTime = System.currentTimeMillis() - freshnessHours * MILLIS_PER_HOUR;
+		int totalLines = 0;
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				totalLines++;
+				CheckpointRecord record;
+				try {
+					record = gson.fromJson(line, CheckpointRecord.class);
+				} catch (JsonParseException e) {
+					log.warn("Ignoring corrupt line {} in checkpoint file {}", totalLines, checkpointFilePath);
+					continue;
+				}
+				if (record == null) {
+					continue;
+				}
+				if (totalLines == 1 && (incremental ? !statsSource.equals(record.statsSource) : !searchKey.equals(record.search))) {
+					log.warn("Checkpoint file is from another search, starting a NEW search: checkpoint={} search={}",
+							incremental ? record.statsSource : record.search, incremental ? statsSource : searchKey);
+					return false;
+				}
+				if (record.key != null && record.stats != null) {
+					if (incremental && (record.time == null || record.time < minTime)) {
+						staleKeys.add(record.key);
+					} else {
+						savedStats.put(record.key, record);
+						staleKeys.remove(record.key);
+					}
+				} else if (record.evalKey != null && record.eval != null) {
+					savedEvaluations.put(record.evalKey, record.eval);
+				} else if (record.topMovesKey != null && record.topMoves != null) {
+					savedTopMoves.put(record.topMovesKey, record.topMoves);
+				} else if (record.goodMove != null && !incremental) {
+					savedGoodMoves.add(getMoveKey(record.goodMove.getFen(), record.goodMove.getMove()));
+				}
+			}
+		}
+		log.info("{} from checkpoint: positions={} stalePositions={} evals={} topMoves={} goodMoves={} file={}",
+				incremental ? "INCREMENTAL search" : "RESUMING search", savedStats.size(), staleKeys.size(),
+				savedEvaluations.size(), savedTopMoves.size(), savedGoodMoves.size(), checkpointFilePath);
+		return true;
+	}
+
+	/** Checks if the application was started with an option (like {@code --resume}). */
+	public boolean isOptionRequested(String option) {
+		return applicationArguments != null && applicationArguments.containsOption(option);
+	}
+
+	/**
+	 * Takes the stats of a position saved in the checkpoint.
+	 *
+	 * @return Stats of the position, NULL if not saved.
+	 */
+	public synchronized PositionStats takeStats(long positionKey) {
+		CheckpointRecord record = savedStats.remove(positionKey);
+		if (record == null) {
+			return null;
+		}
+		totalReused++;
+		if (rewriteTakenStats) {
+			write(record);
+		}
+		return record.stats;
+	}
+
+	/**
+	 * Checks if a position was in the checkpoint of the previous search but too
+	 * old to be reused (incremental re-run), so its stats must be fetched again
+	 * bypassing any cache.
+	 */
+	public synchronized boolean isStale(long positionKey) {
+		return staleKeys.contains(positionKey);
+	}
+
+	/** Saves the stats of a position (just fetched). */
+	public synchronized void saveStats(long positionKey, PositionStats stats) {
+		if (staleKeys.remove(positionKey)) {
+			totalStale++;
+		} else {
+			totalNew++;
+		}
+		CheckpointRecord record = new CheckpointRecord();
+		record.key = positionKey;
+		record.time = System.currentTimeMillis();
+		record.stats = stats;
+		write(record);
+	}
+
+	/**
+	 * Gets an engine eval saved in the checkpoint.
+	 *
+	 * @return Eval, NULL if not saved.
+	 */
+	public synchronized Double getEvaluation(String fen, String move) {
+		String evalKey = getMoveKey(fen, move);
+		Double eval = savedEvaluations.get(evalKey);
+		if (eval != null && rewriteTakenStats && rewrittenEvaluations.add(evalKey)) {
+			CheckpointRecord record = new CheckpointRecord();
+			record.evalKey = evalKey;
+			record.eval = eval;
+			write(record);
+		}
+		return eval;
+	}
+
+	/** Saves an engine eval. */
+	public synchronized void saveEvaluation(String fen, String move, double eval) {
+		CheckpointRecord record = new CheckpointRecord();
+		record.evalKey = getMoveKey(fen, move);
+		record.eval = eval;
+		write(record);
+	}
+
+	/**
+	 * Gets the engine top moves of a position saved in the checkpoint.
+	 *
+	 * @return Top moves, NULL if not saved.
+	 */
+	public synchronized List<EvaluationResult> getTopMoves(String fen) {
+		String topMovesKey = PgnUtil.getShortFenCode(fen);
+		List<EvaluationResult> topMoves = savedTopMoves.get(topMovesKey);
+		if (topMoves != null && rewriteTakenStats && rewrittenTopMoves.add(topMovesKey)) {
+			CheckpointRecord record = new CheckpointRecord();
+			record.topMovesKey = topMovesKey;
+			record.topMoves = topMoves;
+			write(record);
+		}
+		return topMoves;
+	}
+
+	/** Saves the engine top moves of a position (only the best move and eval of each line). */
+	public synchronized void saveTopMoves(String fen, List<EvaluationResult> topMoves) {
+		CheckpointRecord record = new CheckpointRecord();
+		record.topMovesKey = PgnUtil.getShortFenCode(fen);
+		record.topMoves = topMoves.stream()
+				.map(line -> EvaluationResult.builder()
+						.bestMove(line.getBestMove())
+						.evaluation(line.getEvaluation())
+						.depth(line.getDepth())
+						.build())
+				.toList();
+		write(record);
+	}
+
+	/** Saves a good move found (unless it was already saved by the search being resumed). */
+	public synchronized void saveGoodMove(GoodMove goodMove) {
+		if (savedGoodMoves.contains(getMoveKey(goodMove.getFen(), goodMove.getMove()))) {
+			return;
+		}
+		CheckpointRecord record = new CheckpointRecord();
+		record.goodMove = goodMove;
+		write(record);
+	}
+
+	private void write(CheckpointRecord record) {
+		if (appendWriter == null) {
+			return; // disabled or already closed
+		}
+		try {
+			appendWriter.write(gson.toJson(record));
+			appendWriter.newLine();
+			if (System.currentTimeMillis() - lastFlushTime >= flushIntervalSecs * 1000) {
+				flush();
+			}
+		} catch (IOException e) {
+			log.error("Error writing to checkpoint file: " + checkpointFilePath, e);
+		}
+	}
+
+	private void flush() throws IOException {
+		appendWriter.flush();
+		lastFlushTime = System.currentTimeMillis();
+	}
+
+	private static String getMoveKey(String fen, String move) {
+		return PgnUtil.getShortFenCode(fen) + "|" + move;
+	}
+
+	@PreDestroy
+	public synchronized void close() throws IOException {
+		if (appendWriter == null) {
+			return;
+		}
+		appendWriter.close();
+		appendWriter = null;
+		log.info("Search checkpoint closed: file={} positionsReused={} positionsNew={} positionsStale={} positionsNotReplayed={}",
+				checkpointFilePath, totalReused, totalNew, totalStale, savedStats.size());
+	}
+
+	/** Positions taken from the checkpoint (not fetched again). */
+	public synchronized int getTotalReused() {
+		return totalReused;
+	}
+
+	/** Positions fetched that were not in the checkpoint. */
+	public synchronized int getTotalNew() {
+		return totalNew;
+	}
+
+	/** Positions of the previous search fetched again because they were stale (incremental re-run). */
+	public synchronized int getTotalStale() {
+		return totalStale;
+	}
+}
@@ -0,0 +1,170 @@
+package com.ejaque.openingexplorer.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Metrics of the search, the explorer calls and the engine evals (Micrometer),
+ * exposed while the search is running in the Actuator metrics endpoint, like
+ * {@code /actuator/metrics/explorer.request}:
+ * <ul>
+ * <li>{@code explorer.request} - Latency of each HTTP call to the explorer,
+ * tagged by outcome (ok, throttled, error).</li>
+ * <li>{@code explorer.throttle.wait} - Time waiting for the rate limiter.</li>
+ * <li>{@code explorer.cache} - Explorer cache lookups, tagged by result (hit,
+ * stale, miss).</li>
+ * <li>{@code engine.eval} - Time of each engine eval (from the request sent to
+ * the best move received).</li>
+ * <li>{@code engine.eval.blocked} - Time the search is blocked waiting for an
+ * eval.</li>
+ * <li>{@code search.nodes} - Positions of the search, tagged by result:
+ * expanded, errored (no stats), transposition (reached again) and pruned
+ * (moves not explored).</li>
+ * <li>{@code search.nodes.rate} - Positions expanded per second since the
+ * search started.</li>
+ * <li>{@code search.frontier.size} - Positions pending in the frontier
+ * (best-first search and frontier workers).</li>
+ * <li>{@code search.depth} - Half moves from the starting position to the
+ * position being explored.</li>
+ * </ul>
+ * Timers publish a percentile histogram (p50, p95, p99 are also available as
+ * gauges with a "phi" tag).
+ */
+@Service
+public class SearchMetricsService {
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private PositionStatsCacheService positionStatsCacheService;
+
+	private Timer explorerOk;
+	private Timer explorerThrottled;
+	private Timer explorerError;
+	private Timer throttleWait;
+	private Timer engineEval;
+	private Timer engineEvalBlocked;
+
+	private Counter nodesExpanded;
+	private Counter nodesErrored;
+	private Counter nodesTransposition;
+	private Counter nodesPruned;
+
+	private final AtomicInteger frontierSize = new AtomicInteger();
+	private final AtomicInteger searchDepth = new AtomicInteger();
+	private final AtomicLong searchStartTime = new AtomicLong();
+
+	@PostConstruct
+	public void registerMeters() {
+		explorerOk = newTimer("explorer.request", "outcome", "ok");
+		explorerThrottled = newTimer("explorer.request", "outcome", "throttled");
+		explorerError = newTimer("explorer.request", "outcome", "error");
+		throttleWait = newTimer("explorer.throttle.wait");
+		engineEval = newTimer("engine.eval");
+		engineEvalBlocked = newTimer("engine.eval.blocked");
+
+		nodesExpanded = meterRegistry.counter("search.nodes", "result", "expanded");
+		nodesErrored = meterRegistry.counter("search.nodes", "result", "errored");
+		nodesTransposition = meterRegistry.counter("search.nodes", "result", "transposition");
+		nodesPruned = meterRegistry.counter("search.nodes", "result", "pruned");
+
+		Gauge.builder("search.nodes.rate", this, SearchMetricsService::getNodesPerSecond)
+				.baseUnit("nodes/sec")
+				.register(meterRegistry);
+		Gauge.builder("search.frontier.size", frontierSize, AtomicInteger::get).register(meterRegistry);
+		Gauge.builder("search.depth", searchDepth, AtomicInteger::get).register(meterRegistry);
+
+		if (positionStatsCacheService != null) {
+			FunctionCounter.builder("explorer.cache", positionStatsCacheService, PositionStatsCacheService::getTotalHits)
+					.tag("result", "hit").register(meterRegistry);
+			FunctionCounter.builder("explorer.cache", positionStatsCacheService, PositionStatsCacheService::getTotalStaleHits)
+					.tag("result", "stale").register(meterRegistry);
+			FunctionCounter.builder("explorer.cache", positionStatsCacheService, PositionStatsCacheService::getTotalMisses)
+					.tag("result", "miss").register(meterRegistry);
+		}
+	}
+
+	private Timer newTimer(String name, String... tags) {
+		return Timer.builder(name)
+				.tags(tags)
+				.publishPercentileHistogram()
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.register(meterRegistry);
+	}
+
+	/** Marks the start of the search (for the nodes per second). */
+	public void searchStarted() {
+		searchStartTime.set(System.nanoTime());
+	}
+
+	/**
+	 * Records an HTTP call to the explorer.
+	 *
+	 * @param nanos      Latency.
+	 * @param statusCode HTTP status code, 0 for network errors.
+	 */
+	public void recordExplorerCall(long nanos, int statusCode) {
+		Timer timer = statusCode == 429 ? explorerThrottled : (statusCode > 0 && statusCode < 500 ? explorerOk : explorerError);
+		timer.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordThrottleWait(long millis) {
+		throttleWait.record(millis, TimeUnit.MILLISECONDS);
+	}
+
+	public void recordEngineEval(long nanos) {
+		engineEval.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordEngineEvalBlocked(long nanos) {
+		engineEvalBlocked.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void nodeExpanded() {
+		nodesExpanded.increment();
+	}
+
+	public void nodeErrored() {
+		nodesErrored.increment();
+	}
+
+	public void nodeTransposition() {
+		nodesTransposition.increment();
+	}
+
+	/** Moves of a position not explored (not enough games or probability). */
+	public void movesPruned(int moves) {
+		if (moves > 0) {
+			nodesPruned.increment(moves);
+		}
+	}
+
+	public void setFrontierSize(int size) {
+		frontierSize.set(size);
+	}
+
+	public void setSearchDepth(int depth) {
+		searchDepth.set(depth);
+	}
+
+	private double getNodesPerSecond() {
+		long startTime = searchStartTime.get();
+		if (startTime == 0) {
+			return 0.0;
+		}
+		double seconds = (System.nanoTime() - startTime) / 1E9;
+		return seconds > 0 ? nodesExpanded.count() / seconds : 0.0;
+	}
+}
@@ -0,0 +1,198 @@
+package com.ejaque.openingexplorer.service;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.stereotype.Service;
+
+import com.ejaque.openingexplorer.model.BranchingProfile;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.model.SearchPlan;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Estimates the cost of a search (explorer calls, engine evals and time)
+ * before running it, from the branching observed in a shallow probe (see
+ * {@link OpeningExplorerService#planSearch()}), and tunes the thresholds to fit
+ * a time budget.
+ * <br>
+ * The estimate walks a model tree where every position has the avg popularity
+ * of the moves observed in the probe, applying the same criteria as the search
+ * (min probability, min games, opponent coverage). Transpositions and cached
+ * positions are not considered, so it's an upper bound.
+ */
+@Service
+@Slf4j
+public class SearchPlannerService {
+
+	/** Set to FALSE to skip the probe and the estimate before the search. */
+	@Value("${planner.enabled:true}")
+	@Getter
+	private boolean enabled = true;
+
+	/** Half moves explored by the probe (its positions are reused by the search). */
+	@Value("${planner.probeDepth:2}")
+	@Getter
+	private int probeDepth = 2;
+
+	/**
+	 * Time budget for the search (minutes). If the estimate is over it, the min
+	 * probability and the min games to explore are raised until it fits. Set to
+	 * 0 to only report the estimate.
+	 */
+	@Value("${planner.budgetMinutes:0}")
+	private double budgetMinutes;
+
+	/** Time of each engine eval (secs). */
+	@Value("${planner.secondsPerEval:3.0}")
+	private double secondsPerEval = 3.0;
+
+	/** Max times the thresholds are raised (x1.25 each time). */
+	@Value("${planner.maxTuningSteps:20}")
+	private int maxTuningSteps = 20;
+
+	@Autowired(required = false)
+	private ApplicationArguments applicationArguments;
+
+	/** Factor to raise the thresholds on each tuning step. */
+	private static final double TUNING_FACTOR = 1.25;
+
+	/** The model tree is not walked beyond this (the estimate is "more than this"). */
+	static final long MAX_ESTIMATED_POSITIONS = 5_000_000;
+
+	/** Moves considered for the avg popularity (the rest are sidelines). */
+	private static final int MAX_PROFILE_MOVES = 30;
+
+	/**
+	 * Checks if the application was started with {@code --plan}: only the
+	 * estimate is reported, without searching nor exporting.
+	 */
+	public boolean isDryRun() {
+		return applicationArguments != null && applicationArguments.containsOption("plan");
+	}
+
+	/**
+	 * Estimates the cost of the search and, if there's a time budget, raises the
+	 * thresholds until the estimate fits.
+	 *
+	 * @param profile Branching observed in the probe.
+	 * @param params  Params of the search (estimates are ignored).
+	 * @return Params to use with their estimate (same params if they fit the
+	 *         budget, or if there's no budget).
+	 */
+	public SearchPlan plan(BranchingProfile profile, SearchPlan params) {
+		SearchPlan plan = estimate(profile, params);
+		log.info("Search estimate: {}", plan);
+		if (budgetMinutes <= 0) {
+			return plan;
+		}
+
+		double budgetSecs = budgetMinutes * 60;
+		for (int step = 0; step < maxTuningSteps && plan.getWallTimeSecs() > budgetSecs; step++) {
+			plan = estimate(profile, plan.toBuilder()
+					.minProbabilityOfMove(plan.getMinProbabilityOfMove() * TUNING_FACTOR)
+					.minGamesToExploreOpponentMove(plan.getMinGamesToExploreOpponentMove() * TUNING_FACTOR)
+					.build());
+		}
+		if (plan.getWallTimeSecs() > budgetSecs) {
+			log.warn("Search does not fit the budget of {} mins after {} tuning steps", budgetMinutes, maxTuningSteps);
+		}
+		log.info("Search plan for a budget of {} mins: {}", budgetMinutes, plan);
+		return plan;
+	}
+
+	/**
+	 * Estimates the positions, engine evals and time of a search.
+	 *
+	 * @param profile Branching observed in the probe.
+	 * @param params  Params of the search.
+	 * @return Same params with the estimate.
+	 */
+	public SearchPlan estimate(BranchingProfile profile, SearchPlan params) {
+		double[] totals = new double[2]; // positions, good moves
+		countPositions(profile, params, 1.0, profile.getRootGames(), params.getMaxDepthHalfMoves(), true, totals);
+
+		long positions = (long) totals[0];
+		long engineEvals = params.isEvalsEnabled() ? 1 + Math.round(totals[1]) : 0;
+		return params.toBuilder()
+				.positions(positions)
+				.engineEvals(engineEvals)
+				.wallTimeSecs(positions * profile.getSecondsPerCall() + engineEvals * secondsPerEval)
+				.build();
+	}
+
+	/**
+	 * Counts the positions fetched by the search from a position of the model
+	 * tree (same criteria as the search, see
+	 * OpeningExplorerService.callLichessApiPositionStats).
+	 *
+	 * @param probability    Reach probability of the position.
+	 * @param games          Games played in the position.
+	 * @param remainingDepth Remaining depth of the search.
+	 * @param isPlayer       TRUE if our player is to play.
+	 * @param totals         Positions and good moves counted so far (updated).
+	 */
+	private void countPositions(BranchingProfile profile, SearchPlan params, double probability, double games,
+			int remainingDepth, boolean isPlayer, double[] totals) {
+		totals[0]++;
+		if (isPlayer) {
+			totals[1] += profile.getGoodMovesPerPlayerNode();
+			// good moves at the last depth are fetched anyway (extra depth call)
+			if (remainingDepth == 1) {
+				totals[0] += profile.getGoodMovesPerPlayerNode();
+			}
+		}
+		if (remainingDepth <= 1 || totals[0] >= MAX_ESTIMATED_POSITIONS) {
+			return;
+		}
+
+		double[] popularity = isPlayer ? profile.getPlayerPopularity() : profile.getOpponentPopularity();
+		double coveredShare = 0.0;
+		for (int i = 0; i < popularity.length; i++) {
+			if (!isPlayer && coveredShare >= params.getOpponentCoverage()) {
+				break;
+			}
+			coveredShare += popularity[i];
+
+			double childGames = games * popularity[i];
+			if (childGames < params.getMinGamesToChooseCandidateMove()) {
+				break;
+			}
+			double childProbability = isPlayer ? probability : probability * popularity[i];
+			if (childProbability >= params.getMinProbabilityOfMove()
+					&& childGames >= params.getMinGamesToExploreOpponentMove()) {
+				countPositions(profile, params, childProbability, childGames, remainingDepth - 1, !isPlayer, totals);
+			}
+		}
+	}
+
+	/**
+	 * Gets the avg popularity of the most played move, the second one, etc. in
+	 * the positions (moves missing in a position count as 0).
+	 */
+	public static double[] getAveragePopularity(List<PositionStats> positions) {
+		double[] popularity = new double[MAX_PROFILE_MOVES];
+		int maxMoves = 0;
+		int count = 0;
+		for (PositionStats stats : positions) {
+			if (stats.getTotalGames() == 0) {
+				continue;
+			}
+			count++;
+			int moves = Math.min(stats.getMoveCount(), MAX_PROFILE_MOVES);
+			maxMoves = Math.max(maxMoves, moves);
+			for (int i = 0; i < moves; i++) {
+				popularity[i] += (double) stats.getTotalGamesMove(i) / stats.getTotalGames();
+			}
+		}
+		double[] averagePopularity = new double[maxMoves];
+		for (int i = 0; i < maxMoves; i++) {
+			averagePopularity[i] = popularity[i] / count;
+		}
+		return averagePopularity;
+	}
+}
@@ -0,0 +1,251 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.ejaque.openingexplorer.model.EvaluationResult;
+import com.ejaque.openingexplorer.util.UciUtil;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * One local UCI engine process (like Stockfish), talking to it through its
+ * stdin/stdout. Evaluates one position at a time, so it must be used by one
+ * thread at a time (see {@link LocalUciEngineService} for the pool).
+ * <br>
+ * The output of the engine is read by its own thread, so the searches can wait
+ * for it with a deadline: an engine that hangs is killed and fails the search,
+ * instead of blocking it forever.
+ */
+@Slf4j
+public class UciEngineProcess implements Closeable {
+
+	/** Max time to wait for the process to end after "quit". */
+	private static final long QUIT_TIMEOUT_MILLIS = 2000;
+
+	private final Process process;
+
+	/** Lines sent by the engine (read by the reader thread), EMPTY when the output ends. */
+	private final BlockingQueue<Optional<String>> lines = new LinkedBlockingQueue<>();
+
+	private final Writer writer;
+
+	/** Max time to wait for the engine to answer a command (like the "bestmove" of a search). */
+	private final long timeoutMillis;
+
+	/** MultiPV option set in the engine (only sent when it changes). */
+	private int multiPv = 1;
+
+	/**
+	 * Launches the engine and initializes it ("uci", options, "isready").
+	 *
+	 * @param command       Command line of the engine (binary and args).
+	 * @param options       UCI options, like "Threads" or "Hash".
+	 * @param timeoutMillis Max time to wait for the engine to answer a command
+	 *                      (like the "bestmove" of a search).
+	 * @throws IOException If the engine can't be launched, ends unexpectedly or
+	 *                     times out.
+	 */
+	public UciEngineProcess(List<String> command, Map<String, String> options, long timeoutMillis) throws IOException {
+		this.timeoutMillis = timeoutMillis;
+		process = new ProcessBuilder(command)
+				.redirectError(ProcessBuilder.Redirect.DISCARD)
+				.start();
+		writer = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+		Thread readerThread = new Thread(this::readOutput, "uci-engine-reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+
+		try {
+			sendCommand("uci");
+			waitFor("uciok");
+			for (Map.Entry<String, String> option : options.entrySet()) {
+				sendCommand("setoption name " + option.getKey() + " value " + option.getValue());
+			}
+			sendCommand("isready");
+			waitFor("readyok");
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Evaluates a position, BLOCKS until the engine sends its best move.
+	 *
+	 * @param fenCode Position to evaluate.
+	 * @param depth   Max depth to go for the evaluation (in half moves).
+	 * @return The evaluation (white's point of view) and PV of the last info line
+	 *         with a score, and the best move.
+	 * @throws IOException If the engine ends unexpectedly or times out.
+	 */
+	public EvaluationResult evaluate(String fenCode, int depth) throws IOException {
+		setMultiPv(1);
+		sendCommand("position fen " + fenCode);
+		sendCommand("go depth " + depth);
+
+		long deadlineNanos = getDeadlineNanos();
+		Double eval = null;
+		List<String> pv = List.of();
+		String line;
+		while ((line = readLine(deadlineNanos)) != null) {
+			// lowerbound/upperbound scores are not the score of the position (the search failed high or low)
+			if (line.startsWith("info") && line.contains(" score ") && !UciUtil.isBoundScore(line)) {
+				eval = UciUtil.getEval(fenCode, line);
+				pv = UciUtil.extractMoves(line);
+			} else if (line.startsWith("bestmove")) {
+				if (eval == null) {
+					throw new IOException("Engine sent no score for: " + fenCode);
+				}
+				return EvaluationResult.builder()
+						.bestMove(UciUtil.getBestMove(line))
+						.evaluation(eval)
+						.depth(depth)
+						.pv(pv)
+						.build();
+			}
+		}
+		throw new IOException("Engine ended while evaluating: " + fenCode);
+	}
+
+	/**
+	 * Searches the best lines of a position (MultiPV), BLOCKS until the engine
+	 * sends its best move.
+	 *
+	 * @param fenCode     Position to search.
+	 * @param searchMoves Moves the search is restricted to, empty for all.
+	 * @param lines       Lines to search (MultiPV).
+	 * @param depth       Max depth to go for the search (in half moves).
+	 * @return Last score of each line, best first (see
+	 *         {@link ChessEngine#evaluateLines}).
+	 * @throws IOException If the engine ends unexpectedly or times out.
+	 */
+	public List<EvaluationResult> evaluateLines(String fenCode, List<String> searchMoves, int lines, int depth)
+			throws IOException {
+		setMultiPv(lines);
+		sendCommand("position fen " + fenCode);
+		sendCommand("go depth " + depth + (searchMoves.isEmpty() ? "" : " searchmoves " + String.join(" ", searchMoves)));
+
+		long deadlineNanos = getDeadlineNanos();
+		Map<Integer, EvaluationResult> results = new TreeMap<>();
+		String line;
+		while ((line = readLine(deadlineNanos)) != null) {
+			if (line.startsWith("info") && line.contains(" score ") && !UciUtil.isBoundScore(line)) {
+				List<String> pv = UciUtil.extractMoves(line);
+				if (!pv.isEmpty()) {
+					results.put(UciUtil.getMultiPv(line), EvaluationResult.builder()
+							.bestMove(pv.get(0))
+							.evaluation(UciUtil.getEval(fenCode, line))
+							.depth(depth)
+							.pv(pv)
+							.build());
+				}
+			} else if (line.startsWith("bestmove")) {
+				return new ArrayList<>(results.values());
+			}
+		}
+		throw new IOException("Engine ended while evaluating: " + fenCode);
+	}
+
+	public boolean isAlive() {
+		return process.isAlive();
+	}
+
+	@Override
+	public void close() {
+		try {
+			sendCommand("quit");
+			process.waitFor(QUIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (IOException e) {
+			log.debug("Engine already ended: {}", e.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			process.destroyForcibly();
+		}
+	}
+
+	private void setMultiPv(int lines) throws IOException {
+		if (lines != multiPv) {
+			sendCommand("setoption name MultiPV value " + lines);
+			multiPv = lines;
+		}
+	}
+
+	private void sendCommand(String command) throws IOException {
+		log.debug("sendCommand: {}", command);
+		writer.write(command + "\n");
+		writer.flush();
+	}
+
+	private void waitFor(String expectedLine) throws IOException {
+		long deadlineNanos = getDeadlineNanos();
+		String line;
+		while ((line = readLine(deadlineNanos)) != null) {
+			if (line.equals(expectedLine)) {
+				return;
+			}
+		}
+		throw new IOException("Engine ended before sending: " + expectedLine);
+	}
+
+	private long getDeadlineNanos() {
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Waits for the next line sent by the engine.
+	 *
+	 * @param deadlineNanos Time ({@link System#nanoTime()}) when to stop waiting.
+	 * @return The line, NULL if the engine ended.
+	 * @throws IOException If the deadline is reached (the engine is killed) or the
+	 *                     wait is interrupted.
+	 */
+	private String readLine(long deadlineNanos) throws IOException {
+		Optional<String> line;
+		try {
+			line = lines.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the engine", e);
+		}
+		if (line == null) {
+			process.destroyForcibly(); // may be stuck, so it's killed (the engine can't be used any more)
+			throw new IOException("Engine timed out: no answer in " + timeoutMillis + " ms");
+		}
+		if (line.isEmpty()) {
+			lines.add(line); // ended, for the next reads too
+			return null;
+		}
+		log.debug("Message received: {}", line.get());
+		return line.get();
+	}
+
+	/** Reads the output of the engine until it ends (runs in the reader thread). */
+	private void readOutput() {
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(Optional.of(line.trim()));
+			}
+		} catch (IOException e) {
+			log.debug("Engine output closed: {}", e.toString());
+		} finally {
+			lines.add(Optional.empty());
+		}
+	}
+}
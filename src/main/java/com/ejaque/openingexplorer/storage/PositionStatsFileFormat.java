@@ -0,0 +1,91 @@
+package com.ejaque.openingexplorer.storage;
+
+/**
+ * Layout of the binary position stats file (little endian):
+ * 
+ * <pre>
+ * HEADER (64 bytes)
+ *   int   magic ("OEPS")
+ *   int   version
+ *   long  slotCount        (power of 2)
+ *   long  positionCount
+ *   long  moveCount
+ *   long  slotsOffset      (always 64)
+ *   long  movesOffset
+ *   long  createdMillis
+ *   long  reserved
+ * SLOTS (slotCount x 32 bytes), hash table with linear probing, key 0 = empty slot
+ *   long  key              (Zobrist key, see ZobristUtil)
+ *   long  firstMove        (index of the first move record of the position)
+ *   int   white, draws, black
+ *   short moveCount
+ *   short reserved
+ * MOVES (moveCount x 16 bytes), moves of each position together, in explorer order
+ *   short uci              (from + to * 64 + promotion * 4096)
+ *   int   white, draws, black
+ *   short averageRating
+ * </pre>
+ * 
+ * Slots and moves never cross a 1GB boundary, so the file can be mapped in
+ * segments of 1GB.
+ */
+final class PositionStatsFileFormat {
+
+	static final int MAGIC = 0x5350454F;  // "OEPS" in little endian
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+	static final int SLOT_SIZE = 32;
+	static final int MOVE_SIZE = 16;
+
+	/** Used instead of a real key 0 (0 marks empty slots). */
+	static final long ZERO_KEY_REPLACEMENT = 0x9E3779B97F4A7C15L;
+
+	private static final String PROMOTIONS = " nbrq";
+
+	private PositionStatsFileFormat() {
+	}
+
+	static long toStoredKey(long key) {
+		return key == 0 ? ZERO_KEY_REPLACEMENT : key;
+	}
+
+	/** First slot to check for a key (keys are random, but we mix the bits anyway). */
+	static long getSlot(long key, long slotCount) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (hash ^ (hash >>> 32)) & (slotCount - 1);
+	}
+
+	/** Encodes a move in UCI (like "e2e4", "e1h1" or "e7e8q") in 15 bits. */
+	static short encodeUci(String uci) {
+		int from = toSquare(uci, 0);
+		int to = toSquare(uci, 2);
+		int promotion = uci.length() > 4 ? PROMOTIONS.indexOf(Character.toLowerCase(uci.charAt(4))) : 0;
+		if (promotion < 0) {
+			throw new IllegalArgumentException("Invalid promotion in move: " + uci);
+		}
+		return (short) (from + to * 64 + promotion * 4096);
+	}
+
+	static String decodeUci(short encoded) {
+		int from = encoded & 63;
+		int to = (encoded >> 6) & 63;
+		int promotion = (encoded >> 12) & 7;
+		StringBuilder uci = new StringBuilder(5)
+				.append((char) ('a' + from % 8)).append((char) ('1' + from / 8))
+				.append((char) ('a' + to % 8)).append((char) ('1' + to / 8));
+		if (promotion > 0) {
+			uci.append(PROMOTIONS.charAt(promotion));
+		}
+		return uci.toString();
+	}
+
+	private static int toSquare(String uci, int index) {
+		int file = uci.charAt(index) - 'a';
+		int rank = uci.charAt(index + 1) - '1';
+		if (file < 0 || file > 7 || rank < 0 || rank > 7) {
+			throw new IllegalArgumentException("Invalid move: " + uci);
+		}
+		return file + rank * 8;
+	}
+}
@@ -0,0 +1,157 @@
+package com.ejaque.openingexplorer.storage;
+
+import static com.ejaque.openingexplorer.storage.PositionStatsFileFormat.HEADER_SIZE;
+import static com.ejaque.openingexplorer.storage.PositionStatsFileFormat.MOVE_SIZE;
+import static com.ejaque.openingexplorer.storage.PositionStatsFileFormat.SLOT_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.service.OpeningExplorerService;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads a binary position stats file (see {@link PositionStatsFileFormat})
+ * memory-mapped, so huge trees are queried without loading them onto the heap
+ * (the OS pages in only the parts used). Lookups are O(1): one hash table slot
+ * (a few more with collisions) and the move records of the position.
+ * <br>
+ * Thread safe (only absolute reads of the mapped buffers).
+ */
+@Slf4j
+public class PositionStatsFileReader implements AutoCloseable {
+
+	/** Size of each mapped segment (a mapped buffer can't be bigger than 2GB). */
+	static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private final long segmentSize;
+
+	private final long slotCount;
+	@Getter
+	private final long positionCount;
+	@Getter
+	private final long moveCount;
+	private final long movesOffset;
+
+	/**
+	 * Opens the file (read only).
+	 *
+	 * @param file Binary position stats file.
+	 * @throws IOException If the file can't be read or it's not a valid file.
+	 */
+	public PositionStatsFileReader(Path file) throws IOException {
+		this(file, DEFAULT_SEGMENT_SIZE);
+	}
+
+	PositionStatsFileReader(Path file, long segmentSize) throws IOException {
+		if (segmentSize % SLOT_SIZE != 0) {
+			throw new IllegalArgumentException("Segment size must be multiple of " + SLOT_SIZE);
+		}
+		this.segmentSize = segmentSize;
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		long size = channel.size();
+		int totalSegments = (int) ((size + segmentSize - 1) / segmentSize);
+		this.segments = new MappedByteBuffer[totalSegments];
+		for (int i = 0; i < totalSegments; i++) {
+			long start = i * segmentSize;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+			segments[i].order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		if (size < HEADER_SIZE || getInt(0) != PositionStatsFileFormat.MAGIC) {
+			channel.close();
+			throw new IOException("Not a position stats file: " + file);
+		}
+		if (getInt(4) != PositionStatsFileFormat.VERSION) {
+			channel.close();
+			throw new IOException("Unsupported version " + getInt(4) + " of position stats file: " + file);
+		}
+		this.slotCount = getLong(8);
+		this.positionCount = getLong(16);
+		this.moveCount = getLong(24);
+		this.movesOffset = getLong(40);
+		log.info("Position stats file opened: positions={} moves={} file={}", positionCount, moveCount, file);
+	}
+
+	/**
+	 * Gets the stats of a position.
+	 *
+	 * @param key Zobrist key of the position (see
+	 *            {@link com.ejaque.openingexplorer.util.ZobristUtil}).
+	 * @return Stats of the position, NULL if it is not in the file.
+	 */
+	public PositionStats get(long key) {
+		long storedKey = PositionStatsFileFormat.toStoredKey(key);
+		long slot = PositionStatsFileFormat.getSlot(storedKey, slotCount);
+		while (true) {
+			long slotOffset = HEADER_SIZE + slot * SLOT_SIZE;
+			long slotKey = getLong(slotOffset);
+			if (slotKey == 0) {
+				return null;
+			}
+			if (slotKey == storedKey) {
+				return readPosition(slotOffset);
+			}
+			slot = (slot + 1) & (slotCount - 1);
+		}
+	}
+
+	private PositionStats readPosition(long slotOffset) {
+		long firstMove = getLong(slotOffset + 8);
+		int white = getInt(slotOffset + 16);
+		int draws = getInt(slotOffset + 20);
+		int black = getInt(slotOffset + 24);
+		int moves = getShort(slotOffset + 28);
+
+		String[] moveUci = new String[moves];
+		int[] moveWhite = new int[moves];
+		int[] moveDraws = new int[moves];
+		int[] moveBlack = new int[moves];
+		int[] moveAverageRating = new int[moves];
+		double weightedRatings = 0.0;
+		int totalGamesForAllMoves = 0;
+		for (int i = 0; i < moves; i++) {
+			long moveOffset = movesOffset + (firstMove + i) * MOVE_SIZE;
+			moveUci[i] = PositionStatsFileFormat.decodeUci(getShort(moveOffset));
+			moveWhite[i] = getInt(moveOffset + 2);
+			moveDraws[i] = getInt(moveOffset + 6);
+			moveBlack[i] = getInt(moveOffset + 10);
+			moveAverageRating[i] = getShort(moveOffset + 14);
+
+			int totalGamesMove = moveWhite[i] + moveDraws[i] + moveBlack[i];
+			totalGamesForAllMoves = totalGamesForAllMoves + totalGamesMove;
+			weightedRatings = weightedRatings
+					+ (double) moveAverageRating[i] * totalGamesMove / OpeningExplorerService.AVG_RATING;
+		}
+		double avgRatingForAllMoves = weightedRatings * OpeningExplorerService.AVG_RATING / totalGamesForAllMoves;
+
+		return new PositionStats(white, draws, black, moves, moveUci, moveWhite, moveDraws, moveBlack,
+				moveAverageRating, avgRatingForAllMoves);
+	}
+
+	private long getLong(long offset) {
+		return segments[(int) (offset / segmentSize)].getLong((int) (offset % segmentSize));
+	}
+
+	private int getInt(long offset) {
+		return segments[(int) (offset / segmentSize)].getInt((int) (offset % segmentSize));
+	}
+
+	private short getShort(long offset) {
+		return segments[(int) (offset / segmentSize)].getShort((int) (offset % segmentSize));
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
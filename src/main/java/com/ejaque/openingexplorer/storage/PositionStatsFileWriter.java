@@ -0,0 +1,182 @@
+package com.ejaque.openingexplorer.storage;
+
+import static com.ejaque.openingexplorer.storage.PositionStatsFileFormat.HEADER_SIZE;
+import static com.ejaque.openingexplorer.storage.PositionStatsFileFormat.MOVE_SIZE;
+import static com.ejaque.openingexplorer.storage.PositionStatsFileFormat.SLOT_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.ejaque.openingexplorer.model.PositionStats;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes the stats of many positions to a binary file (see
+ * {@link PositionStatsFileFormat}), to be read with
+ * {@link PositionStatsFileReader} without loading it onto the heap.
+ * <br>
+ * Move records are streamed to a temp file as positions are added, only 32
+ * bytes per position are kept in memory until {@link #close()} builds the hash
+ * table and writes the final file. NOT thread safe.
+ */
+@Slf4j
+public class PositionStatsFileWriter implements AutoCloseable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] EMPTY_SLOT = new byte[SLOT_SIZE];
+
+	private final Path file;
+	private final Path movesTmpFile;
+	private final FileChannel movesChannel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	private int positionCount;
+	private long moveCount;
+	private long[] keys = new long[1024];
+	private long[] firstMoves = new long[1024];
+	private int[] totals = new int[1024 * 3];
+	private short[] moveCounts = new short[1024];
+
+	private boolean closed;
+
+	/**
+	 * @param file File to write (replaced when closing, if it exists).
+	 * @throws IOException If the temp file can't be created.
+	 */
+	public PositionStatsFileWriter(Path file) throws IOException {
+		this.file = file;
+		this.movesTmpFile = file.resolveSibling(file.getFileName() + ".moves.tmp");
+		this.movesChannel = FileChannel.open(movesTmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Adds the stats of a position. Each key must be added only once.
+	 *
+	 * @param key   Zobrist key of the position (see
+	 *              {@link com.ejaque.openingexplorer.util.ZobristUtil}).
+	 * @param stats Stats of the position.
+	 */
+	public void add(long key, PositionStats stats) throws IOException {
+		if (positionCount == keys.length) {
+			int newCapacity = keys.length * 2;
+			keys = Arrays.copyOf(keys, newCapacity);
+			firstMoves = Arrays.copyOf(firstMoves, newCapacity);
+			totals = Arrays.copyOf(totals, newCapacity * 3);
+			moveCounts = Arrays.copyOf(moveCounts, newCapacity);
+		}
+		int moves = Math.min(stats.getMoveCount(), Short.MAX_VALUE);
+		keys[positionCount] = PositionStatsFileFormat.toStoredKey(key);
+		firstMoves[positionCount] = moveCount;
+		totals[positionCount * 3] = stats.getWhite();
+		totals[positionCount * 3 + 1] = stats.getDraws();
+		totals[positionCount * 3 + 2] = stats.getBlack();
+		moveCounts[positionCount] = (short) moves;
+		positionCount++;
+
+		for (int i = 0; i < moves; i++) {
+			if (buffer.remaining() < MOVE_SIZE) {
+				flush(movesChannel);
+			}
+			buffer.putShort(PositionStatsFileFormat.encodeUci(stats.getUci(i)));
+			buffer.putInt(stats.getMoveWhite()[i]);
+			buffer.putInt(stats.getMoveDraws()[i]);
+			buffer.putInt(stats.getMoveBlack()[i]);
+			buffer.putShort((short) Math.min(stats.getAverageRating(i), Short.MAX_VALUE));
+			moveCount++;
+		}
+	}
+
+	/** Builds the hash table and writes the final file. */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		flush(movesChannel);
+		movesChannel.close();
+
+		// load factor <= 0.5, so probing is short
+		long slotCount = Long.highestOneBit(Math.max(2, (long) positionCount * 2 - 1)) << 1;
+		if (slotCount > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many positions for one file: " + positionCount);
+		}
+		int[] slotToPosition = new int[(int) slotCount];
+		Arrays.fill(slotToPosition, -1);
+		for (int position = 0; position < positionCount; position++) {
+			long slot = PositionStatsFileFormat.getSlot(keys[position], slotCount);
+			while (slotToPosition[(int) slot] >= 0) {
+				if (keys[slotToPosition[(int) slot]] == keys[position]) {
+					throw new IllegalStateException("Duplicated key: " + keys[position]);
+				}
+				slot = (slot + 1) & (slotCount - 1);
+			}
+			slotToPosition[(int) slot] = position;
+		}
+
+		long movesOffset = HEADER_SIZE + slotCount * SLOT_SIZE;
+		Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			buffer.putInt(PositionStatsFileFormat.MAGIC);
+			buffer.putInt(PositionStatsFileFormat.VERSION);
+			buffer.putLong(slotCount);
+			buffer.putLong(positionCount);
+			buffer.putLong(moveCount);
+			buffer.putLong(HEADER_SIZE);
+			buffer.putLong(movesOffset);
+			buffer.putLong(System.currentTimeMillis());
+			buffer.putLong(0L);
+
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (buffer.remaining() < SLOT_SIZE) {
+					flush(channel);
+				}
+				int position = slotToPosition[slot];
+				if (position < 0) {
+					buffer.put(EMPTY_SLOT);
+				} else {
+					buffer.putLong(keys[position]);
+					buffer.putLong(firstMoves[position]);
+					buffer.putInt(totals[position * 3]);
+					buffer.putInt(totals[position * 3 + 1]);
+					buffer.putInt(totals[position * 3 + 2]);
+					buffer.putShort(moveCounts[position]);
+					buffer.putShort((short) 0);
+				}
+			}
+			flush(channel);
+
+			try (FileChannel movesIn = FileChannel.open(movesTmpFile, StandardOpenOption.READ)) {
+				long transferred = 0;
+				long size = movesIn.size();
+				while (transferred < size) {
+					transferred += movesIn.transferTo(transferred, size - transferred, channel);
+				}
+			}
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+		Files.deleteIfExists(movesTmpFile);
+
+		log.info("Position stats file written: positions={} moves={} size={} MB file={}", positionCount, moveCount,
+				Files.size(file) / (1024 * 1024), file);
+	}
+
+	private void flush(FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
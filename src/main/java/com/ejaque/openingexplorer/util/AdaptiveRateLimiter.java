@@ -0,0 +1,224 @@
+package com.ejaque.openingexplorer.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Token bucket rate limiter that adapts its rate to the server (AIMD, like TCP
+ * congestion control):
+ * <ul>
+ * <li>Each call takes one token, tokens are refilled at the current rate (calls
+ * per second) up to {@code burst} tokens, so a few calls can go together after
+ * an idle period.</li>
+ * <li>Additive increase: every successful call increases the rate a bit (up to
+ * {@code maxRate}).</li>
+ * <li>Multiplicative decrease: every throttled call (HTTP 429) multiplies the
+ * rate by {@code decreaseFactor} (down to {@code minRate}) and pauses ALL calls
+ * for the time given by the server in "Retry-After". Calls already reserved
+ * (waiting for their turn) are moved after the pause too.</li>
+ * </ul>
+ * Thread safe, so one instance can be shared by all threads calling the same
+ * server.
+ */
+@Slf4j
+public class AdaptiveRateLimiter {
+
+	private final double minRate;
+	private final double maxRate;
+	private final double burst;
+	private final double additiveIncrease;
+	private final double decreaseFactor;
+
+	private final LongSupplier nanoClock;
+
+	/** Current rate (calls per second). */
+	private double rate;
+
+	/** Available tokens, can be negative when calls are already reserved ahead. */
+	private double tokens;
+
+	/**
+	 * Time of the last refill of tokens. After a 429 this is set in the FUTURE (end
+	 * of the pause), so nobody can call before it.
+	 */
+	private long lastRefillNanos;
+
+	/** Time of the last throttled call notified. */
+	private long lastThrottledNanos;
+
+	/** End of the pause after the last throttled call. */
+	private long pauseEndNanos;
+
+	private long totalWaitNanos;
+	private long totalCalls;
+	private long totalThrottled;
+
+	/**
+	 * @param initialRate      Calls per second at the start.
+	 * @param minRate          The rate never goes below this (calls per second).
+	 * @param maxRate          The rate never goes above this (calls per second).
+	 * @param burst            Max tokens accumulated (calls allowed together).
+	 * @param additiveIncrease Calls per second added to the rate after each
+	 *                         successful call.
+	 * @param decreaseFactor   Factor (between 0 and 1) applied to the rate after
+	 *                         a throttled call.
+	 */
+	public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate, double burst,
+			double additiveIncrease, double decreaseFactor) {
+		this(initialRate, minRate, maxRate, burst, additiveIncrease, decreaseFactor, System::nanoTime);
+	}
+
+	AdaptiveRateLimiter(double initialRate, double minRate, double maxRate, double burst, double additiveIncrease,
+			double decreaseFactor, LongSupplier nanoClock) {
+		if (minRate <= 0 || maxRate < minRate || burst < 1 || decreaseFactor <= 0 || decreaseFactor >= 1) {
+			throw new IllegalArgumentException("Invalid rate limiter config: minRate=" + minRate + " maxRate=" + maxRate
+					+ " burst=" + burst + " decreaseFactor=" + decreaseFactor);
+		}
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.burst = burst;
+		this.additiveIncrease = additiveIncrease;
+		this.decreaseFactor = decreaseFactor;
+		this.nanoClock = nanoClock;
+		this.rate = Math.max(minRate, Math.min(maxRate, initialRate));
+		this.tokens = 1;
+		this.lastRefillNanos = nanoClock.getAsLong();
+	}
+
+	/**
+	 * Takes a token, BLOCKING the calling thread until it is allowed to call.
+	 *
+	 * @return Time waited, in millis.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public long acquire() throws InterruptedException {
+		Reservation reservation = reserveCall();
+		long waitNanos;
+		// a 429 while sleeping moves the call after the pause, so check again when waking up
+		while ((waitNanos = getRemainingNanos(reservation)) > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+		return TimeUnit.NANOSECONDS.toMillis(reservation.scheduledNanos - reservation.reservedNanos);
+	}
+
+	/** A call that took a token, see {@link #reserveCall()}. */
+	static class Reservation {
+		/** Time when the token was taken. */
+		private final long reservedNanos;
+		/** Time when the call is allowed. */
+		private long scheduledNanos;
+		/** Throttled calls notified until the call was (re)scheduled. */
+		private long throttledCalls;
+
+		private Reservation(long reservedNanos, long scheduledNanos, long throttledCalls) {
+			this.reservedNanos = reservedNanos;
+			this.scheduledNanos = scheduledNanos;
+			this.throttledCalls = throttledCalls;
+		}
+	}
+
+	/**
+	 * Takes a token without waiting.
+	 *
+	 * @return Time (nanos) the caller must wait before calling.
+	 */
+	synchronized long reserve() {
+		Reservation reservation = reserveCall();
+		return reservation.scheduledNanos - reservation.reservedNanos;
+	}
+
+	/**
+	 * Takes a token without waiting.
+	 *
+	 * @return The call reserved, see {@link #getRemainingNanos(Reservation)} for
+	 *         the time to wait.
+	 */
+	synchronized Reservation reserveCall() {
+		long now = nanoClock.getAsLong();
+		refill(now);
+
+		// after a 429 nobody calls until the pause ends (tokens start refilling after it)
+		long waitNanos = Math.max(0, lastRefillNanos - now);
+		if (tokens < 1) {
+			waitNanos += (long) ((1 - tokens) / rate * 1E9);
+		}
+		tokens -= 1;
+
+		totalCalls++;
+		totalWaitNanos += waitNanos;
+		return new Reservation(now, now + waitNanos, totalThrottled);
+	}
+
+	/**
+	 * Gets the time a reserved call must still wait. If the server throttled a
+	 * call after this one was reserved, and before its turn, it is moved after
+	 * the pause (keeping its distance to the throttled call, so the calls
+	 * reserved are not done all together when the pause ends).
+	 *
+	 * @return Time (nanos) the caller must still wait before calling, 0 if it can
+	 *         call now.
+	 */
+	synchronized long getRemainingNanos(Reservation reservation) {
+		if (reservation.throttledCalls != totalThrottled) {
+			reservation.throttledCalls = totalThrottled;
+			if (reservation.scheduledNanos > lastThrottledNanos) {
+				long scheduledNanos = pauseEndNanos + (reservation.scheduledNanos - lastThrottledNanos);
+				totalWaitNanos += scheduledNanos - reservation.scheduledNanos;
+				reservation.scheduledNanos = scheduledNanos;
+			}
+		}
+		return Math.max(0, reservation.scheduledNanos - nanoClock.getAsLong());
+	}
+
+	private void refill(long now) {
+		if (now > lastRefillNanos) {
+			tokens = Math.min(burst, tokens + (now - lastRefillNanos) / 1E9 * rate);
+			lastRefillNanos = now;
+		}
+	}
+
+	/** Notifies a successful call (additive increase of the rate). */
+	public synchronized void onSuccess() {
+		rate = Math.min(maxRate, rate + additiveIncrease);
+	}
+
+	/**
+	 * Notifies a throttled call (HTTP 429): decreases the rate and pauses all
+	 * calls (also the ones already reserved, see
+	 * {@link #getRemainingNanos(Reservation)}).
+	 *
+	 * @param retryAfterMillis Time to wait before calling again (from the
+	 *                         "Retry-After" header).
+	 */
+	public synchronized void onThrottled(long retryAfterMillis) {
+		long now = nanoClock.getAsLong();
+		refill(now);
+		totalThrottled++;
+		rate = Math.max(minRate, rate * decreaseFactor);
+		// calls reserved ahead keep their debt (negative balance) and go first after the pause, with no burst
+		tokens = Math.min(tokens, 0) + 1;
+		lastThrottledNanos = now;
+		pauseEndNanos = Math.max(lastRefillNanos, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+		lastRefillNanos = pauseEndNanos;
+		log.warn("THROTTLED by server, new rate={} calls/sec, pausing {} ms", rate, retryAfterMillis);
+	}
+
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/** Total time waited by all the callers, in millis. */
+	public synchronized long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos);
+	}
+
+	public synchronized long getTotalCalls() {
+		return totalCalls;
+	}
+
+	public synchronized long getTotalThrottled() {
+		return totalThrottled;
+	}
+}
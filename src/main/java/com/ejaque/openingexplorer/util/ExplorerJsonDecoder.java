@@ -0,0 +1,139 @@
+package com.ejaque.openingexplorer.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.service.OpeningExplorerService;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming decoder for the responses of the opening explorer. Reads the JSON
+ * token by token (no {@code JsonObject} tree) straight into a
+ * {@link PositionStats}, skipping the fields we don't use (opening, top games,
+ * recent games...). The weighted avg rating of all moves is calculated in the
+ * same pass.
+ */
+public class ExplorerJsonDecoder {
+
+	private static final int INITIAL_MOVES_CAPACITY = 16;
+
+	/**
+	 * Decodes an explorer response.
+	 *
+	 * @param json Explorer response.
+	 * @return Stats of the position.
+	 * @throws IllegalArgumentException If the JSON is not valid.
+	 */
+	public static PositionStats decode(String json) {
+		try {
+			return decode(new StringReader(json));
+		} catch (IOException | IllegalStateException e) {
+			throw new IllegalArgumentException("Invalid explorer response: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Decodes an explorer response from a reader (the reader is NOT closed).
+	 *
+	 * @param in Reader with the explorer response.
+	 * @return Stats of the position.
+	 * @throws IOException If the JSON is not valid or can't be read.
+	 */
+	public static PositionStats decode(Reader in) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		int white = 0;
+		int draws = 0;
+		int black = 0;
+
+		int moveCount = 0;
+		String[] moveUci = new String[INITIAL_MOVES_CAPACITY];
+		int[] moveWhite = new int[INITIAL_MOVES_CAPACITY];
+		int[] moveDraws = new int[INITIAL_MOVES_CAPACITY];
+		int[] moveBlack = new int[INITIAL_MOVES_CAPACITY];
+		int[] moveAverageRating = new int[INITIAL_MOVES_CAPACITY];
+
+		// weighted sum of avg ratings, divided by AVG_RATING (only for avoiding numeric overflows)
+		double weightedRatings = 0.0;
+		int totalGamesForAllMoves = 0;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "white":
+				white = nextInt(reader);
+				break;
+			case "draws":
+				draws = nextInt(reader);
+				break;
+			case "black":
+				black = nextInt(reader);
+				break;
+			case "moves":
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (moveCount == moveUci.length) {
+						int newCapacity = moveCount * 2;
+						moveUci = Arrays.copyOf(moveUci, newCapacity);
+						moveWhite = Arrays.copyOf(moveWhite, newCapacity);
+						moveDraws = Arrays.copyOf(moveDraws, newCapacity);
+						moveBlack = Arrays.copyOf(moveBlack, newCapacity);
+						moveAverageRating = Arrays.copyOf(moveAverageRating, newCapacity);
+					}
+					reader.beginObject();
+					while (reader.hasNext()) {
+						switch (reader.nextName()) {
+						case "uci":
+							moveUci[moveCount] = reader.nextString();
+							break;
+						case "white":
+							moveWhite[moveCount] = nextInt(reader);
+							break;
+						case "draws":
+							moveDraws[moveCount] = nextInt(reader);
+							break;
+						case "black":
+							moveBlack[moveCount] = nextInt(reader);
+							break;
+						case "averageRating":
+							moveAverageRating[moveCount] = nextInt(reader);
+							break;
+						default:
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+
+					int totalGamesMove = moveWhite[moveCount] + moveDraws[moveCount] + moveBlack[moveCount];
+					totalGamesForAllMoves = totalGamesForAllMoves + totalGamesMove;
+					weightedRatings = weightedRatings
+							+ (double) moveAverageRating[moveCount] * totalGamesMove / OpeningExplorerService.AVG_RATING;
+					moveCount++;
+				}
+				reader.endArray();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		double avgRatingForAllMoves = weightedRatings * OpeningExplorerService.AVG_RATING / totalGamesForAllMoves;
+
+		return new PositionStats(white, draws, black, moveCount, Arrays.copyOf(moveUci, moveCount),
+				Arrays.copyOf(moveWhite, moveCount), Arrays.copyOf(moveDraws, moveCount),
+				Arrays.copyOf(moveBlack, moveCount), Arrays.copyOf(moveAverageRating, moveCount), avgRatingForAllMoves);
+	}
+
+	/** Reads an int, NULL is read as 0 (some moves have no avg rating). */
+	private static int nextInt(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return 0;
+		}
+		return reader.nextInt();
+	}
+}
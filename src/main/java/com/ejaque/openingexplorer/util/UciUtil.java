@@ -17,7 +17,9 @@ public class UciUtil {
 
     private static final Pattern SCORE_PATTERN = Pattern.compile("score cp (-?\\d+)|score mate (-?\\d+)");
 
-    private static final Pattern MOVES_PATTERN = Pattern.compile("pv\\s+(.+)");
+    private static final Pattern MOVES_PATTERN = Pattern.compile("\\bpv\\s+(.+)");
+
+    private static final Pattern MULTIPV_PATTERN = Pattern.compile("\\bmultipv (\\d+)");
 
     
     /**
@@ -144,6 +146,25 @@ public class UciUtil {
     }
     
     
+    /**
+     * Gets the line number (MultiPV) of a UCI info message.
+     *
+     * @param uciInfoMessage The UCI info message.
+     * @return The line number, 1 if the message has no "multipv" (single line).
+     */
+    public static int getMultiPv(String uciInfoMessage) {
+        Matcher matcher = MULTIPV_PATTERN.matcher(uciInfoMessage);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : 1;
+    }
+
+    /**
+     * Checks if the score of a UCI info message is only a bound (the search of
+     * that line is not finished at its depth).
+     */
+    public static boolean isBoundScore(String uciInfoMessage) {
+        return uciInfoMessage.contains(" lowerbound") || uciInfoMessage.contains(" upperbound");
+    }
+
     /**
      * Extracts the list of moves from a UCI "info depth..." message.
      *
@@ -0,0 +1,192 @@
+package com.ejaque.openingexplorer.util;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.CastleRight;
+import com.github.bhlangonijr.chesslib.Piece;
+import com.github.bhlangonijr.chesslib.Side;
+import com.github.bhlangonijr.chesslib.Square;
+
+/**
+ * Zobrist hashing of chess positions: a 64-bit key built by XOR of random
+ * numbers for each piece on each square, the side to move, the castling
+ * rights and the en passant file. The random numbers come from a FIXED seed,
+ * so keys are the same in every run and can be saved to disk (see
+ * {@link com.ejaque.openingexplorer.storage.PositionStatsFileWriter}).
+ * <br>
+ * Move counters are not part of the key, so it identifies the same positions
+ * as the Short FEN (see {@link PgnUtil#getShortFenCode(String)}). The en passant
+ * file is only part of the key when a pawn can capture en passant (some FENs
+ * have the en passant square after every double pawn push), so the same
+ * position gets the same key from a FEN or from a {@link Board}.
+ */
+public class ZobristUtil {
+
+	private static final long SEED = 0x0E7A0E5EEDL;
+
+	private static final String PIECES = "PNBRQKpnbrqk";
+
+	private static final long[][] PIECE_SQUARE = new long[PIECES.length()][64];
+	private static final long BLACK_TO_MOVE;
+	private static final long[] CASTLING = new long[4];  // K, Q, k, q
+	private static final long[] EN_PASSANT_FILE = new long[8];
+
+	/** Index of each piece in {@link #PIECE_SQUARE} (by {@link Piece} ordinal), -1 for NONE. */
+	private static final int[] PIECE_INDEX = new int[Piece.values().length];
+
+	/** Squares by index (file + rank * 8), {@link Square#values()} copies the array on each call. */
+	private static final Square[] SQUARES = Arrays.copyOf(Square.values(), 64);
+
+	private static final int NO_PIECE = -1;
+
+	static {
+		Arrays.fill(PIECE_INDEX, NO_PIECE);
+		Piece[] pieces = { Piece.WHITE_PAWN, Piece.WHITE_KNIGHT, Piece.WHITE_BISHOP, Piece.WHITE_ROOK,
+				Piece.WHITE_QUEEN, Piece.WHITE_KING, Piece.BLACK_PAWN, Piece.BLACK_KNIGHT, Piece.BLACK_BISHOP,
+				Piece.BLACK_ROOK, Piece.BLACK_QUEEN, Piece.BLACK_KING };
+		for (int i = 0; i < pieces.length; i++) {
+			PIECE_INDEX[pieces[i].ordinal()] = i;
+		}
+
+		SplittableRandom random = new SplittableRandom(SEED);
+		for (long[] squares : PIECE_SQUARE) {
+			for (int square = 0; square < 64; square++) {
+				squares[square] = random.nextLong();
+			}
+		}
+		BLACK_TO_MOVE = random.nextLong();
+		for (int i = 0; i < CASTLING.length; i++) {
+			CASTLING[i] = random.nextLong();
+		}
+		for (int i = 0; i < EN_PASSANT_FILE.length; i++) {
+			EN_PASSANT_FILE[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Gets the Zobrist key of a position.
+	 *
+	 * @param fen FEN (or Short FEN) of the position.
+	 * @return Key of the position.
+	 * @throws IllegalArgumentException If the FEN is not valid.
+	 */
+	public static long getKey(String fen) {
+		String[] parts = fen.trim().split(" ");
+		if (parts.length < 4) {
+			throw new IllegalArgumentException("Invalid FEN: " + fen);
+		}
+		long key = 0L;
+		int[] board = new int[64];
+		Arrays.fill(board, NO_PIECE);
+
+		// piece placement, from rank 8 to rank 1 (square index is file + rank * 8, a1 = 0)
+		int rank = 7;
+		int file = 0;
+		for (int i = 0; i < parts[0].length(); i++) {
+			char c = parts[0].charAt(i);
+			if (c == '/') {
+				rank--;
+				file = 0;
+			} else if (c >= '1' && c <= '8') {
+				file += c - '0';
+			} else {
+				int piece = PIECES.indexOf(c);
+				if (piece < 0 || file > 7 || rank < 0) {
+					throw new IllegalArgumentException("Invalid FEN: " + fen);
+				}
+				board[file + rank * 8] = piece;
+				key ^= PIECE_SQUARE[piece][file + rank * 8];
+				file++;
+			}
+		}
+
+		boolean blackToMove = parts[1].equals("b");
+		if (blackToMove) {
+			key ^= BLACK_TO_MOVE;
+		}
+		for (int i = 0; i < parts[2].length(); i++) {
+			int right = "KQkq".indexOf(parts[2].charAt(i));
+			if (right >= 0) {
+				key ^= CASTLING[right];
+			}
+		}
+		if (!parts[3].equals("-")) {
+			int epFile = parts[3].charAt(0) - 'a';
+			if (epFile < 0 || epFile > 7) {
+				throw new IllegalArgumentException("Invalid FEN: " + fen);
+			}
+			if (canCaptureEnPassant(board, epFile, blackToMove)) {
+				key ^= EN_PASSANT_FILE[epFile];
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Gets the Zobrist key of the current position of a board, same key as
+	 * {@link #getKey(String)} with its FEN. No objects are created, so it can be
+	 * called on each move of the search (the board is updated with
+	 * doMove/undoMove).
+	 *
+	 * @param board Board with the position.
+	 * @return Key of the position.
+	 */
+	public static long getKey(Board board) {
+		long key = 0L;
+		for (int square = 0; square < 64; square++) {
+			int piece = PIECE_INDEX[board.getPiece(SQUARES[square]).ordinal()];
+			if (piece != NO_PIECE) {
+				key ^= PIECE_SQUARE[piece][square];
+			}
+		}
+
+		boolean blackToMove = board.getSideToMove() == Side.BLACK;
+		if (blackToMove) {
+			key ^= BLACK_TO_MOVE;
+		}
+		key ^= getCastlingKey(board.getCastleRight(Side.WHITE), 0);
+		key ^= getCastlingKey(board.getCastleRight(Side.BLACK), 2);
+
+		Square enPassant = board.getEnPassant();
+		if (enPassant != null && enPassant != Square.NONE) {
+			int epFile = enPassant.ordinal() % 8;
+			if (canCaptureEnPassant(board, epFile, blackToMove)) {
+				key ^= EN_PASSANT_FILE[epFile];
+			}
+		}
+		return key;
+	}
+
+	private static long getCastlingKey(CastleRight castleRight, int firstRight) {
+		switch (castleRight) {
+		case KING_AND_QUEEN_SIDE:
+			return CASTLING[firstRight] ^ CASTLING[firstRight + 1];
+		case KING_SIDE:
+			return CASTLING[firstRight];
+		case QUEEN_SIDE:
+			return CASTLING[firstRight + 1];
+		default:
+			return 0L;
+		}
+	}
+
+	/**
+	 * Checks if a pawn of the side to move is next to the pawn that was just
+	 * pushed two squares (pins are not checked).
+	 */
+	private static boolean canCaptureEnPassant(int[] board, int epFile, boolean blackToMove) {
+		int pawnRank = blackToMove ? 3 : 4;  // rank of the pushed pawn (4th for white, 5th for black)
+		int capturingPawn = PIECE_INDEX[(blackToMove ? Piece.BLACK_PAWN : Piece.WHITE_PAWN).ordinal()];
+		return (epFile > 0 && board[epFile - 1 + pawnRank * 8] == capturingPawn)
+				|| (epFile < 7 && board[epFile + 1 + pawnRank * 8] == capturingPawn);
+	}
+
+	private static boolean canCaptureEnPassant(Board board, int epFile, boolean blackToMove) {
+		int pawnRank = blackToMove ? 3 : 4;
+		Piece capturingPawn = blackToMove ? Piece.BLACK_PAWN : Piece.WHITE_PAWN;
+		return (epFile > 0 && board.getPiece(SQUARES[epFile - 1 + pawnRank * 8]) == capturingPawn)
+				|| (epFile < 7 && board.getPiece(SQUARES[epFile + 1 + pawnRank * 8]) == capturingPawn);
+	}
+}
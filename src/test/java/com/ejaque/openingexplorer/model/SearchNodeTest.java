@@ -0,0 +1,124 @@
+package com.ejaque.openingexplorer.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SearchNodeTest {
+
+	@Test
+	public void testReachProbabilityIsSumOfOpponentPaths() {
+		SearchNode root = new SearchNode(1);
+		SearchNode a = new SearchNode(2);
+		SearchNode b = new SearchNode(3);
+		SearchNode pa = new SearchNode(4);
+		SearchNode pb = new SearchNode(5);
+		SearchNode x = new SearchNode(6);
+		SearchNode y = new SearchNode(7);
+
+		// opponent to play in root, then our player, ...
+		root.addPath(1.0);
+		root.addChild(a, 0.6, false);
+		root.addChild(b, 0.3, false);
+		a.addChild(pa, 1.0, true);
+		b.addChild(pb, 1.0, true);
+		pa.addChild(x, 0.5, false);
+		x.addChild(y, 1.0, true);
+		assertEquals(0.3, x.getReachProbability(), 1E-9);
+		assertEquals(0.3, y.getReachProbability(), 1E-9);
+
+		// transposition (by another opponent move): the new path is propagated to the descendants
+		x.setExploredProbability(x.getReachProbability());
+		assertTrue(pb.addChild(x, 1.0, false));
+		assertEquals(0.6, x.getReachProbability(), 1E-9);
+		assertEquals(0.6, y.getReachProbability(), 1E-9);
+		assertEquals(2, x.getTotalPaths());
+		assertTrue(x.isReachProbabilityIncreased());
+
+		// same edge again (node explored again) changes nothing
+		assertFalse(pb.addChild(x, 1.0, false));
+		assertEquals(0.6, x.getReachProbability(), 1E-9);
+	}
+
+	@Test
+	public void testPlayerAlternativesAreNotAdded() {
+		SearchNode root = new SearchNode(1);
+		SearchNode a = new SearchNode(2);
+		SearchNode b = new SearchNode(3);
+		SearchNode c = new SearchNode(4);
+		SearchNode d = new SearchNode(5);
+		SearchNode x = new SearchNode(6);
+
+		// our player to play in root: two alternatives, each one with a single reply
+		root.addPath(1.0);
+		root.addChild(a, 1.0, true);
+		root.addChild(b, 1.0, true);
+		a.addChild(c, 1.0, false);
+		b.addChild(d, 0.8, false);
+		c.addChild(x, 1.0, true);
+
+		// both alternatives transpose into x: the max is taken
+		assertTrue(d.addChild(x, 1.0, true));
+		assertEquals(1.0, x.getReachProbability(), 1E-9);
+		assertEquals(2, x.getTotalPaths());
+	}
+
+	@Test
+	public void testOpponentPathsUnderPlayerAlternativesAreNotAdded() {
+		SearchNode root = new SearchNode(1);
+		SearchNode m1 = new SearchNode(2);
+		SearchNode m2 = new SearchNode(3);
+		SearchNode x = new SearchNode(4);
+		SearchNode y = new SearchNode(5);
+
+		// our player to play in root: two alternatives, the opponent transposes into x from both
+		root.addPath(1.0);
+		root.addChild(m1, 1.0, true);
+		root.addChild(m2, 1.0, true);
+		m1.addChild(x, 0.5, false);
+		x.addChild(y, 1.0, true);
+		assertEquals(0.5, x.getReachProbability(), 1E-9);
+
+		// only one of the alternatives is played, so the opponent moves are not added up
+		assertTrue(m2.addChild(x, 0.5, false));
+		assertEquals(0.5, x.getReachProbability(), 1E-9);
+		assertEquals(0.5, y.getReachProbability(), 1E-9);
+		assertEquals(2, x.getTotalPaths());
+
+		// another opponent path to x in the same alternative is added, and then it's the best alternative
+		SearchNode z = new SearchNode(6);
+		SearchNode w = new SearchNode(7);
+		m2.addChild(z, 0.3, false);
+		z.addChild(w, 1.0, true);
+		w.addChild(x, 1.0, false);
+		assertEquals(0.8, x.getReachProbability(), 1E-9);
+		assertEquals(0.8, y.getReachProbability(), 1E-9);
+	}
+
+	@Test
+	public void testGoodMovesProbabilityUpdated() {
+		SearchNode root = new SearchNode(1);
+		SearchNode x = new SearchNode(2);
+		GoodMove goodMove = GoodMove.builder().move("e2e4").build();
+		x.addGoodMove(goodMove);
+
+		root.addChild(x, 0.2, false);
+		root.addPath(1.0);
+		assertEquals(0.2, goodMove.getProbabilityOcurring(), 1E-9);
+	}
+
+	@Test
+	public void testCycleAddsNoProbability() {
+		SearchNode a = new SearchNode(1);
+		SearchNode b = new SearchNode(2);
+		a.addChild(b, 1.0, true);
+		assertTrue(b.addChild(a, 1.0, false));
+
+		a.addPath(1.0);
+		assertEquals(1.0, a.getReachProbability(), 1E-9);
+		assertEquals(1.0, b.getReachProbability(), 1E-9);
+		assertEquals(2, a.getTotalPaths());
+	}
+}
@@ -0,0 +1,129 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ejaque.openingexplorer.model.EvaluationResult;
+
+public class EvaluationStoreServiceTest {
+
+    private static final String FEN = "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1";
+
+    @TempDir
+    Path tempDir;
+
+    private EvaluationStoreService newStore(Path file) throws Exception {
+        EvaluationStoreService store = new EvaluationStoreService();
+        ReflectionTestUtils.setField(store, "storeFilePath", file.toString());
+        store.load();
+        return store;
+    }
+
+    private CompletableFuture<EvaluationResult> result(double evaluation, int depth) {
+        return CompletableFuture.completedFuture(EvaluationResult.builder()
+                .evaluation(evaluation)
+                .bestMove("e7e5")
+                .depth(depth)
+                .pv(List.of("e7e5", "g1f3"))
+                .build());
+    }
+
+    @Test
+    public void testDeeperEvaluationAnswersShallowerRequestsInNextRun() throws Exception {
+        Path file = tempDir.resolve("evals.jsonl");
+        AtomicInteger engineCalls = new AtomicInteger();
+
+        EvaluationStoreService store = newStore(file);
+        store.evaluate(FEN, 22, () -> { engineCalls.incrementAndGet(); return result(0.3, 22); }).join();
+        store.close();
+
+        // "next run": same position with other move counters
+        store = newStore(file);
+        EvaluationResult stored = store.evaluate("rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 3 7", 20,
+                () -> { engineCalls.incrementAndGet(); return result(0.0, 20); }).join();
+        assertEquals(1, engineCalls.get());
+        assertEquals(0.3, stored.getEvaluation(), 1E-9);
+        assertEquals(22, stored.getDepth());
+        assertEquals(List.of("e7e5", "g1f3"), stored.getPv());
+
+        // deeper than stored: evaluated again, and the deeper one is kept
+        assertEquals(0.5, store.evaluate(FEN, 26, () -> { engineCalls.incrementAndGet(); return result(0.5, 26); })
+                .join().getEvaluation(), 1E-9);
+        assertEquals(2, engineCalls.get());
+        assertEquals(26, store.find(FEN).join().getDepth());
+        store.close();
+    }
+
+    @Test
+    public void testMateScoreIsStored() throws Exception {
+        Path file = tempDir.resolve("evals.jsonl");
+        EvaluationStoreService store = newStore(file);
+        store.evaluate(FEN, 22, () -> result(Double.NEGATIVE_INFINITY, 22)).join();
+        store.close();
+
+        store = newStore(file);
+        assertEquals(Double.NEGATIVE_INFINITY, store.find(FEN).join().getEvaluation());
+        store.close();
+    }
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        EvaluationStoreService store = newStore(tempDir.resolve("evals.jsonl"));
+        CompletableFuture<EvaluationResult> engineResult = new CompletableFuture<>();
+        AtomicInteger engineCalls = new AtomicInteger();
+
+        CompletableFuture<EvaluationResult> first = store.evaluate(FEN, 22,
+                () -> { engineCalls.incrementAndGet(); return engineResult; });
+        assertSame(first, store.evaluate(FEN, 20, () -> { engineCalls.incrementAndGet(); return result(0.0, 20); }));
+        assertSame(first, store.find(FEN));
+        assertEquals(1, engineCalls.get());
+        assertEquals(1, store.getTotalCoalesced());
+
+        engineResult.complete(result(0.3, 22).join());
+        assertEquals(0.3, first.join().getEvaluation(), 1E-9);
+        store.close();
+    }
+
+    @Test
+    public void testFailedEvaluationIsRetried() throws Exception {
+        EvaluationStoreService store = newStore(tempDir.resolve("evals.jsonl"));
+        assertNull(store.find(FEN));
+
+        CompletableFuture<EvaluationResult> failed = store.evaluate(FEN, 22,
+                () -> CompletableFuture.failedFuture(new IllegalStateException("engine lost")));
+        assertThrows(CompletionException.class, () -> store.find(FEN).join());
+
+        CompletableFuture<EvaluationResult> retried = store.evaluate(FEN, 22, () -> result(0.3, 22));
+        assertEquals(0.3, retried.join().getEvaluation(), 1E-9);
+        assertThrows(CompletionException.class, failed::join);
+        assertEquals(1, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testEvaluatorThrowingFailsTheRequestAndIsRetried() throws Exception {
+        EvaluationStoreService store = newStore(tempDir.resolve("evals.jsonl"));
+
+        CompletableFuture<EvaluationResult> failed = store.evaluate(FEN, 22, () -> {
+            throw new IllegalStateException("no engines left");
+        });
+        assertThrows(CompletionException.class, failed::join);
+        assertThrows(CompletionException.class, () -> store.find(FEN).join());
+
+        CompletableFuture<EvaluationResult> retried = store.evaluate(FEN, 22, () -> result(0.3, 22));
+        assertEquals(0.3, retried.join().getEvaluation(), 1E-9);
+        store.close();
+    }
+}
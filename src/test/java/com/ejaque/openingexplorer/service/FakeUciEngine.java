@@ -0,0 +1,67 @@
+package com.ejaque.openingexplorer.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal UCI engine for tests, launched as a process (see
+ * {@link LocalUciEngineServiceTest}). Each "go" takes {@link #EVAL_MILLIS} and
+ * answers a score of 10 cp per half move of depth (side to move's point of
+ * view) and "e2e4" as best move. With MultiPV, each line scores 5 cp less
+ * than the previous one (the moves of "searchmoves", or e2e4, d2d4, g1f3...).
+ * A position with "crash" as FEN ends the process, and with "hang" the search
+ * never ends.
+ */
+public class FakeUciEngine {
+
+    static final long EVAL_MILLIS = 200;
+
+    static final List<String> BEST_MOVES = List.of("e2e4", "d2d4", "g1f3", "c2c4", "b1c3");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        int multiPv = 1;
+        boolean hang = false;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("uci")) {
+                System.out.println("id name FakeUciEngine");
+                System.out.println("option name Threads type spin default 1 min 1 max 512");
+                System.out.println("uciok");
+            } else if (line.equals("isready")) {
+                System.out.println("readyok");
+            } else if (line.equals("position fen crash")) {
+                System.exit(1);
+            } else if (line.startsWith("position fen ")) {
+                hang = line.equals("position fen hang");
+            } else if (line.startsWith("go depth ") && hang) {
+                System.out.println("info depth 1 currmove e2e4");
+            } else if (line.startsWith("setoption name MultiPV value ")) {
+                multiPv = Integer.parseInt(line.substring("setoption name MultiPV value ".length()).trim());
+            } else if (line.startsWith("go depth ")) {
+                String[] params = line.substring("go depth ".length()).trim().split(" searchmoves ");
+                int depth = Integer.parseInt(params[0]);
+                List<String> moves = params.length > 1 ? Arrays.asList(params[1].split(" ")) : BEST_MOVES;
+                Thread.sleep(EVAL_MILLIS);
+                System.out.println("info depth 1 currmove e2e4");
+                if (multiPv == 1 && params.length == 1) {
+                    System.out.println("info depth " + depth + " score cp " + depth * 10 + " pv e2e4 e7e5");
+                } else {
+                    // a bound score first (not final)
+                    System.out.println("info depth " + depth + " multipv 1 score cp 999 lowerbound pv " + moves.get(0));
+                    for (int i = 0; i < Math.min(multiPv, moves.size()); i++) {
+                        System.out.println("info depth " + depth + " multipv " + (i + 1) + " score cp "
+                                + (depth * 10 - 5 * i) + " pv " + moves.get(i) + " e7e5");
+                    }
+                }
+                System.out.println("bestmove " + moves.get(0) + " ponder e7e5");
+            } else if (line.equals("quit")) {
+                return;
+            }
+            System.out.flush();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.YearMonth;
+
+import org.junit.jupiter.api.Test;
+
+import com.ejaque.openingexplorer.model.ExplorerQuery;
+import com.ejaque.openingexplorer.model.GoodMove;
+import com.ejaque.openingexplorer.model.PositionStats;
+
+public class GoodMoveEnrichmentServiceTest {
+
+    @Test
+    public void testGetLastYearQuery() {
+        ExplorerQuery lichess = ExplorerQuery.builder().ratingRange("2500").speeds("blitz,rapid").build();
+        ExplorerQuery lastYear = GoodMoveEnrichmentService.getLastYearQuery(lichess, YearMonth.of(2024, 3));
+        assertEquals("2023-03", lastYear.getSince());
+        assertEquals("lichess|blitz,rapid|2500|since=2023-03", lastYear.getKey());
+
+        ExplorerQuery masters = ExplorerQuery.builder().ratingRange("masters").masters(true).build();
+        assertEquals("2023", GoodMoveEnrichmentService.getLastYearQuery(masters, YearMonth.of(2024, 3)).getSince());
+    }
+
+    @Test
+    public void testSetLastYearStats() {
+        PositionStats stats = new PositionStats(60, 20, 20, 2, new String[] { "e2e4", "g1f3" },
+                new int[] { 50, 10 }, new int[] { 10, 10 }, new int[] { 20, 0 }, new int[] { 2400, 2600 }, 2450.0);
+        GoodMove goodMove = GoodMove.builder().move("g1f3").build();
+
+        GoodMoveEnrichmentService.setLastYearStats(goodMove, stats);
+
+        assertEquals(20.0, goodMove.getLastYearTotalGamesMove());
+        assertEquals(0.2, goodMove.getLastYearPopularity(), 1E-9);
+        assertEquals(2600.0, goodMove.getLastYearAverageRating());
+        assertEquals(0.75, goodMove.getLastYearWhitePointsPctg(), 1E-9);
+    }
+
+    @Test
+    public void testSetCloudEval() {
+        GoodMove goodMove = GoodMove.builder().move("e2e4").build();
+        GoodMoveEnrichmentService.setCloudEval(goodMove, "{\"fen\":\"x\",\"knodes\":100,\"depth\":38,"
+                + "\"pvs\":[{\"moves\":\"e7e5 g1f3\",\"cp\":-35}]}");
+        assertEquals(-0.35, goodMove.getCloudEval(), 1E-9);
+        assertEquals(38, goodMove.getCloudEvalDepth());
+
+        GoodMoveEnrichmentService.setCloudEval(goodMove, "{\"depth\":50,\"pvs\":[{\"moves\":\"d1h5\",\"mate\":2}]}");
+        assertEquals(Double.POSITIVE_INFINITY, goodMove.getCloudEval());
+
+        // no cloud eval for the position (HTTP 404)
+        GoodMove noEval = GoodMove.builder().move("e2e4").build();
+        GoodMoveEnrichmentService.setCloudEval(noEval, "{}");
+        assertEquals(0, noEval.getCloudEvalDepth());
+    }
+}
@@ -0,0 +1,148 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ejaque.openingexplorer.model.EvaluationResult;
+
+public class LocalUciEngineServiceTest {
+
+    private static final String FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    private LocalUciEngineService engine;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // the fake engine only needs its own class (JDK only)
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classpath = Paths.get(FakeUciEngine.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .toString();
+        engine = new LocalUciEngineService();
+        EvaluationStoreService evaluationStoreService = new EvaluationStoreService();
+        ReflectionTestUtils.setField(evaluationStoreService, "enabled", false);
+        ReflectionTestUtils.setField(engine, "evaluationStoreService", evaluationStoreService);
+        ReflectionTestUtils.setField(engine, "command", java + " -cp " + classpath + " " + FakeUciEngine.class.getName());
+        ReflectionTestUtils.setField(engine, "processes", 4);
+        engine.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Test
+    public void testEvaluationsRunConcurrently() {
+        List<String> fens = List.of(
+                "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1",
+                "rnbqkbnr/pppppppp/8/8/3P4/8/PPP1PPPP/RNBQKBNR b KQkq - 0 1",
+                "rnbqkbnr/pppppppp/8/8/2P5/8/PP1PPPPP/RNBQKBNR b KQkq - 0 1",
+                "rnbqkbnr/pppppppp/8/8/8/5N2/PPPPPPPP/RNBQKB1R b KQkq - 1 1",
+                "rnbqkbnr/pppppppp/8/8/8/2N5/PPPPPPPP/R1BQKBNR b KQkq - 1 1",
+                "rnbqkbnr/pppppppp/8/8/5P2/8/PPPPP1PP/RNBQKBNR b KQkq - 0 1",
+                "rnbqkbnr/pppppppp/8/8/8/6P1/PPPPPP1P/RNBQKBNR b KQkq - 0 1",
+                "rnbqkbnr/pppppppp/8/8/8/1P6/P1PPPPPP/RNBQKBNR b KQkq - 0 1");
+        long startTime = System.currentTimeMillis();
+        for (String fen : fens) {
+            engine.requestEvaluation(fen, null, 20);
+        }
+        engine.requestEvaluation(FEN, null, 10);
+        for (String fen : fens) {
+            EvaluationResult result = engine.getEvaluationResult(fen, null);
+            // black to move: the score is from black's point of view
+            assertEquals(-2.0, result.getEvaluation(), 1E-9);
+            assertEquals("e2e4", result.getBestMove());
+        }
+        assertEquals(1.0, engine.getEvaluationResult(FEN, null).getEvaluation(), 1E-9);
+
+        // 9 evals with 4 engines: 3 rounds, not 9
+        long elapsed = System.currentTimeMillis() - startTime;
+        assertTrue(elapsed < 6 * FakeUciEngine.EVAL_MILLIS, "elapsed=" + elapsed);
+    }
+
+    @Test
+    public void testFailedEngineIsReplaced() {
+        engine.requestEvaluation("crash", null, 20);
+        assertThrows(CompletionException.class, () -> engine.getEvaluationResult("crash", null));
+
+        // the pool keeps all its engines
+        engine.requestEvaluation(FEN, null, 20);
+        assertEquals(2.0, engine.getEvaluationResult(FEN, null).getEvaluation(), 1E-9);
+        assertEquals(4, ((List<?>) ReflectionTestUtils.getField(engine, "engines")).size());
+    }
+
+    @Test
+    public void testHungEngineTimesOutAndIsReplaced() throws Exception {
+        engine.close();
+        ReflectionTestUtils.setField(engine, "evaluationExecutor", null);
+        ReflectionTestUtils.setField(engine, "processes", 1);
+        ReflectionTestUtils.setField(engine, "searchTimeoutSecs", 1L);
+        engine.start();
+
+        CompletableFuture<List<EvaluationResult>> hang = engine.evaluateLines("hang", List.of(), 1, 20);
+        ExecutionException error = assertThrows(ExecutionException.class, () -> hang.get(5, TimeUnit.SECONDS));
+        assertTrue(error.getCause().getMessage().contains("timed out"), error.getCause().toString());
+
+        // the engine was replaced by a new process
+        engine.requestEvaluation(FEN, null, 20);
+        assertEquals(2.0, engine.getEvaluationResult(FEN, null).getEvaluation(), 1E-9);
+        assertEquals(1, ((List<?>) ReflectionTestUtils.getField(engine, "engines")).size());
+    }
+
+    @Test
+    public void testNoEnginesLeftFails() throws Exception {
+        // the engines can't be restarted: after 4 crashes the pool is empty
+        ReflectionTestUtils.setField(engine, "command", "no-such-engine-binary");
+        for (int i = 0; i < 4; i++) {
+            CompletableFuture<List<EvaluationResult>> crash = engine.evaluateLines("crash", List.of(), 1, 20);
+            assertThrows(CompletionException.class, crash::join);
+        }
+        assertTrue(((List<?>) ReflectionTestUtils.getField(engine, "engines")).isEmpty());
+
+        // fails instead of waiting forever for an idle engine
+        CompletableFuture<EvaluationResult> future = engine.evaluate(FEN, null, 20);
+        assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testEvaluateMovesInOneSearch() {
+        List<EvaluationResult> lines = engine.evaluateMoves(FEN, List.of("g1f3", "b1c3"), 20).join();
+        assertEquals(2, lines.size());
+        assertEquals("g1f3", lines.get(0).getBestMove());
+        assertEquals(2.0, lines.get(0).getEvaluation(), 1E-9);
+        assertEquals("b1c3", lines.get(1).getBestMove());
+        assertEquals(1.95, lines.get(1).getEvaluation(), 1E-9);
+        assertEquals(List.of("b1c3", "e7e5"), lines.get(1).getPv());
+
+        List<EvaluationResult> topMoves = engine.evaluateTopMoves(FEN, 3, 10).join();
+        assertEquals(List.of("e2e4", "d2d4", "g1f3"), topMoves.stream().map(EvaluationResult::getBestMove).toList());
+
+        // single evals are back to one line
+        assertEquals(1.0, engine.evaluate(FEN, null, 10).join().getEvaluation(), 1E-9);
+    }
+
+    @Test
+    public void testEvaluateDoesNotBlock() {
+        CompletableFuture<EvaluationResult> future = engine.evaluate(FEN, null, 30);
+        assertFalse(future.isDone());
+
+        // same position (other move counters): same evaluation
+        assertSame(future, engine.evaluate("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 4 9", null, 30));
+        assertEquals(3.0, future.join().getEvaluation(), 1E-9);
+    }
+}
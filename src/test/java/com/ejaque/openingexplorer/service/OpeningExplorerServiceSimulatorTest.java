@@ -0,0 +1,343 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ejaque.openingexplorer.model.ExplorerQuery;
+import com.ejaque.openingexplorer.model.GoodMove;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.model.SearchNode;
+import com.ejaque.openingexplorer.simulator.ExplorerSimulator;
+import com.ejaque.openingexplorer.util.PgnUtil;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * End to end tests of the search against the {@link ExplorerSimulator} (no
+ * network, no Spring context), and a benchmark of the search run with
+ * {@code -Dbenchmark=true}.
+ */
+public class OpeningExplorerServiceSimulatorTest {
+
+    private static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    private OpeningExplorerService newSearch(ExplorerSimulator simulator, int maxDepth, double minProbability) {
+        return newSearch(simulator, maxDepth, minProbability, new SimpleMeterRegistry());
+    }
+
+    /** Creates a search wired to the simulator, with the explorer cache and the checkpoints disabled. */
+    private OpeningExplorerService newSearch(ExplorerSimulator simulator, int maxDepth, double minProbability,
+            MeterRegistry meterRegistry) {
+        PositionStatsCacheService cache = new PositionStatsCacheService();
+        ReflectionTestUtils.setField(cache, "enabled", false);
+
+        SearchMetricsService metrics = new SearchMetricsService();
+        ReflectionTestUtils.setField(metrics, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metrics, "positionStatsCacheService", cache);
+        metrics.registerMeters();
+
+        LichessExplorerClient client = new LichessExplorerClient();
+        ReflectionTestUtils.setField(client, "searchMetricsService", metrics);
+        ReflectionTestUtils.setField(client, "baseUrl", simulator.getBaseUrl());
+        ReflectionTestUtils.setField(client, "http2", false);
+        ReflectionTestUtils.setField(client, "minTimeBetweenCalls", 1L);
+        ReflectionTestUtils.setField(client, "minCallsPerSecond", 100.0);
+        ReflectionTestUtils.setField(client, "maxCallsPerSecond", 1_000_000.0);
+        ReflectionTestUtils.setField(client, "burst", 1_000_000.0);
+        ReflectionTestUtils.setField(client, "retryBackoffMillis", 1L);
+        ReflectionTestUtils.setField(client, "maxRetries", 10);
+        client.init();
+
+        LichessExplorerDataSource dataSource = new LichessExplorerDataSource();
+        ReflectionTestUtils.setField(dataSource, "positionStatsCacheService", cache);
+        ReflectionTestUtils.setField(dataSource, "lichessExplorerClient", client);
+
+        SearchCheckpointService checkpoint = new SearchCheckpointService();
+        ReflectionTestUtils.setField(checkpoint, "enabled", false);
+
+        // no probe before the search, so the counts only include the search itself
+        SearchPlannerService planner = new SearchPlannerService();
+        ReflectionTestUtils.setField(planner, "enabled", false);
+
+        OpeningExplorerService search = new OpeningExplorerService();
+        ReflectionTestUtils.setField(search, "lichessExplorerClient", client);
+        ReflectionTestUtils.setField(search, "positionStatsCacheService", cache);
+        ReflectionTestUtils.setField(search, "explorerDataSource", dataSource);
+        ReflectionTestUtils.setField(search, "searchCheckpointService", checkpoint);
+        ReflectionTestUtils.setField(search, "searchMetricsService", metrics);
+        ReflectionTestUtils.setField(search, "searchPlannerService", planner);
+        ReflectionTestUtils.setField(search, "startPositionFEN", START_FEN);
+        ReflectionTestUtils.setField(search, "maxDepthHalfMoves", maxDepth);
+        ReflectionTestUtils.setField(search, "minProbabilityOfMove", minProbability);
+        ReflectionTestUtils.setField(search, "maxPopularityPctg", 0.5);
+        ReflectionTestUtils.setField(search, "minRatingRatio", 1.0);
+        ReflectionTestUtils.setField(search, "minGamesToChooseGoodMove", 1);
+        ReflectionTestUtils.setField(search, "minGamesToChooseCandidateMove", 1);
+        ReflectionTestUtils.setField(search, "minGamesToExploreOpponentMove", 1.0);
+        ReflectionTestUtils.setField(search, "ratingRange", "2500");
+        ReflectionTestUtils.setField(search, "speeds", "blitz,rapid,classical");
+        ReflectionTestUtils.setField(search, "evalDepth", 0);
+        return search;
+    }
+
+    @Test
+    public void testSearchWithErrors() throws Exception {
+        ExplorerSimulator.Config config = ExplorerSimulator.Config.builder()
+                .branching(3)
+                .error429Rate(0.1)
+                .error500Rate(0.1)
+                .build();
+        try (ExplorerSimulator simulator = new ExplorerSimulator(config)) {
+            MeterRegistry meterRegistry = new SimpleMeterRegistry();
+            OpeningExplorerService search = newSearch(simulator, 4, 0.0, meterRegistry);
+            search.startSearch();
+
+            // full tree (no pruning by probability), no transpositions in the first 2 half moves: 1 + 3 + 9
+            int positions = search.nodeTable.size();
+            assertTrue(positions >= 13, "positions=" + positions);
+            assertFalse(search.getRankedGoodMoves().isEmpty());
+
+            // each position fetched once, failed calls were retried
+            int failedCalls = simulator.getTotalThrottled() + simulator.getTotalServerErrors();
+            assertTrue(failedCalls > 0);
+            assertEquals(positions + failedCalls, simulator.getTotalRequests());
+
+            // metrics: every HTTP call timed, no position left without stats
+            assertEquals(simulator.getTotalRequests(), meterRegistry.get("explorer.request").timers().stream()
+                    .mapToLong(timer -> timer.count()).sum());
+            assertEquals(simulator.getTotalThrottled(),
+                    meterRegistry.get("explorer.request").tag("outcome", "throttled").timer().count());
+            assertTrue(meterRegistry.get("search.nodes").tag("result", "expanded").counter().count() >= positions);
+            assertEquals(0.0, meterRegistry.get("search.nodes").tag("result", "errored").counter().count());
+        }
+    }
+
+    @Test
+    public void testSearchWithTopTier() throws Exception {
+        ExplorerSimulator.Config config = ExplorerSimulator.Config.builder().branching(3).build();
+        try (ExplorerSimulator simulator = new ExplorerSimulator(config)) {
+            OpeningExplorerService search = newSearch(simulator, 3, 0.0);
+            ReflectionTestUtils.setField(search, "topTierRatingRange", "masters");
+            ReflectionTestUtils.setField(search, "topTierSpeeds", "");
+            search.startSearch();
+
+            // one traversal: each position fetched once per variant
+            assertEquals(search.nodeTable.size() * 2, simulator.getTotalRequests());
+            for (SearchNode node : search.nodeTable.values()) {
+                assertNotNull(node.getTopTierStats());
+            }
+            // the simulator answers the same stats for both variants
+            for (GoodMove goodMove : search.getRankedGoodMoves()) {
+                assertEquals(goodMove.getTotalGames(), goodMove.getTopTierTotalGames());
+                assertEquals(goodMove.getAverageRating(), goodMove.getTopTierAverageRating());
+            }
+        }
+    }
+
+    @Test
+    public void testOpponentCoverage() throws Exception {
+        ExplorerSimulator.Config config = ExplorerSimulator.Config.builder().branching(4).build();
+        int[] requests = new int[2];
+        double[] coverages = { 1.0, 0.5 };
+        for (int run = 0; run < 2; run++) {
+            try (ExplorerSimulator simulator = new ExplorerSimulator(config)) {
+                OpeningExplorerService search = newSearch(simulator, 4, 0.0);
+                ReflectionTestUtils.setField(search, "opponentCoverage", coverages[run]);
+                search.startSearch();
+                requests[run] = simulator.getTotalRequests();
+            }
+        }
+        // sidelines of the opponent are not explored
+        assertTrue(requests[1] < requests[0], "requests=" + requests[0] + "," + requests[1]);
+    }
+
+    @Test
+    public void testSearchIsDeterministic() throws Exception {
+        ExplorerSimulator.Config config = ExplorerSimulator.Config.builder().branching(4).build();
+        int[] positions = new int[2];
+        int[] goodMoves = new int[2];
+        for (int run = 0; run < 2; run++) {
+            try (ExplorerSimulator simulator = new ExplorerSimulator(config)) {
+                OpeningExplorerService search = newSearch(simulator, 5, 0.05);
+                search.startSearch();
+                positions[run] = search.nodeTable.size();
+                goodMoves[run] = search.getRankedGoodMoves().size();
+            }
+        }
+        assertEquals(positions[0], positions[1]);
+        assertEquals(goodMoves[0], goodMoves[1]);
+    }
+
+    @Test
+    public void testBestFirstStopsAtApiCallsBudget() throws Exception {
+        ExplorerSimulator.Config config = ExplorerSimulator.Config.builder().branching(4).build();
+        try (ExplorerSimulator simulator = new ExplorerSimulator(config)) {
+            OpeningExplorerService search = newSearch(simulator, 8, 0.0);
+            ReflectionTestUtils.setField(search, "searchMode", OpeningExplorerService.SEARCH_MODE_BEST_FIRST);
+            ReflectionTestUtils.setField(search, "bestFirstMaxApiCalls", 20);
+            search.startSearch();
+
+            // one call per position, the tree is much bigger than the budget
+            assertEquals(20, simulator.getTotalRequests());
+            List<GoodMove> goodMoves = search.getRankedGoodMoves();
+            assertFalse(goodMoves.isEmpty());
+            for (int i = 1; i < goodMoves.size(); i++) {
+                assertTrue(goodMoves.get(i - 1).getProbabilityOcurring() >= goodMoves.get(i).getProbabilityOcurring());
+            }
+        }
+    }
+
+    @Test
+    public void testFrontierPrefetchMatchesRecursiveSearch() throws Exception {
+        AtomicInteger recursiveSearchCalls = new AtomicInteger();
+        List<Map<String, GoodMove>> goodMoves = assertSameSearch(0.05, search -> { }, search -> {
+            ReflectionTestUtils.setField(search, "frontierWorkers", 4);
+            countCallsOfSearchThread(search, recursiveSearchCalls);
+        }, (search, simulator) -> {
+            // the frontier workers fetched every position once, the recursive search only took them
+            assertEquals(0, recursiveSearchCalls.get());
+            assertEquals(search.nodeTable.size(), simulator.getTotalRequests());
+            assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(search, "prefetchedStats")).isEmpty());
+        });
+
+        // same values too (the prefetch doesn't change the order of the recursive search)
+        for (GoodMove goodMove : goodMoves.get(0).values()) {
+            GoodMove prefetched = goodMoves.get(1).get(getKey(goodMove));
+            assertEquals(goodMove.getProbabilityOcurring(), prefetched.getProbabilityOcurring(), 1E-9, getKey(goodMove));
+            assertEquals(goodMove.getPopularity(), prefetched.getPopularity(), 1E-9, getKey(goodMove));
+            assertEquals(goodMove.getTotalGamesMove(), prefetched.getTotalGamesMove(), 1E-9, getKey(goodMove));
+            assertEquals(goodMove.getAverageRating(), prefetched.getAverageRating(), 1E-9, getKey(goodMove));
+            assertEquals(goodMove.getAverageRatingForAllMoves(), prefetched.getAverageRatingForAllMoves(), 1E-9,
+                    getKey(goodMove));
+            assertEquals(goodMove.getAverageRatingOpponents(), prefetched.getAverageRatingOpponents(), 1E-9,
+                    getKey(goodMove));
+            assertEquals(goodMove.getWhitePointsPctg(), prefetched.getWhitePointsPctg(), 1E-9, getKey(goodMove));
+        }
+    }
+
+    @Test
+    public void testBestFirstMatchesRecursiveSearch() throws Exception {
+        // no min probability: best-first merges the probability of transpositions, the recursive search doesn't
+        assertSameSearch(0.0, search -> { }, search -> ReflectionTestUtils.setField(search, "searchMode",
+                OpeningExplorerService.SEARCH_MODE_BEST_FIRST), (search, simulator) -> { });
+    }
+
+    /**
+     * Runs the search with two setups, they must explore the same positions and
+     * find the same good moves.
+     *
+     * @param check2 More checks of the search with the second setup.
+     * @return Good moves found with each setup, by position (short FEN) and move.
+     */
+    private List<Map<String, GoodMove>> assertSameSearch(double minProbability, Consumer<OpeningExplorerService> setup1,
+            Consumer<OpeningExplorerService> setup2, BiConsumer<OpeningExplorerService, ExplorerSimulator> check2)
+            throws Exception {
+        ExplorerSimulator.Config config = ExplorerSimulator.Config.builder().branching(4).build();
+        List<Set<Long>> positions = new ArrayList<>();
+        List<Map<String, GoodMove>> goodMoves = new ArrayList<>();
+        for (Consumer<OpeningExplorerService> setup : List.of(setup1, setup2)) {
+            try (ExplorerSimulator simulator = new ExplorerSimulator(config)) {
+                OpeningExplorerService search = newSearch(simulator, 5, minProbability);
+                setup.accept(search);
+                search.startSearch();
+                positions.add(new HashSet<>(search.nodeTable.keySet()));
+                goodMoves.add(search.getRankedGoodMoves().stream()
+                        .collect(Collectors.toMap(OpeningExplorerServiceSimulatorTest::getKey, goodMove -> goodMove)));
+                if (setup == setup2) {
+                    check2.accept(search, simulator);
+                }
+            }
+        }
+        assertFalse(goodMoves.get(0).isEmpty());
+        assertEquals(positions.get(0), positions.get(1));
+        assertEquals(goodMoves.get(0).keySet(), goodMoves.get(1).keySet());
+        return goodMoves;
+    }
+
+    private static String getKey(GoodMove goodMove) {
+        return PgnUtil.getShortFenCode(goodMove.getFen()) + " " + goodMove.getMove();
+    }
+
+    /** Counts the explorer calls done by the thread running the search (not by the frontier workers). */
+    private void countCallsOfSearchThread(OpeningExplorerService search, AtomicInteger calls) {
+        ExplorerDataSource dataSource = (ExplorerDataSource) ReflectionTestUtils.getField(search, "explorerDataSource");
+        Thread searchThread = Thread.currentThread();
+        ReflectionTestUtils.setField(search, "explorerDataSource", new ExplorerDataSource() {
+            @Override
+            public PositionStats getPositionStats(String fen, ExplorerQuery query) throws Exception {
+                return getPositionStats(fen, query, false);
+            }
+
+            @Override
+            public PositionStats getPositionStats(String fen, ExplorerQuery query, boolean refresh) throws Exception {
+                if (Thread.currentThread() == searchThread) {
+                    calls.incrementAndGet();
+                }
+                return dataSource.getPositionStats(fen, query, refresh);
+            }
+
+            @Override
+            public String getName() {
+                return dataSource.getName();
+            }
+
+            @Override
+            public int getTotalRemoteCalls() {
+                return dataSource.getTotalRemoteCalls();
+            }
+        });
+    }
+
+    /**
+     * Benchmark of the search for several tree sizes, reports positions per
+     * second, explorer calls, wall time and memory allocated by the search
+     * thread. Run with {@code mvn test -Dtest=OpeningExplorerServiceSimulatorTest -Dbenchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void benchmarkSearch() throws Exception {
+        int[][] treeSizes = { { 3, 6 }, { 4, 6 }, { 5, 6 }, { 4, 8 } };  // branching, depth
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.println("branching depth positions apiCalls wallMillis positionsPerSec allocatedMB");
+        for (int[] treeSize : treeSizes) {
+            ExplorerSimulator.Config config = ExplorerSimulator.Config.builder()
+                    .branching(treeSize[0])
+                    .latencyMillis(Long.getLong("benchmark.latencyMillis", 0L))
+                    .jitterMillis(Long.getLong("benchmark.jitterMillis", 0L))
+                    .build();
+            try (ExplorerSimulator simulator = new ExplorerSimulator(config)) {
+                OpeningExplorerService search = newSearch(simulator, treeSize[1], 0.0);
+
+                long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+                long startTime = System.nanoTime();
+                search.startSearch();
+                long wallMillis = (System.nanoTime() - startTime) / 1_000_000;
+                long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+                int positions = search.nodeTable.size();
+                System.out.printf("%9d %5d %9d %8d %10d %15.1f %11.1f%n", treeSize[0], treeSize[1], positions,
+                        simulator.getTotalRequests(), wallMillis, positions * 1000.0 / Math.max(1, wallMillis),
+                        allocated / (1024.0 * 1024.0));
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ejaque.openingexplorer.model.PlayerMove;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.model.SearchNode;
+
+public class PlayerExplorerServiceTest {
+
+    private static final String FEN = "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1";
+
+    /** Client streaming a partial and a final line, like the player explorer while indexing. */
+    private static class StreamingClient extends LichessExplorerClient {
+        private final List<String> urls = new ArrayList<>();
+
+        @Override
+        public int streamWithRetries(String url, Consumer<String> onLine) {
+            urls.add(url);
+            onLine.accept("{\"white\":1,\"draws\":0,\"black\":0,\"moves\":[{\"uci\":\"c7c5\",\"white\":1,\"draws\":0,\"black\":0}]}");
+            onLine.accept("{\"white\":3,\"draws\":1,\"black\":4,\"moves\":["
+                    + "{\"uci\":\"e7e5\",\"white\":1,\"draws\":1,\"black\":0},"
+                    + "{\"uci\":\"c7c5\",\"white\":2,\"draws\":0,\"black\":4}]}");
+            return 200;
+        }
+    }
+
+    @Test
+    public void testHarvestStreamedMoves() {
+        StreamingClient client = new StreamingClient();
+        PositionStatsCacheService cache = new PositionStatsCacheService();
+        ReflectionTestUtils.setField(cache, "enabled", false);
+
+        PlayerExplorerService playerExplorer = new PlayerExplorerService();
+        ReflectionTestUtils.setField(playerExplorer, "usernames", "Alice, bob");
+        ReflectionTestUtils.setField(playerExplorer, "lichessExplorerClient", client);
+        ReflectionTestUtils.setField(playerExplorer, "positionStatsCacheService", cache);
+
+        SearchNode node = new SearchNode(1);
+        node.addPath(0.5);
+        node.setStats(new PositionStats(100, 0, 0, 1, new String[] { "c7c5" }, new int[] { 100 }, new int[] { 0 },
+                new int[] { 0 }, new int[] { 2000 }, 2000.0));
+        Map<SearchNode, String> positions = new LinkedHashMap<>();
+        positions.put(node, FEN);
+
+        List<PlayerMove> playerMoves = playerExplorer.harvest(positions, OpeningExplorerService.COLOR_BLACK);
+
+        assertEquals(2, client.urls.size());
+        assertTrue(client.urls.get(0).contains("color=black"));
+        assertEquals(8, node.getPlayerStats().get("Alice").getTotalGames());
+
+        // most played first, for each player
+        assertEquals(4, playerMoves.size());
+        PlayerMove move = playerMoves.get(0);
+        assertEquals("Alice", move.getPlayer());
+        assertEquals("c7c5", move.getMove());
+        assertEquals(0.5, move.getProbabilityOcurring(), 1E-9);
+        assertEquals(6, move.getTotalGamesMove());
+        assertEquals(0.75, move.getFrequency(), 1E-9);
+        assertEquals(1.0, move.getPopularity(), 1E-9);
+        assertEquals(4.0 / 6, move.getPointsPctg(), 1E-9);
+        assertEquals(0.0, playerMoves.get(1).getPopularity());
+        assertEquals("bob", playerMoves.get(2).getPlayer());
+    }
+}
@@ -0,0 +1,128 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PositionStatsCacheServiceTest {
+
+    private static final long HOUR = 3600L * 1000L;
+
+    @TempDir
+    Path tempDir;
+
+    private PositionStatsCacheService newCache(Path file, int maxEntries) throws Exception {
+        PositionStatsCacheService cache = new PositionStatsCacheService();
+        ReflectionTestUtils.setField(cache, "cacheFilePath", file.toString());
+        ReflectionTestUtils.setField(cache, "ttlHours", 10L);
+        ReflectionTestUtils.setField(cache, "staleWhileRevalidateHours", 10L);
+        ReflectionTestUtils.setField(cache, "maxEntries", maxEntries);
+        cache.load();
+        return cache;
+    }
+
+    private String line(String key, long timestamp, String value) {
+        return "{\"k\":\"" + key + "\",\"t\":" + timestamp + ",\"v\":\"" + value + "\"}";
+    }
+
+    @Test
+    public void testMissIsLoadedAndPersistedForNextRun() throws Exception {
+        Path file = tempDir.resolve("cache.jsonl");
+        AtomicInteger loaderCalls = new AtomicInteger();
+
+        PositionStatsCacheService cache = newCache(file, 100);
+        assertEquals("json1", cache.get("fen1|2500", () -> { loaderCalls.incrementAndGet(); return "json1"; }));
+        assertEquals("json1", cache.get("fen1|2500", () -> { loaderCalls.incrementAndGet(); return "other"; }));
+        cache.close();
+        assertEquals(1, loaderCalls.get());
+
+        // "next run": value comes from file, loader not called
+        cache = newCache(file, 100);
+        assertEquals("json1", cache.get("fen1|2500", () -> { loaderCalls.incrementAndGet(); return "other"; }));
+        assertEquals(1, loaderCalls.get());
+        assertEquals(1, cache.getTotalHits());
+        cache.close();
+    }
+
+    @Test
+    public void testErrorsAreNotCached() throws Exception {
+        PositionStatsCacheService cache = newCache(tempDir.resolve("cache.jsonl"), 100);
+        assertNull(cache.get("fen1|2500", () -> null));
+        assertEquals("json1", cache.get("fen1|2500", () -> "json1"));
+        cache.close();
+    }
+
+    @Test
+    public void testExpiredEntriesAreDroppedAndStaleAreRefreshed() throws Exception {
+        Path file = tempDir.resolve("cache.jsonl");
+        long now = System.currentTimeMillis();
+        Files.write(file, List.of(
+                line("expired", now - 25 * HOUR, "old"),
+                line("stale", now - 15 * HOUR, "old"),
+                line("fresh", now - 1 * HOUR, "old")));
+
+        PositionStatsCacheService cache = newCache(file, 100);
+        assertEquals(2, cache.size());
+
+        assertEquals("old", cache.get("fresh", () -> "new"));
+        assertEquals("new", cache.get("expired", () -> "new"));
+
+        // stale value is returned right away, and refreshed in background
+        assertEquals("old", cache.get("stale", () -> "new"));
+        long deadline = System.currentTimeMillis() + 5000;
+        String value = "old";
+        while (!"new".equals(value) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            value = cache.get("stale", () -> "loader should not be called");
+        }
+        assertEquals("new", value);
+        cache.close();
+    }
+
+    @Test
+    public void testForceRefreshCallsLoader() throws Exception {
+        Path file = tempDir.resolve("cache.jsonl");
+        long now = System.currentTimeMillis();
+        Files.write(file, List.of(
+                line("stale", now - 15 * HOUR, "old"),
+                line("fresh", now - 1 * HOUR, "old")));
+
+        PositionStatsCacheService cache = newCache(file, 100);
+        AtomicInteger loaderCalls = new AtomicInteger();
+
+        // the cached value is not returned (not even the stale one), the loader is called and waited for
+        assertEquals("new", cache.get("stale", () -> { loaderCalls.incrementAndGet(); return "new"; }, true));
+        assertEquals("new", cache.get("fresh", () -> { loaderCalls.incrementAndGet(); return "new"; }, true));
+        assertEquals(2, loaderCalls.get());
+        assertEquals(0, cache.getTotalStaleHits());
+
+        // the refreshed values are cached
+        assertEquals("new", cache.get("stale", () -> "loader should not be called"));
+        assertEquals("new", cache.get("fresh", () -> "loader should not be called"));
+        cache.close();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        Path file = tempDir.resolve("cache.jsonl");
+        PositionStatsCacheService cache = newCache(file, 2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a", () -> "x");   // "b" is now the least recently used
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals("reloaded", cache.get("b", () -> "reloaded"));
+        cache.close();
+
+        // compacted file only has live entries
+        assertEquals(2, Files.readAllLines(file).size());
+    }
+}
@@ -0,0 +1,185 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.DefaultApplicationArguments;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ejaque.openingexplorer.model.EvaluationResult;
+import com.ejaque.openingexplorer.model.GoodMove;
+import com.ejaque.openingexplorer.model.PositionStats;
+
+public class SearchCheckpointServiceTest {
+
+    private static final String FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    @TempDir
+    Path tempDir;
+
+    private SearchCheckpointService newCheckpoint(Path file, String searchKey, String... args) throws Exception {
+        SearchCheckpointService checkpoint = new SearchCheckpointService();
+        ReflectionTestUtils.setField(checkpoint, "checkpointFilePath", file.toString());
+        ReflectionTestUtils.setField(checkpoint, "applicationArguments", new DefaultApplicationArguments(args));
+        ReflectionTestUtils.setField(checkpoint, "freshnessHours", 1L);
+        checkpoint.open(searchKey, "lichess|2500", false);
+        return checkpoint;
+    }
+
+    private PositionStats newStats() {
+        return new PositionStats(10, 5, 5, 2, new String[] { "e2e4", "d2d4" }, new int[] { 6, 4 },
+                new int[] { 3, 2 }, new int[] { 1, 4 }, new int[] { 2500, 2400 }, Double.NaN);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        Path file = tempDir.resolve("checkpoint.jsonl");
+
+        SearchCheckpointService checkpoint = newCheckpoint(file, "search1");
+        checkpoint.saveStats(123L, newStats());
+        checkpoint.saveEvaluation(FEN, "e2e4", 0.3);
+        checkpoint.saveGoodMove(GoodMove.builder().fen(FEN).move("d2d4").build());
+        checkpoint.close();
+
+        // a run killed while writing leaves a truncated line
+        Files.writeString(file, "{\"key\":456,\"stats\":{\"whi", StandardOpenOption.APPEND);
+
+        checkpoint = newCheckpoint(file, "search1", "--resume");
+        PositionStats stats = checkpoint.takeStats(123L);
+        assertEquals(20, stats.getTotalGames());
+        assertArrayEquals(new String[] { "e2e4", "d2d4" }, stats.getMoveUci());
+        assertArrayEquals(new int[] { 2500, 2400 }, stats.getMoveAverageRating());
+        assertTrue(Double.isNaN(stats.getAvgRatingForAllMoves()));
+        assertNull(checkpoint.takeStats(123L));
+        assertNull(checkpoint.takeStats(456L));
+
+        // same position with other move counters
+        assertEquals(0.3, checkpoint.getEvaluation("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 5 9", "e2e4"));
+        assertNull(checkpoint.getEvaluation(FEN, "d2d4"));
+
+        // good move found again when replaying is not duplicated
+        checkpoint.saveGoodMove(GoodMove.builder().fen(FEN).move("d2d4").build());
+        checkpoint.close();
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.stream().filter(line -> line.contains("goodMove")).count());
+    }
+
+    @Test
+    public void testNoResume() throws Exception {
+        Path file = tempDir.resolve("checkpoint.jsonl");
+
+        SearchCheckpointService checkpoint = newCheckpoint(file, "search1");
+        checkpoint.saveStats(123L, newStats());
+        checkpoint.close();
+
+        // without "--resume" a new search is started
+        checkpoint = newCheckpoint(file, "search1");
+        assertNull(checkpoint.takeStats(123L));
+        checkpoint.close();
+
+        checkpoint = newCheckpoint(file, "search1");
+        checkpoint.saveStats(123L, newStats());
+        checkpoint.close();
+
+        // checkpoint from another search is not resumed
+        checkpoint = newCheckpoint(file, "search2", "--resume");
+        assertNull(checkpoint.takeStats(123L));
+        checkpoint.close();
+        assertEquals(1, Files.readAllLines(file).size());
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        Path file = tempDir.resolve("checkpoint.jsonl");
+
+        // previous search: one fresh position and one fetched 2 hours ago
+        SearchCheckpointService checkpoint = newCheckpoint(file, "search1");
+        checkpoint.saveStats(123L, newStats());
+        checkpoint.saveGoodMove(GoodMove.builder().fen(FEN).move("d2d4").build());
+        checkpoint.close();
+        Files.writeString(file, "{\"key\":456,\"time\":" + (System.currentTimeMillis() - 2 * 3600L * 1000L)
+                + ",\"stats\":{\"white\":1,\"moveUci\":[]}}\n", StandardOpenOption.APPEND);
+
+        // new search (other params), same stats source
+        checkpoint = newCheckpoint(file, "search1-deeper", "--incremental");
+        assertEquals(20, checkpoint.takeStats(123L).getTotalGames());
+        assertNull(checkpoint.takeStats(456L));
+        assertTrue(checkpoint.isStale(456L));
+        assertFalse(checkpoint.isStale(789L));
+        checkpoint.saveStats(456L, newStats());
+        assertFalse(checkpoint.isStale(456L));
+        checkpoint.saveStats(789L, newStats());
+        checkpoint.saveGoodMove(GoodMove.builder().fen(FEN).move("d2d4").build());
+        checkpoint.close();
+        assertEquals(1, checkpoint.getTotalReused());
+        assertEquals(1, checkpoint.getTotalStale());
+        assertEquals(1, checkpoint.getTotalNew());
+
+        // the new file has the new tree (reused position included) and the good moves derived again
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(5, lines.size());
+        assertEquals(1, lines.stream().filter(line -> line.contains("goodMove")).count());
+
+        // another stats source is not reused
+        checkpoint = new SearchCheckpointService();
+        ReflectionTestUtils.setField(checkpoint, "checkpointFilePath", file.toString());
+        ReflectionTestUtils.setField(checkpoint, "applicationArguments", new DefaultApplicationArguments("--incremental"));
+        checkpoint.open("search1", "lichess|masters", false);
+        assertNull(checkpoint.takeStats(123L));
+        checkpoint.close();
+    }
+
+    @Test
+    public void testTopMovesAreResumed() throws Exception {
+        Path file = tempDir.resolve("checkpoint.jsonl");
+        SearchCheckpointService checkpoint = newCheckpoint(file, "search1");
+        checkpoint.saveTopMoves(FEN, List.of(
+                EvaluationResult.builder().bestMove("e2e4").evaluation(0.3).depth(22).pv(List.of("e2e4", "e7e5")).build(),
+                EvaluationResult.builder().bestMove("d2d4").evaluation(Double.POSITIVE_INFINITY).depth(22).build()));
+        checkpoint.close();
+
+        checkpoint = newCheckpoint(file, "search1", "--resume");
+        List<EvaluationResult> topMoves = checkpoint.getTopMoves(FEN);
+        assertEquals(2, topMoves.size());
+        assertEquals("e2e4", topMoves.get(0).getBestMove());
+        assertEquals(0.3, topMoves.get(0).getEvaluation(), 1E-9);
+        assertEquals(Double.POSITIVE_INFINITY, topMoves.get(1).getEvaluation());
+        assertNull(checkpoint.getTopMoves("rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1"));
+        checkpoint.close();
+    }
+
+    @Test
+    public void testReadOnlyKeepsFile() throws Exception {
+        Path file = tempDir.resolve("checkpoint.jsonl");
+        SearchCheckpointService checkpoint = newCheckpoint(file, "search1");
+        checkpoint.saveStats(123L, newStats());
+        checkpoint.close();
+        List<String> lines = Files.readAllLines(file);
+
+        // a dry run of another search doesn't truncate the file, a dry run of the same one reads it
+        checkpoint = new SearchCheckpointService();
+        ReflectionTestUtils.setField(checkpoint, "checkpointFilePath", file.toString());
+        checkpoint.open("search2", "lichess|2500", true);
+        checkpoint.saveStats(456L, newStats());
+        checkpoint.close();
+        assertEquals(lines, Files.readAllLines(file));
+
+        checkpoint = new SearchCheckpointService();
+        ReflectionTestUtils.setField(checkpoint, "checkpointFilePath", file.toString());
+        ReflectionTestUtils.setField(checkpoint, "applicationArguments", new DefaultApplicationArguments("--resume"));
+        checkpoint.open("search1", "lichess|2500", true);
+        assertEquals(20, checkpoint.takeStats(123L).getTotalGames());
+        checkpoint.close();
+        assertEquals(lines, Files.readAllLines(file));
+    }
+}
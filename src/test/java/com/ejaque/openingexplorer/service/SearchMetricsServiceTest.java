@@ -0,0 +1,60 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class SearchMetricsServiceTest {
+
+    private MeterRegistry meterRegistry;
+
+    private SearchMetricsService metrics;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        metrics = new SearchMetricsService();
+        ReflectionTestUtils.setField(metrics, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metrics, "positionStatsCacheService", new PositionStatsCacheService());
+        metrics.registerMeters();
+    }
+
+    @Test
+    public void testExplorerCallOutcome() {
+        metrics.recordExplorerCall(TimeUnit.MILLISECONDS.toNanos(100), 200);
+        metrics.recordExplorerCall(TimeUnit.MILLISECONDS.toNanos(300), 404);
+        metrics.recordExplorerCall(TimeUnit.MILLISECONDS.toNanos(5), 429);
+        metrics.recordExplorerCall(TimeUnit.MILLISECONDS.toNanos(50), 503);
+        metrics.recordExplorerCall(TimeUnit.MILLISECONDS.toNanos(50), 0);
+
+        assertEquals(2, meterRegistry.get("explorer.request").tag("outcome", "ok").timer().count());
+        assertEquals(1, meterRegistry.get("explorer.request").tag("outcome", "throttled").timer().count());
+        assertEquals(2, meterRegistry.get("explorer.request").tag("outcome", "error").timer().count());
+        assertEquals(300.0, meterRegistry.get("explorer.request").tag("outcome", "ok").timer().max(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testSearchNodes() {
+        metrics.searchStarted();
+        metrics.nodeExpanded();
+        metrics.nodeExpanded();
+        metrics.nodeErrored();
+        metrics.movesPruned(3);
+        metrics.movesPruned(0);
+        metrics.setFrontierSize(7);
+
+        assertEquals(2.0, meterRegistry.get("search.nodes").tag("result", "expanded").counter().count());
+        assertEquals(1.0, meterRegistry.get("search.nodes").tag("result", "errored").counter().count());
+        assertEquals(3.0, meterRegistry.get("search.nodes").tag("result", "pruned").counter().count());
+        assertEquals(7.0, meterRegistry.get("search.frontier.size").gauge().value());
+        assertTrue(meterRegistry.get("search.nodes.rate").gauge().value() > 0.0);
+    }
+}
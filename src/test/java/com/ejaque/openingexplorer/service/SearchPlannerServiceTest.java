@@ -0,0 +1,74 @@
+package com.ejaque.openingexplorer.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ejaque.openingexplorer.model.BranchingProfile;
+import com.ejaque.openingexplorer.model.PositionStats;
+import com.ejaque.openingexplorer.model.SearchPlan;
+
+public class SearchPlannerServiceTest {
+
+    private static final BranchingProfile PROFILE = BranchingProfile.builder()
+            .rootGames(1_000_000)
+            .playerPopularity(new double[] { 0.5, 0.3, 0.1, 0.05, 0.05 })
+            .opponentPopularity(new double[] { 0.6, 0.25, 0.1, 0.05 })
+            .goodMovesPerPlayerNode(0.2)
+            .secondsPerCall(0.5)
+            .build();
+
+    private static SearchPlan newParams(double minProbabilityOfMove) {
+        return SearchPlan.builder()
+                .maxDepthHalfMoves(10)
+                .minProbabilityOfMove(minProbabilityOfMove)
+                .minGamesToExploreOpponentMove(10)
+                .minGamesToChooseCandidateMove(5)
+                .opponentCoverage(1.0)
+                .evalsEnabled(true)
+                .build();
+    }
+
+    @Test
+    public void testEstimateDecreasesWithMinProbability() {
+        SearchPlannerService planner = new SearchPlannerService();
+
+        SearchPlan wide = planner.estimate(PROFILE, newParams(0.01));
+        SearchPlan narrow = planner.estimate(PROFILE, newParams(0.1));
+
+        assertTrue(narrow.getPositions() < wide.getPositions());
+        assertTrue(narrow.getEngineEvals() <= wide.getEngineEvals());
+        assertEquals(wide.getPositions() * 0.5 + wide.getEngineEvals() * 3.0, wide.getWallTimeSecs(), 1E-9);
+    }
+
+    @Test
+    public void testPlanFitsBudget() {
+        SearchPlannerService planner = new SearchPlannerService();
+        SearchPlan params = newParams(0.001);
+        double secs = planner.estimate(PROFILE, params).getWallTimeSecs();
+
+        // no budget: same thresholds
+        assertEquals(0.001, planner.plan(PROFILE, params).getMinProbabilityOfMove());
+
+        ReflectionTestUtils.setField(planner, "budgetMinutes", secs / 60 / 4);
+        SearchPlan plan = planner.plan(PROFILE, params);
+        assertTrue(plan.getWallTimeSecs() <= secs / 4);
+        assertTrue(plan.getMinProbabilityOfMove() > 0.001);
+        assertTrue(plan.getMinGamesToExploreOpponentMove() > 10);
+    }
+
+    @Test
+    public void testGetAveragePopularity() {
+        PositionStats a = new PositionStats(60, 20, 20, 2, new String[] { "e2e4", "d2d4" },
+                new int[] { 50, 10 }, new int[] { 10, 10 }, new int[] { 20, 0 }, new int[] { 2400, 2600 }, 2450.0);
+        PositionStats b = new PositionStats(10, 0, 0, 1, new String[] { "e2e4" },
+                new int[] { 10 }, new int[] { 0 }, new int[] { 0 }, new int[] { 2400 }, 2400.0);
+
+        assertArrayEquals(new double[] { 0.9, 0.1 }, SearchPlannerService.getAveragePopularity(List.of(a, b)), 1E-9);
+    }
+}
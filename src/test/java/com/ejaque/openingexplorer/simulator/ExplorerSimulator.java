@@ -0,0 +1,255 @@
+package com.ejaque.openingexplorer.simulator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ejaque.openingexplorer.util.ZobristUtil;
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.Piece;
+import com.github.bhlangonijr.chesslib.Square;
+import com.github.bhlangonijr.chesslib.move.Move;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * In-process stand-in for the Lichess opening explorer, for tests and
+ * benchmarks of the search without network. Answers "/lichess" and "/masters"
+ * (same JSON format as the explorer) with a synthetic move tree:
+ * <ul>
+ * <li>Deterministic: the moves of a position (legal moves, chosen at random)
+ * and their stats only depend on the seed and the position.</li>
+ * <li>Consistent: the games of a position are the games of the move that
+ * reached it (the first one, for transpositions), so deeper positions have
+ * fewer games like in the real explorer.</li>
+ * <li>Latency (plus random jitter) and random HTTP 429 / 500 errors can be
+ * injected.</li>
+ * </ul>
+ */
+public class ExplorerSimulator implements AutoCloseable {
+
+    /** Shape of the simulated tree and behavior of the server. */
+    @Builder
+    @Getter
+    public static class Config {
+        /** Moves returned for each position. */
+        @Builder.Default
+        private int branching = 3;
+        /** Games of the first position asked for (the starting position of the search). */
+        @Builder.Default
+        private int rootGames = 1_000_000;
+        @Builder.Default
+        private long latencyMillis = 0;
+        /** Random extra latency, from 0 to this value. */
+        @Builder.Default
+        private long jitterMillis = 0;
+        /** Fraction of the calls answered with HTTP 429 (with "Retry-After: 0"). */
+        @Builder.Default
+        private double error429Rate = 0.0;
+        /** Fraction of the calls answered with HTTP 500. */
+        @Builder.Default
+        private double error500Rate = 0.0;
+        @Builder.Default
+        private long seed = 1L;
+    }
+
+    private final Config config;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /** Games of the positions reached by the moves returned so far (by Zobrist key). */
+    private final Map<Long, Integer> positionGames = new ConcurrentHashMap<>();
+
+    /** Random numbers for latency and errors (the tree uses one random per position). */
+    private final SplittableRandom callRandom;
+
+    private final AtomicInteger totalRequests = new AtomicInteger();
+    private final AtomicInteger totalThrottled = new AtomicInteger();
+    private final AtomicInteger totalServerErrors = new AtomicInteger();
+
+    public ExplorerSimulator(Config config) throws IOException {
+        this.config = config;
+        this.callRandom = new SplittableRandom(config.getSeed());
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "explorer-simulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** Base URL of the simulator, to be used as "explorer.baseUrl". */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            totalRequests.incrementAndGet();
+            long latency;
+            double errorDice;
+            synchronized (callRandom) {
+                latency = config.getLatencyMillis()
+                        + (config.getJitterMillis() > 0 ? callRandom.nextLong(config.getJitterMillis() + 1) : 0);
+                errorDice = callRandom.nextDouble();
+            }
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            if (errorDice < config.getError429Rate()) {
+                totalThrottled.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "0");
+                send(exchange, 429, "{\"error\":\"Too many requests\"}");
+                return;
+            }
+            if (errorDice < config.getError429Rate() + config.getError500Rate()) {
+                totalServerErrors.incrementAndGet();
+                send(exchange, 500, "{\"error\":\"Internal server error\"}");
+                return;
+            }
+
+            String fen = getQueryParam(exchange.getRequestURI().getRawQuery(), "fen");
+            if (fen == null) {
+                send(exchange, 400, "{\"error\":\"Missing fen\"}");
+                return;
+            }
+            send(exchange, 200, getPositionJson(fen));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "{}");
+        } catch (RuntimeException e) {
+            send(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+        }
+    }
+
+    /** Gets the explorer response for a position. */
+    String getPositionJson(String fen) {
+        Board board = new Board();
+        board.loadFromFen(fen);
+        long key = ZobristUtil.getKey(board);
+        int totalGames = positionGames.computeIfAbsent(key, k -> config.getRootGames());
+        SplittableRandom random = new SplittableRandom(config.getSeed() ^ key);
+
+        // choose the moves (legal moves sorted, so the choice only depends on the random numbers)
+        List<Move> legalMoves = new ArrayList<>(board.legalMoves());
+        legalMoves.sort(Comparator.comparing(Move::toString));
+        int moveCount = Math.min(config.getBranching(), legalMoves.size());
+        for (int i = 0; i < moveCount; i++) {
+            int j = i + random.nextInt(legalMoves.size() - i);
+            Move move = legalMoves.get(j);
+            legalMoves.set(j, legalMoves.get(i));
+            legalMoves.set(i, move);
+        }
+
+        // split the games: popular moves first, a long tail after them
+        double[] weights = new double[moveCount];
+        double totalWeight = 0;
+        for (int i = 0; i < moveCount; i++) {
+            weights[i] = random.nextDouble(0.2, 1.0) / (i + 1);
+            totalWeight += weights[i];
+        }
+
+        StringBuilder moves = new StringBuilder();
+        int white = 0;
+        int draws = 0;
+        int black = 0;
+        for (int i = 0; i < moveCount; i++) {
+            Move move = legalMoves.get(i);
+            int games = (int) (totalGames * weights[i] / totalWeight);
+            int moveWhite = (int) (games * random.nextDouble(0.3, 0.5));
+            int moveBlack = (int) (games * random.nextDouble(0.2, 0.4));
+            int moveDraws = games - moveWhite - moveBlack;
+            white += moveWhite;
+            draws += moveDraws;
+            black += moveBlack;
+
+            String uci = toExplorerUci(board, move);
+            board.doMove(move);
+            positionGames.putIfAbsent(ZobristUtil.getKey(board), games);
+            board.undoMove();
+
+            moves.append(i > 0 ? "," : "")
+                    .append("{\"uci\":\"").append(uci).append("\",\"san\":null")
+                    .append(",\"averageRating\":").append(2000 + random.nextInt(600))
+                    .append(",\"white\":").append(moveWhite)
+                    .append(",\"draws\":").append(moveDraws)
+                    .append(",\"black\":").append(moveBlack)
+                    .append(",\"game\":null}");
+        }
+        return "{\"white\":" + white + ",\"draws\":" + draws + ",\"black\":" + black
+                + ",\"moves\":[" + moves + "],\"topGames\":[],\"opening\":null}";
+    }
+
+    /** Castling as the king capturing its own rook ("e1h1"), like the explorer. */
+    private static String toExplorerUci(Board board, Move move) {
+        Piece piece = board.getPiece(move.getFrom());
+        if ((piece == Piece.WHITE_KING && move.getFrom() == Square.E1)
+                || (piece == Piece.BLACK_KING && move.getFrom() == Square.E8)) {
+            String rank = move.getFrom() == Square.E1 ? "1" : "8";
+            if (move.getTo().name().startsWith("G")) {
+                return "e" + rank + "h" + rank;
+            } else if (move.getTo().name().startsWith("C")) {
+                return "e" + rank + "a" + rank;
+            }
+        }
+        return move.toString();
+    }
+
+    private static String getQueryParam(String rawQuery, String name) {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String param : rawQuery.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator > 0 && param.substring(0, separator).equals(name)) {
+                return URLDecoder.decode(param.substring(separator + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static void send(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public int getTotalRequests() {
+        return totalRequests.get();
+    }
+
+    public int getTotalThrottled() {
+        return totalThrottled.get();
+    }
+
+    public int getTotalServerErrors() {
+        return totalServerErrors.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
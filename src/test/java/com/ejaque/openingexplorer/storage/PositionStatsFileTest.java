@@ -0,0 +1,62 @@
+package com.ejaque.openingexplorer.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ejaque.openingexplorer.model.PositionStats;
+
+class PositionStatsFileTest {
+
+	@TempDir
+	Path tempDir;
+
+	private static PositionStats newStats(int i) {
+		return new PositionStats(10 + i, 5, 3, 3, new String[] { "e2e4", "e1h1", "a7a8q" },
+				new int[] { 5 + i, 3, 2 }, new int[] { 2, 2, 1 }, new int[] { 1, 1, 1 },
+				new int[] { 2000 + i, 2100, 0 }, 0.0);
+	}
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		Path file = tempDir.resolve("stats.bin");
+		try (PositionStatsFileWriter writer = new PositionStatsFileWriter(file)) {
+			for (int i = 0; i < 1000; i++) {
+				writer.add(i * 7919L, newStats(i));
+			}
+			writer.add(12345L, PositionStats.empty());
+		}
+
+		// tiny segments, so slots and moves are read from many mapped buffers
+		try (PositionStatsFileReader reader = new PositionStatsFileReader(file, 64)) {
+			assertEquals(1001, reader.getPositionCount());
+			assertEquals(3000, reader.getMoveCount());
+
+			for (int i = 0; i < 1000; i++) {
+				PositionStats stats = reader.get(i * 7919L);
+				assertEquals(18 + i, stats.getTotalGames());
+				assertArrayEquals(new String[] { "e2e4", "e1h1", "a7a8q" }, stats.getMoveUci());
+				assertArrayEquals(new int[] { 5 + i, 3, 2 }, stats.getMoveWhite());
+				assertArrayEquals(new int[] { 2000 + i, 2100, 0 }, stats.getMoveAverageRating());
+			}
+
+			// weighted avg is recalculated: (2000 * 8 + 2100 * 6 + 0 * 4) / 18
+			assertEquals((2000.0 * 8 + 2100.0 * 6) / 18, reader.get(0L).getAvgRatingForAllMoves(), 1E-6);
+
+			assertEquals(0, reader.get(12345L).getMoveCount());
+			assertNull(reader.get(-1L));
+		}
+	}
+
+	@Test
+	public void testEncodeUci() {
+		for (String uci : new String[] { "e2e4", "e1h1", "e8a8", "a7a8q", "h2h1n", "b7c8r", "g2g1b" }) {
+			assertEquals(uci, PositionStatsFileFormat.decodeUci(PositionStatsFileFormat.encodeUci(uci)));
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.ejaque.openingexplorer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class AdaptiveRateLimiterTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    private final AtomicLong clock = new AtomicLong(0);
+
+    @Test
+    public void testBurstAndSteadyRate() {
+        // 2 calls per second, burst of 3
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(2.0, 0.1, 10.0, 3, 0.0, 0.5, clock::get);
+
+        // idle for a while fills the bucket up to the burst
+        clock.set(10_000 * MILLIS);
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+
+        // then one call each 500 ms
+        assertEquals(500 * MILLIS, limiter.reserve());
+        assertEquals(1000 * MILLIS, limiter.reserve());
+        assertEquals(1500, limiter.getTotalWaitMillis());
+    }
+
+    @Test
+    public void testThrottledDecreasesRateAndPausesAllCalls() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(2.0, 0.1, 10.0, 1, 0.0, 0.5, clock::get);
+        assertEquals(0, limiter.reserve());
+
+        limiter.onThrottled(60_000);
+        assertEquals(1.0, limiter.getRate(), 1E-9);
+        assertEquals(1, limiter.getTotalThrottled());
+
+        // nobody calls during the pause, then at the new rate (1 call per second)
+        assertEquals(60_000 * MILLIS, limiter.reserve());
+        assertEquals(61_000 * MILLIS, limiter.reserve());
+
+        // after the pause the bucket refills normally
+        clock.set(100_000 * MILLIS);
+        assertEquals(0, limiter.reserve());
+    }
+
+    @Test
+    public void testCallReservedBeforeThrottledWaitsForThePause() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(2.0, 0.1, 10.0, 1, 0.0, 0.5, clock::get);
+        assertEquals(0, limiter.reserve());
+        AdaptiveRateLimiter.Reservation reserved = limiter.reserveCall();
+        assertEquals(500 * MILLIS, limiter.getRemainingNanos(reserved));
+
+        // the server throttles while the reserved call is sleeping: it wakes up during the pause and waits again
+        clock.set(100 * MILLIS);
+        limiter.onThrottled(60_000);
+        clock.set(500 * MILLIS);
+        assertEquals(60_000 * MILLIS, limiter.getRemainingNanos(reserved));
+
+        // the calls reserved after it keep the debt and go later, at the new rate
+        assertEquals(60_400 * MILLIS, limiter.reserve());
+        clock.set(60_500 * MILLIS);
+        assertEquals(0, limiter.getRemainingNanos(reserved));
+    }
+
+    @Test
+    public void testAdditiveIncreaseUpToMaxRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1.0, 0.1, 1.5, 1, 0.2, 0.5, clock::get);
+        limiter.onSuccess();
+        assertEquals(1.2, limiter.getRate(), 1E-9);
+        limiter.onSuccess();
+        limiter.onSuccess();
+        assertEquals(1.5, limiter.getRate(), 1E-9);
+
+        limiter.onThrottled(0);
+        assertEquals(0.75, limiter.getRate(), 1E-9);
+    }
+
+    @Test
+    public void testRateNeverBelowMin() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0.3, 0.2, 1.0, 1, 0.0, 0.5, clock::get);
+        limiter.onThrottled(0);
+        limiter.onThrottled(0);
+        assertEquals(0.2, limiter.getRate(), 1E-9);
+    }
+}
@@ -0,0 +1,87 @@
+package com.ejaque.openingexplorer.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import com.ejaque.openingexplorer.model.PositionStats;
+
+class ExplorerJsonDecoderTest {
+
+	private static final String RESPONSE = "{\"white\":120,\"draws\":60,\"black\":20,"
+			+ "\"moves\":["
+			+ "{\"uci\":\"e2e4\",\"san\":\"e4\",\"averageRating\":2500,\"white\":100,\"draws\":40,\"black\":10,\"game\":null},"
+			+ "{\"uci\":\"e1h1\",\"san\":\"O-O\",\"averageRating\":2600,\"white\":15,\"draws\":15,\"black\":5,"
+			+ "\"opening\":{\"eco\":\"A00\",\"name\":\"Some opening\"}},"
+			+ "{\"uci\":\"a2a3\",\"san\":\"a3\",\"averageRating\":null,\"white\":5,\"draws\":5,\"black\":5}],"
+			+ "\"topGames\":[{\"id\":\"abc\",\"white\":{\"name\":\"x\",\"rating\":2700}}],"
+			+ "\"opening\":null}";
+
+	@Test
+	public void testDecode() {
+		PositionStats stats = ExplorerJsonDecoder.decode(RESPONSE);
+
+		assertEquals(200, stats.getTotalGames());
+		assertEquals(3, stats.getMoveCount());
+		assertArrayEquals(new String[] { "e2e4", "e1h1", "a2a3" }, stats.getMoveUci());
+		assertArrayEquals(new int[] { 100, 15, 5 }, stats.getMoveWhite());
+		assertArrayEquals(new int[] { 40, 15, 5 }, stats.getMoveDraws());
+		assertArrayEquals(new int[] { 10, 5, 5 }, stats.getMoveBlack());
+		assertArrayEquals(new int[] { 2500, 2600, 0 }, stats.getMoveAverageRating());
+		assertEquals(150, stats.getTotalGamesMove(0));
+		assertEquals(0.8, stats.getWhitePointsPctg(0), 1E-9);
+
+		// weighted avg: (2500 * 150 + 2600 * 35 + 0 * 15) / 200
+		assertEquals((2500.0 * 150 + 2600.0 * 35) / 200, stats.getAvgRatingForAllMoves(), 1E-6);
+	}
+
+	@Test
+	public void testCandidateRatingsAndRanks() {
+		PositionStats stats = ExplorerJsonDecoder.decode(RESPONSE);
+
+		assertArrayEquals(new int[] { 2500, 2600 }, stats.getCandidateRatings(20));
+		assertArrayEquals(new int[] { 2500, 2600, 0 }, stats.getCandidateRatings(10));
+
+		// equal ratings share the rank, the next one is skipped
+		assertArrayEquals(new int[] { 3, 1, 1, 4 }, PositionStats.rankRatings(new int[] { 2400, 2600, 2600, 2300 }));
+	}
+
+	@Test
+	public void testCoveredMoves() {
+		PositionStats stats = ExplorerJsonDecoder.decode(RESPONSE);
+
+		// games by move: 150, 35, 15 (of 200)
+		assertEquals(1, stats.getCoveredMoveCount(0.5));
+		assertEquals(2, stats.getCoveredMoveCount(0.9));
+		assertEquals(3, stats.getCoveredMoveCount(0.95));
+		assertEquals(3, stats.getCoveredMoveCount(1.0));
+
+		assertEquals((2500.0 * 150 + 2600.0 * 35) / 185, stats.getWeightedAverageRating(2), 1E-6);
+		// the move with no rating is skipped
+		assertEquals((2500.0 * 150 + 2600.0 * 35) / 185, stats.getWeightedAverageRating(3), 1E-6);
+		assertEquals((120.0 + 22.5) / 185, stats.getWeightedWhitePointsPctg(2), 1E-9);
+	}
+
+	@Test
+	public void testDecodeManyMoves() {
+		StringBuilder json = new StringBuilder("{\"white\":0,\"draws\":0,\"black\":0,\"moves\":[");
+		for (int i = 0; i < 40; i++) {
+			json.append(i > 0 ? "," : "").append("{\"uci\":\"m").append(i)
+					.append("\",\"white\":1,\"draws\":0,\"black\":0,\"averageRating\":").append(2000 + i).append('}');
+		}
+		json.append("]}");
+
+		PositionStats stats = ExplorerJsonDecoder.decode(json.toString());
+
+		assertEquals(40, stats.getMoveCount());
+		assertEquals("m39", stats.getUci(39));
+		assertEquals(2039, stats.getAverageRating(39));
+	}
+
+	@Test
+	public void testInvalidJson() {
+		assertThrows(IllegalArgumentException.class, () -> ExplorerJsonDecoder.decode("{\"white\":1,\"moves\":["));
+	}
+}
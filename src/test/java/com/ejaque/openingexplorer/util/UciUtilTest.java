@@ -22,4 +22,13 @@ class UciUtilTest {
         assertEquals(1, sacrificesDetected, "Sacrifice should be detected in the sequence of moves.");
     }
 
+    @Test
+    public void testMultiPvInfoMessage() {
+        String message = "info depth 22 seldepth 30 multipv 3 score cp -15 nodes 1000 pv g8f6 c2c4 e7e6";
+
+        assertEquals(3, UciUtil.getMultiPv(message));
+        assertEquals(Arrays.asList("g8f6", "c2c4", "e7e6"), UciUtil.extractMoves(message));
+        assertEquals(1, UciUtil.getMultiPv("info depth 22 score cp 20 pv e2e4"));
+    }
+
 }
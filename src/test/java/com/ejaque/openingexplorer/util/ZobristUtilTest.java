@@ -0,0 +1,78 @@
+package com.ejaque.openingexplorer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.Square;
+import com.github.bhlangonijr.chesslib.move.Move;
+
+class ZobristUtilTest {
+
+	private static final String START = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+	@Test
+	public void testGetKey() {
+		// move counters are ignored, Short FEN has the same key
+		assertEquals(ZobristUtil.getKey(START),
+				ZobristUtil.getKey("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 5 20"));
+		assertEquals(ZobristUtil.getKey(START),
+				ZobristUtil.getKey("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq -"));
+
+		assertNotEquals(ZobristUtil.getKey(START),
+				ZobristUtil.getKey("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR b KQkq - 0 1"));
+		assertNotEquals(ZobristUtil.getKey(START),
+				ZobristUtil.getKey("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w Kkq - 0 1"));
+	}
+
+	@Test
+	public void testEnPassant() {
+		// en passant square only counts if a pawn can capture
+		assertEquals(ZobristUtil.getKey("rnbqkbnr/pppp1ppp/8/4p3/4P3/8/PPPP1PPP/RNBQKBNR w KQkq e6 0 2"),
+				ZobristUtil.getKey("rnbqkbnr/pppp1ppp/8/4p3/4P3/8/PPPP1PPP/RNBQKBNR w KQkq - 0 2"));
+		assertNotEquals(ZobristUtil.getKey("rnbqkbnr/pppp1ppp/8/3Pp3/8/8/PPP1PPPP/RNBQKBNR w KQkq e6 0 3"),
+				ZobristUtil.getKey("rnbqkbnr/pppp1ppp/8/3Pp3/8/8/PPP1PPPP/RNBQKBNR w KQkq - 0 3"));
+	}
+
+	@Test
+	public void testGetKeyFromBoard() {
+		Board board = new Board();
+		board.loadFromFen(START);
+		assertEquals(ZobristUtil.getKey(START), ZobristUtil.getKey(board));
+
+		// 1.Nf3 Nf6 2.g3 and 1.g3 Nf6 2.Nf3 reach the same position
+		board.doMove(new Move(Square.G1, Square.F3));
+		board.doMove(new Move(Square.G8, Square.F6));
+		board.doMove(new Move(Square.G2, Square.G3));
+		long key = ZobristUtil.getKey(board);
+		assertEquals(ZobristUtil.getKey(board.getFen()), key);
+
+		board.undoMove();
+		board.undoMove();
+		board.undoMove();
+		assertEquals(ZobristUtil.getKey(START), ZobristUtil.getKey(board));
+
+		board.doMove(new Move(Square.G2, Square.G3));
+		board.doMove(new Move(Square.G8, Square.F6));
+		board.doMove(new Move(Square.G1, Square.F3));
+		assertEquals(key, ZobristUtil.getKey(board));
+
+		// en passant possible: 1.e4 Nf6 2.e5 d5
+		board.loadFromFen(START);
+		board.doMove(new Move(Square.E2, Square.E4));
+		board.doMove(new Move(Square.G8, Square.F6));
+		board.doMove(new Move(Square.E4, Square.E5));
+		board.doMove(new Move(Square.D7, Square.D5));
+		assertEquals(ZobristUtil.getKey(board.getFen()), ZobristUtil.getKey(board));
+		assertNotEquals(ZobristUtil.getKey("rnbqkb1r/ppp1pppp/5n2/3pP3/8/8/PPPP1PPP/RNBQKBNR w KQkq - 0 3"),
+				ZobristUtil.getKey(board));
+	}
+
+	@Test
+	public void testInvalidFen() {
+		assertThrows(IllegalArgumentException.class, () -> ZobristUtil.getKey("rnbqkbnr/pppppppp w"));
+	}
+}